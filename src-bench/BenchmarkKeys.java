@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Keys fed to the benchmarks: KEYS draws from UNIVERSE distinct values, as
+ * longs and as the equivalent strings, either uniform or Zipfian (exponent
+ * ZIPF_EXPONENT, rank 1 the most frequent). Generated once per JVM with a
+ * fixed seed, so every run sees the same keys.
+ */
+public class BenchmarkKeys {
+    public static final int KEYS = 1 << 20;
+    public static final int UNIVERSE = 1 << 20;
+    public static final double ZIPF_EXPONENT = 1.1;
+
+    public enum Distribution {
+        UNIFORM, ZIPF
+    }
+
+    private static long[][] longs = new long[Distribution.values().length][];
+    private static String[][] strings = new String[Distribution.values().length][];
+
+    private BenchmarkKeys() {
+    }
+
+    public static synchronized long[] longs(Distribution distribution) {
+        int d = distribution.ordinal();
+        if ( longs[d] == null ) {
+            Random random = new Random(42);
+            long[] keys = new long[KEYS];
+
+            if ( distribution == Distribution.UNIFORM ) {
+                for (int i=0; i<KEYS; ++i) {
+                    keys[i] = random.nextInt(UNIVERSE);
+                }
+            } else {
+                // inverse of the cumulative distribution of the ranks
+                double[] cumulative = new double[UNIVERSE];
+                double sum = 0;
+                for (int rank=1; rank<=UNIVERSE; ++rank) {
+                    sum += 1 / Math.pow(rank, ZIPF_EXPONENT);
+                    cumulative[rank - 1] = sum;
+                }
+                for (int i=0; i<KEYS; ++i) {
+                    int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                    keys[i] = index >= 0 ? index : -index - 1;
+                }
+            }
+            longs[d] = keys;
+        }
+        return longs[d];
+    }
+
+    public static synchronized String[] strings(Distribution distribution) {
+        int d = distribution.ordinal();
+        if ( strings[d] == null ) {
+            long[] keys = longs(distribution);
+            String[] values = new String[UNIVERSE];
+            String[] keyStrings = new String[KEYS];
+            for (int i=0; i<KEYS; ++i) {
+                int key = (int) keys[i];
+                if ( values[key] == null ) {
+                    values[key] = "customer-" + key;
+                }
+                keyStrings[i] = values[key];
+            }
+            strings[d] = keyStrings;
+        }
+        return strings[d];
+    }
+}
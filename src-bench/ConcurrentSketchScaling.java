@@ -0,0 +1,263 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+/**
+ * Scaling curves of shared frequency sketches: threads add the benchmark
+ * keys (see BenchmarkKeys) to one sketch, for each thread count, and the
+ * aggregate throughput is reported with its speedup over the first thread
+ * count. The sketches compared are a CountMinSketch/CountSketch behind a
+ * lock, and ConcurrentCountMinSketch/ConcurrentCountSketch in both
+ * ConcurrentLongTable modes.
+ *
+ * java -cp ... ConcurrentSketchScaling [-threads 1,2,4,...] [-ops n]
+ *     [-i iterations] [-depth d] [-width w] [-strings] [-zipf] [regex]
+ *
+ * Every point adds ops keys in all, split evenly over the threads, on a new
+ * sketch; the best of the iterations is kept. Speedups above the number of
+ * cores only measure the scheduler.
+ */
+public class ConcurrentSketchScaling {
+    private static int depth = TopK.COUNT_SKETCH_DEPTH;
+    private static int width = TopK.COUNT_SKETCH_WIDTH;
+
+    /**
+     * A sketch the threads of a point share.
+     */
+    private static abstract class Shared {
+        abstract void add(long key);
+
+        abstract void add(String key);
+
+        abstract long size();
+    }
+
+    private static abstract class Variant {
+        private String name;
+
+        Variant(String name) {
+            this.name = name;
+        }
+
+        abstract Shared create();
+    }
+
+    private static List<Variant> variants() {
+        List<Variant> variants = new ArrayList<Variant>();
+
+        variants.add(new Variant("CountMinSketch+lock") {
+            Shared create() {
+                final CountMinSketch sketch = new CountMinSketch(depth, width, 1);
+                return new Shared() {
+                    void add(long key) {
+                        synchronized ( sketch ) {
+                            sketch.add(key, 1);
+                        }
+                    }
+
+                    void add(String key) {
+                        synchronized ( sketch ) {
+                            sketch.add(key, 1);
+                        }
+                    }
+
+                    long size() {
+                        return sketch.size();
+                    }
+                };
+            }
+        });
+        variants.add(new Variant("CountSketch+lock") {
+            Shared create() {
+                final CountSketch sketch = new CountSketch(depth, width, 1);
+                return new Shared() {
+                    void add(long key) {
+                        synchronized ( sketch ) {
+                            sketch.add(key, 1);
+                        }
+                    }
+
+                    void add(String key) {
+                        synchronized ( sketch ) {
+                            sketch.add(key, 1);
+                        }
+                    }
+
+                    long size() {
+                        return sketch.getSize();
+                    }
+                };
+            }
+        });
+
+        for (final ConcurrentLongTable.Mode mode : ConcurrentLongTable.Mode.values()) {
+            variants.add(new Variant("ConcurrentCountMinSketch:" + mode) {
+                Shared create() {
+                    final ConcurrentCountMinSketch sketch = new ConcurrentCountMinSketch(depth, width, 1, mode);
+                    return new Shared() {
+                        void add(long key) {
+                            sketch.add(key, 1);
+                        }
+
+                        void add(String key) {
+                            sketch.add(key, 1);
+                        }
+
+                        long size() {
+                            return sketch.size();
+                        }
+                    };
+                }
+            });
+            variants.add(new Variant("ConcurrentCountSketch:" + mode) {
+                Shared create() {
+                    final ConcurrentCountSketch sketch = new ConcurrentCountSketch(depth, width, 1, mode);
+                    return new Shared() {
+                        void add(long key) {
+                            sketch.add(key, 1);
+                        }
+
+                        void add(String key) {
+                            sketch.add(key, 1);
+                        }
+
+                        long size() {
+                            return sketch.getSize();
+                        }
+                    };
+                }
+            });
+        }
+        return variants;
+    }
+
+    // Adds ops keys to a new sketch of variant with the given number of
+    // threads and returns the throughput, in adds per second.
+    private static double point(Variant variant, final long[] longs, final String[] strings, int threads,
+                                long ops) throws InterruptedException {
+        final Shared shared = variant.create();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long perThread = ops / threads;
+        Thread[] workers = new Thread[threads];
+
+        for (int t=0; t<threads; ++t) {
+            final int first = (int) ((long) t * BenchmarkKeys.KEYS / threads);
+            workers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        int k = first;
+                        for (long i=0; i<perThread; ++i) {
+                            if ( strings != null ) {
+                                shared.add(strings[k]);
+                            } else {
+                                shared.add(longs[k]);
+                            }
+                            if ( ++k == BenchmarkKeys.KEYS ) {
+                                k = 0;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            workers[t].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+
+        if ( shared.size() != perThread * threads ) {
+            throw new IllegalStateException(variant.name + " counted " + shared.size() + " adds, not " +
+                                            perThread * threads);
+        }
+        return perThread * threads * 1e9 / elapsed;
+    }
+
+    private static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i=0; i<parts.length; ++i) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] threadCounts = { 1, 2, 4, 8, 16, 32, 64 };
+        long ops = 8000000;
+        int iterations = 3;
+        boolean strings = false;
+        BenchmarkKeys.Distribution distribution = BenchmarkKeys.Distribution.UNIFORM;
+        Pattern filter = Pattern.compile(".*");
+
+        for (int i=0; i<args.length; ++i) {
+            if ( args[i].equals("-threads") ) {
+                threadCounts = ints(args[++i]);
+            } else if ( args[i].equals("-ops") ) {
+                ops = Long.parseLong(args[++i]);
+            } else if ( args[i].equals("-i") ) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-depth") ) {
+                depth = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-width") ) {
+                width = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-strings") ) {
+                strings = true;
+            } else if ( args[i].equals("-zipf") ) {
+                distribution = BenchmarkKeys.Distribution.ZIPF;
+            } else {
+                filter = Pattern.compile(args[i]);
+            }
+        }
+
+        long[] longs = BenchmarkKeys.longs(distribution);
+        String[] keys = strings ? BenchmarkKeys.strings(distribution) : null;
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cores, " + ops + " " +
+                           (strings ? "string" : "long") + " " + distribution + " keys per point, depth " + depth +
+                           ", width " + width);
+        System.out.println(String.format("%-32s %8s %14s %9s", "sketch", "threads", "adds/s", "speedup"));
+        for (Variant variant : variants()) {
+            if ( !filter.matcher(variant.name).find() ) {
+                continue;
+            }
+            // compile the add paths before the first point
+            point(variant, longs, keys, 2, Math.min(ops, 1000000));
+
+            double single = 0;
+            for (int threads : threadCounts) {
+                double best = 0;
+                for (int i=0; i<iterations; ++i) {
+                    best = Math.max(best, point(variant, longs, keys, threads, ops));
+                }
+                if ( single == 0 ) {
+                    single = best;
+                }
+                System.out.println(String.format("%-32s %8d %,14.0f %9.2f", variant.name, threads, best,
+                                                 best / single));
+            }
+        }
+    }
+}
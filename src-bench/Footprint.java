@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Heap size of an object graph, walked by reflection: every object reachable
+ * from the root counts once, sized as on a 64 bit JVM with compressed oops
+ * (12 byte headers, 4 byte references, 8 byte alignment). The sketches are
+ * arrays and a few fields and share nothing but their small kernel, so this
+ * is their retained size. JDK objects the walk cannot open are counted as a
+ * header, and off heap memory (direct buffers) is not counted.
+ */
+public class Footprint {
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    private static final Map<Class<?>, Field[]> fields = new HashMap<Class<?>, Field[]>();
+    private static final Map<Class<?>, Long> shallowSizes = new HashMap<Class<?>, Long>();
+
+    private Footprint() {
+    }
+
+    public static long retainedBytes(Object root) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        ArrayDeque<Object> pending = new ArrayDeque<Object>();
+        long bytes = 0;
+
+        pending.push(root);
+        seen.add(root);
+        while ( !pending.isEmpty() ) {
+            Object object = pending.pop();
+            Class<?> type = object.getClass();
+
+            if ( type.isArray() ) {
+                Class<?> component = type.getComponentType();
+                int length = Array.getLength(object);
+                bytes += align(ARRAY_HEADER + (long) length * size(component));
+                if ( !component.isPrimitive() ) {
+                    for (Object element : (Object[]) object) {
+                        push(element, seen, pending);
+                    }
+                }
+            } else if ( object instanceof String ) {
+                // compact strings, latin1
+                bytes += align(HEADER + 12) + align(ARRAY_HEADER + ((String) object).length());
+            } else if ( object instanceof ByteBuffer ) {
+                ByteBuffer buffer = (ByteBuffer) object;
+                bytes += align(HEADER + 36) + (buffer.hasArray() ? align(ARRAY_HEADER + buffer.capacity()) : 0);
+            } else {
+                bytes += shallowSize(type);
+                for (Field field : fields(type)) {
+                    if ( !field.getType().isPrimitive() ) {
+                        try {
+                            push(field.get(object), seen, pending);
+                        } catch (IllegalAccessException e) {
+                            // not ours to walk
+                        }
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static void push(Object object, Set<Object> seen, ArrayDeque<Object> pending) {
+        if ( object != null && !(object instanceof Class) && seen.add(object) ) {
+            pending.push(object);
+        }
+    }
+
+    private static long shallowSize(Class<?> type) {
+        Long size = shallowSizes.get(type);
+        if ( size == null ) {
+            long bytes = HEADER;
+            for (Class<?> c=type; c!=null; c=c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if ( !Modifier.isStatic(field.getModifiers()) ) {
+                        bytes += size(field.getType());
+                    }
+                }
+            }
+            size = align(bytes);
+            shallowSizes.put(type, size);
+        }
+        return size;
+    }
+
+    // the instance fields of type and its superclasses that can be read
+    private static Field[] fields(Class<?> type) {
+        Field[] result = fields.get(type);
+        if ( result == null ) {
+            List<Field> list = new ArrayList<Field>();
+            for (Class<?> c=type; c!=null; c=c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if ( Modifier.isStatic(field.getModifiers()) ) {
+                        continue;
+                    }
+                    try {
+                        field.setAccessible(true);
+                        list.add(field);
+                    } catch (RuntimeException e) {
+                        // a JDK internal the module system keeps closed
+                    }
+                }
+            }
+            result = list.toArray(new Field[list.size()]);
+            fields.put(type, result);
+        }
+        return result;
+    }
+
+    private static int size(Class<?> type) {
+        if ( type == long.class || type == double.class ) {
+            return 8;
+        }
+        if ( type == int.class || type == float.class ) {
+            return 4;
+        }
+        if ( type == short.class || type == char.class ) {
+            return 2;
+        }
+        if ( type == byte.class || type == boolean.class ) {
+            return 1;
+        }
+        return REFERENCE;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Accuracy against cost of the ColumnStats pipeline on synthetic columns,
+ * without a database: the offline counterpart of calculateNDVError and
+ * highFrequencyInclusionError in SqlStatistics. Columns are generated with
+ * a fixed seed and their exact frequencies counted, then every combination
+ * of the sketch parameters given is gathered over each of them as
+ * SqlStatistics does (cardinality sketch first, TopK once it is lossy; or a
+ * HyperLogLog and the TopK from the first row).
+ *
+ * For each column and parameters it reports
+ *
+ *   ndv err%    error of the NDV estimate
+ *   recall      share of the true top k found in the estimated top k (a
+ *               value tied with the true k-th counts as found for the tie)
+ *   precision   share of the estimated top k that are in the true top k
+ *   freq err%   mean and max error of the estimated top k frequencies
+ *   rows/s      gathering throughput
+ *   ndv bytes   retained size of the NDV engine alone
+ *   bytes       retained size of the ColumnStats (see Footprint)
+ *
+ * java -cp ... SketchAccuracy [-rows n] [-universe n] [-k n] [-strings]
+ *     [-ndv ADAPTIVE_SAMPLING,HYPERLOGLOG] [-maxelements a,b]
+ *     [-precision a,b] [-depth a,b] [-width a,b] [-topk a,b]
+ *     [-engine COUNT_SKETCH,SPACE_SAVING] [-ndv-error pct] [-recall r]
+ *     [-freq-error pct] [column regex]
+ *
+ * -maxelements sizes the cardinality sketch, -precision the HyperLogLog.
+ *
+ * With any of the targets -ndv-error, -recall or -freq-error, the cheapest
+ * (in bytes) parameters meeting them are listed for each column at the end.
+ */
+public class SketchAccuracy {
+    private static final long SEED = 20131214L;
+
+    /**
+     * A synthetic column: rows values in [0, universe).
+     */
+    public static abstract class Column {
+        private String name;
+
+        protected Column(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public abstract long[] generate(int rows, int universe, Random random);
+    }
+
+    public static class Uniform extends Column {
+        public Uniform() {
+            super("uniform");
+        }
+
+        public long[] generate(int rows, int universe, Random random) {
+            long[] values = new long[rows];
+            for (int i=0; i<rows; ++i) {
+                values[i] = random.nextInt(universe);
+            }
+            return values;
+        }
+    }
+
+    // value rank r (from 0) with probability proportional to 1/(r+1)^exponent
+    public static class Zipf extends Column {
+        private double exponent;
+
+        public Zipf(double exponent) {
+            super("zipf-" + exponent);
+            this.exponent = exponent;
+        }
+
+        public long[] generate(int rows, int universe, Random random) {
+            double[] cumulative = new double[universe];
+            double sum = 0;
+            for (int rank=0; rank<universe; ++rank) {
+                sum += 1 / Math.pow(rank + 1, exponent);
+                cumulative[rank] = sum;
+            }
+            long[] values = new long[rows];
+            for (int i=0; i<rows; ++i) {
+                int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                values[i] = index >= 0 ? index : -index - 1;
+            }
+            return values;
+        }
+    }
+
+    // Pareto with shape alpha, so a value's frequency falls off as a power of
+    // it with no fixed universe; the tail is cut at universe
+    public static class HeavyTail extends Column {
+        private double alpha;
+
+        public HeavyTail(double alpha) {
+            super("pareto-" + alpha);
+            this.alpha = alpha;
+        }
+
+        public long[] generate(int rows, int universe, Random random) {
+            long[] values = new long[rows];
+            for (int i=0; i<rows; ++i) {
+                double x = Math.pow(1 - random.nextDouble(), -1 / alpha) - 1;
+                values[i] = (long) Math.min(universe - 1, Math.floor(x * 10));
+            }
+            return values;
+        }
+    }
+
+    // every row a different value, in random order, like a primary key
+    public static class Unique extends Column {
+        public Unique() {
+            super("unique");
+        }
+
+        public long[] generate(int rows, int universe, Random random) {
+            long[] values = new long[rows];
+            for (int i=0; i<rows; ++i) {
+                values[i] = i;
+            }
+            for (int i=rows - 1; i>0; --i) {
+                int j = random.nextInt(i + 1);
+                long value = values[i];
+                values[i] = values[j];
+                values[j] = value;
+            }
+            return values;
+        }
+    }
+
+    public static List<Column> columns() {
+        return Arrays.<Column>asList(new Uniform(), new Zipf(0.8), new Zipf(1.1), new Zipf(1.5),
+                                     new HeavyTail(1.2), new Unique());
+    }
+
+    /**
+     * Sketch parameters of one run.
+     */
+    public static class Parameters {
+        private ColumnStats.NDVEngine ndvEngine;
+        // maxelements of the cardinality sketch, or the HyperLogLog precision
+        private int maxelements;
+        private TopK.Engine engine;
+        private int depth;
+        private int width;
+        private int topk;
+
+        public Parameters(ColumnStats.NDVEngine ndvEngine, int maxelements, TopK.Engine engine, int depth, int width,
+                          int topk) {
+            this.ndvEngine = ndvEngine;
+            this.maxelements = maxelements;
+            this.engine = engine;
+            this.depth = depth;
+            this.width = width;
+            this.topk = topk;
+        }
+
+        public String toString() {
+            return (ndvEngine == ColumnStats.NDVEngine.HYPERLOGLOG ? "hll p=" : "maxelements=") + maxelements +
+                   " topk=" + topk + " " +
+                   (engine == TopK.Engine.SPACE_SAVING ? "SPACE_SAVING" : "CS " + depth + "x" + width);
+        }
+    }
+
+    /**
+     * What a run measured.
+     */
+    public static class Result {
+        private String column;
+        private Parameters parameters;
+        private double ndvError;
+        private double recall;
+        private double precision;
+        private double meanFrequencyError;
+        private double maxFrequencyError;
+        private double rowsPerSecond;
+        private long ndvBytes;
+        private long bytes;
+
+        public String toString() {
+            return String.format("%-12s %-42s %8.2f %7.3f %9.3f %9.2f %9.2f %,13.0f %,12d %,12d", column, parameters,
+                                 ndvError, recall, precision, meanFrequencyError, maxFrequencyError,
+                                 rowsPerSecond, ndvBytes, bytes);
+        }
+    }
+
+    public static final String HEADER = String.format("%-12s %-42s %8s %7s %9s %9s %9s %13s %12s %12s", "column",
+            "parameters", "ndv err%", "recall", "precision", "freq err%", "max err%", "rows/s", "ndv bytes",
+            "bytes");
+
+    /**
+     * Exact stats of a generated column, to check the sketches against.
+     */
+    private static class Truth {
+        private long ndv;
+        private HashMap<String, Long> frequencies = new HashMap<String, Long>();
+        // the k most frequent values, by decreasing count
+        private List<String> top = new ArrayList<String>();
+        // count of the k-th most frequent value
+        private long kthCount;
+
+        Truth(long[] values, int universe, int k) {
+            int max = universe;
+            for (long value : values) {
+                max = (int) Math.max(max, value + 1);
+            }
+            final int[] counts = new int[max];
+            for (long value : values) {
+                ++counts[(int) value];
+            }
+
+            List<Integer> present = new ArrayList<Integer>();
+            for (int value=0; value<max; ++value) {
+                if ( counts[value] > 0 ) {
+                    present.add(value);
+                }
+            }
+            ndv = present.size();
+            Collections.sort(present, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return counts[b] != counts[a] ? (counts[b] < counts[a] ? -1 : 1) : a.compareTo(b);
+                }
+            });
+            for (int value : present) {
+                frequencies.put(Long.toString(value), (long) counts[value]);
+            }
+            for (int i=0; i<Math.min(k, present.size()); ++i) {
+                top.add(Long.toString(present.get(i)));
+            }
+            kthCount = top.isEmpty() ? 0 : counts[present.get(top.size() - 1)];
+        }
+
+        long frequency(String value) {
+            Long count = frequencies.get(value);
+            return count == null ? 0 : count;
+        }
+    }
+
+    public static Result run(String column, long[] values, Truth truth, Parameters parameters, int k,
+                             boolean strings) {
+        ColumnStats columnStats = new ColumnStats();
+        columnStats.setColumnName(column);
+        columnStats.setTopk(new TopK(parameters.topk, parameters.engine, parameters.depth, parameters.width, 1));
+        columnStats.setDoingLossyCounting(false);
+        if ( parameters.ndvEngine == ColumnStats.NDVEngine.HYPERLOGLOG ) {
+            columnStats.setHyperLogLog(new HyperLogLog(parameters.maxelements));
+        } else {
+            columnStats.setCardinalitySketch(new CardinalitySketch(parameters.maxelements));
+        }
+
+        String[] keys = null;
+        if ( strings ) {
+            keys = new String[values.length];
+            for (int i=0; i<values.length; ++i) {
+                keys[i] = Long.toString(values[i]);
+            }
+        }
+
+        // the sketches report their splits on System.out
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+        long start = System.nanoTime();
+        try {
+            if ( strings ) {
+                for (String key : keys) {
+                    columnStats.add(key, null);
+                }
+            } else {
+                for (long value : values) {
+                    columnStats.add(value, null);
+                }
+            }
+            if ( !columnStats.isDoingLossyCounting() ) {
+                columnStats.dumpCardinalitySketchIntoTopk();
+            }
+        } finally {
+            System.setOut(out);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Result result = new Result();
+        result.column = column;
+        result.parameters = parameters;
+        result.rowsPerSecond = values.length * 1e9 / elapsed;
+        result.ndvBytes = Footprint.retainedBytes(columnStats.getNDVEngine() == ColumnStats.NDVEngine.HYPERLOGLOG ?
+                                                  columnStats.getHyperLogLog() : columnStats.getCardinalitySketch());
+        result.bytes = Footprint.retainedBytes(columnStats);
+        result.ndvError = 100.0 * Math.abs(columnStats.estimateNDV() - truth.ndv) / truth.ndv;
+
+        // the estimated top k, by decreasing count
+        Stack<RowidMap> stack = columnStats.getTopk().getTopKElements();
+        List<RowidMap> estimated = new ArrayList<RowidMap>();
+        while ( !stack.empty() && estimated.size() < k ) {
+            estimated.add(stack.pop());
+        }
+
+        HashSet<String> top = new HashSet<String>(truth.top);
+        int found = 0;
+        int tiesFound = 0;
+        int inTop = 0;
+        double errorSum = 0;
+        for (RowidMap map : estimated) {
+            String value = String.valueOf(map.getObject());
+            long actual = truth.frequency(value);
+            if ( actual > truth.kthCount ) {
+                ++found;
+            } else if ( actual == truth.kthCount ) {
+                ++tiesFound;
+            }
+            if ( top.contains(value) || actual >= truth.kthCount ) {
+                ++inTop;
+            }
+            double error = actual == 0 ? 100 : 100.0 * Math.abs(map.getCount() - actual) / actual;
+            errorSum += error;
+            result.maxFrequencyError = Math.max(result.maxFrequencyError, error);
+        }
+        int aboveKth = 0;
+        for (String value : truth.top) {
+            if ( truth.frequency(value) > truth.kthCount ) {
+                ++aboveKth;
+            }
+        }
+        int wanted = truth.top.size();
+        result.recall = wanted == 0 ? 1 : (double) (found + Math.min(tiesFound, wanted - aboveKth)) / wanted;
+        result.precision = estimated.isEmpty() ? 1 : (double) inTop / estimated.size();
+        result.meanFrequencyError = estimated.isEmpty() ? 0 : errorSum / estimated.size();
+
+        columnStats.close();
+        return result;
+    }
+
+    private static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i=0; i<parts.length; ++i) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    public static void main(String[] args) {
+        int rows = 2000000;
+        int universe = 1000000;
+        int k = 100;
+        boolean strings = false;
+        int[] maxelements = { 16384 };
+        int[] precisions = { HyperLogLog.DEFAULT_PRECISION };
+        List<ColumnStats.NDVEngine> ndvEngines = Arrays.asList(ColumnStats.NDVEngine.ADAPTIVE_SAMPLING);
+        int[] depths = { TopK.COUNT_SKETCH_DEPTH };
+        int[] widths = { TopK.COUNT_SKETCH_WIDTH };
+        int[] topks = { SqlStatistics.TOPK_COUNT };
+        List<TopK.Engine> engines = Arrays.asList(TopK.Engine.values());
+        double ndvTarget = -1;
+        double recallTarget = -1;
+        double frequencyTarget = -1;
+        Pattern filter = Pattern.compile(".*");
+
+        for (int i=0; i<args.length; ++i) {
+            if ( args[i].equals("-rows") ) {
+                rows = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-universe") ) {
+                universe = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-k") ) {
+                k = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-strings") ) {
+                strings = true;
+            } else if ( args[i].equals("-ndv") ) {
+                ndvEngines = new ArrayList<ColumnStats.NDVEngine>();
+                for (String ndvEngine : args[++i].split(",")) {
+                    ndvEngines.add(ColumnStats.NDVEngine.valueOf(ndvEngine.trim()));
+                }
+            } else if ( args[i].equals("-maxelements") ) {
+                maxelements = ints(args[++i]);
+            } else if ( args[i].equals("-precision") ) {
+                precisions = ints(args[++i]);
+            } else if ( args[i].equals("-depth") ) {
+                depths = ints(args[++i]);
+            } else if ( args[i].equals("-width") ) {
+                widths = ints(args[++i]);
+            } else if ( args[i].equals("-topk") ) {
+                topks = ints(args[++i]);
+            } else if ( args[i].equals("-engine") ) {
+                engines = new ArrayList<TopK.Engine>();
+                for (String engine : args[++i].split(",")) {
+                    engines.add(TopK.Engine.valueOf(engine.trim()));
+                }
+            } else if ( args[i].equals("-ndv-error") ) {
+                ndvTarget = Double.parseDouble(args[++i]);
+            } else if ( args[i].equals("-recall") ) {
+                recallTarget = Double.parseDouble(args[++i]);
+            } else if ( args[i].equals("-freq-error") ) {
+                frequencyTarget = Double.parseDouble(args[++i]);
+            } else {
+                filter = Pattern.compile(args[i]);
+            }
+        }
+
+        List<Parameters> sweep = new ArrayList<Parameters>();
+        for (ColumnStats.NDVEngine ndvEngine : ndvEngines) {
+            for (int m : ndvEngine == ColumnStats.NDVEngine.HYPERLOGLOG ? precisions : maxelements) {
+                for (int topk : topks) {
+                    for (TopK.Engine engine : engines) {
+                        if ( engine == TopK.Engine.SPACE_SAVING ) {
+                            sweep.add(new Parameters(ndvEngine, m, engine, depths[0], widths[0], topk));
+                            continue;
+                        }
+                        for (int depth : depths) {
+                            for (int width : widths) {
+                                sweep.add(new Parameters(ndvEngine, m, engine, depth, width, topk));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        System.out.println(rows + " rows, universe " + universe + ", top " + k + (strings ? ", string keys" : ""));
+        System.out.println(HEADER);
+        Map<String, Result> cheapest = new LinkedHashMap<String, Result>();
+        boolean warm = false;
+        for (Column column : columns()) {
+            if ( !filter.matcher(column.getName()).find() ) {
+                continue;
+            }
+            long[] values = column.generate(rows, universe, new Random(SEED));
+            Truth truth = new Truth(values, universe, k);
+
+            // compile every path measured before the first measurement
+            if ( !warm ) {
+                long[] prefix = Arrays.copyOf(values, Math.min(values.length, 200000));
+                Truth prefixTruth = new Truth(prefix, universe, k);
+                for (Parameters parameters : sweep) {
+                    run(column.getName(), prefix, prefixTruth, parameters, k, strings);
+                }
+                warm = true;
+            }
+            cheapest.put(column.getName(), null);
+
+            for (Parameters parameters : sweep) {
+                Result result = run(column.getName(), values, truth, parameters, k, strings);
+                System.out.println(result);
+
+                boolean meets = (ndvTarget < 0 || result.ndvError <= ndvTarget) &&
+                                (recallTarget < 0 || result.recall >= recallTarget) &&
+                                (frequencyTarget < 0 || result.meanFrequencyError <= frequencyTarget);
+                Result best = cheapest.get(column.getName());
+                if ( meets && (best == null || result.bytes < best.bytes) ) {
+                    cheapest.put(column.getName(), result);
+                }
+            }
+        }
+
+        if ( ndvTarget >= 0 || recallTarget >= 0 || frequencyTarget >= 0 ) {
+            System.out.println();
+            System.out.println("Cheapest parameters meeting the targets:");
+            System.out.println(HEADER);
+            for (Map.Entry<String, Result> entry : cheapest.entrySet()) {
+                System.out.println(entry.getValue() == null ? String.format("%-12s none", entry.getKey()) :
+                                   entry.getValue().toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,723 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of the sketch hot paths, run the way JMH runs them: each one in
+ * its own forked JVM (so the JIT profile of one does not slow the next),
+ * warmup iterations, then timed iterations. JMH itself cannot be used, its
+ * generated code has to import the benchmarked classes and these are in the
+ * default package.
+ *
+ * Every benchmark reports
+ *
+ *   ops/s       mean and standard deviation over the timed iterations of
+ *               all the forks
+ *   B/op        bytes allocated per operation by the benchmark thread (as
+ *               JMH's gc.alloc.rate.norm), and the collections during the
+ *               timed iterations
+ *   retained    heap size of the benchmarked sketch after the run (see
+ *               Footprint)
+ *
+ * An operation is one key for add, estimate and hash (the batch variants
+ * too, so they compare with the single item ones directly), and one whole
+ * sketch for merge and serialize. Keys are longs or strings, uniform or
+ * Zipfian (see BenchmarkKeys).
+ *
+ * java -cp ... SketchBenchmark [-f forks] [-wi warmups] [-i iterations]
+ *                              [-t iteration ms] [-l] [regex]
+ *
+ * runs the benchmarks whose name matches regex (all by default); -l lists
+ * them. Run it with the JVM options to compare, e.g. -Dsketch.kernel=scalar;
+ * the forks get the same ones.
+ */
+public class SketchBenchmark {
+    public static final int BATCH_SIZE = 256;
+    public static final int[] SKETCH_WIDTHS = { 4096, 32768 };
+    public static final int[] SKETCH_ELEMENTS = { 1024, 16384 };
+    public static final int SKETCH_DEPTH = TopK.COUNT_SKETCH_DEPTH;
+
+    public enum KeyType {
+        LONG, STRING
+    }
+
+    private static int forks = 1;
+    private static int warmupIterations = 3;
+    private static int iterations = 5;
+    private static long iterationMillis = 1000;
+    private static boolean verbose = false;
+
+    // results go here so they cannot be optimized away
+    private static volatile long sink;
+    private static long measuredOps;
+
+    /**
+     * One benchmark. setup builds its state, run does some operations on it
+     * and returns how many.
+     */
+    public static abstract class Benchmark {
+        private String name;
+
+        protected Benchmark(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        protected abstract void setup();
+
+        protected abstract long run();
+
+        // what the retained size is measured of
+        protected abstract Object state();
+    }
+
+    // Benchmarks over the keys of one type and distribution, passed to the
+    // sketch BATCH_SIZE at a time by the batch variants.
+    private static abstract class KeyBenchmark extends Benchmark {
+        protected KeyType keyType;
+        protected BenchmarkKeys.Distribution distribution;
+        protected long[] longs;
+        protected String[] strings;
+        protected long[][] longBatches;
+        protected CharSequence[][] stringBatches;
+        protected long[] ones;
+        protected long[] estimates;
+
+        protected KeyBenchmark(String operation, KeyType keyType, BenchmarkKeys.Distribution distribution,
+                               String parameter) {
+            super(operation + ":" + keyType + ":" + distribution + (parameter == null ? "" : ":" + parameter));
+            this.keyType = keyType;
+            this.distribution = distribution;
+        }
+
+        @Override
+        protected void setup() {
+            if ( keyType == KeyType.LONG ) {
+                longs = BenchmarkKeys.longs(distribution);
+                longBatches = new long[longs.length / BATCH_SIZE][];
+                for (int i=0; i<longBatches.length; ++i) {
+                    longBatches[i] = Arrays.copyOfRange(longs, i * BATCH_SIZE, (i + 1) * BATCH_SIZE);
+                }
+            } else {
+                strings = BenchmarkKeys.strings(distribution);
+                stringBatches = new CharSequence[strings.length / BATCH_SIZE][];
+                for (int i=0; i<stringBatches.length; ++i) {
+                    stringBatches[i] = Arrays.copyOfRange(strings, i * BATCH_SIZE, (i + 1) * BATCH_SIZE,
+                                                          CharSequence[].class);
+                }
+            }
+            ones = new long[BATCH_SIZE];
+            Arrays.fill(ones, 1);
+            estimates = new long[BATCH_SIZE];
+        }
+    }
+
+    public static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        for (final KeyType keyType : KeyType.values()) {
+            benchmarks.add(new KeyBenchmark("MurmurHash.hash", keyType, BenchmarkKeys.Distribution.UNIFORM, null) {
+                protected long run() {
+                    long result = 0;
+                    if ( keyType == KeyType.LONG ) {
+                        for (long key : longs) {
+                            result += MurmurHash.hashLong(key);
+                        }
+                    } else {
+                        for (String key : strings) {
+                            result += MurmurHash.hash(key, 0);
+                        }
+                    }
+                    sink += result;
+                    return BenchmarkKeys.KEYS;
+                }
+
+                protected Object state() {
+                    return null;
+                }
+            });
+            benchmarks.add(new KeyBenchmark("MurmurHash.hash64", keyType, BenchmarkKeys.Distribution.UNIFORM, null) {
+                protected long run() {
+                    long result = 0;
+                    if ( keyType == KeyType.LONG ) {
+                        for (long key : longs) {
+                            result += MurmurHash.hash64(key);
+                        }
+                    } else {
+                        for (String key : strings) {
+                            result += MurmurHash.hash64(key);
+                        }
+                    }
+                    sink += result;
+                    return BenchmarkKeys.KEYS;
+                }
+
+                protected Object state() {
+                    return null;
+                }
+            });
+
+            for (final BenchmarkKeys.Distribution distribution : BenchmarkKeys.Distribution.values()) {
+                for (final int maxelements : SKETCH_ELEMENTS) {
+                    benchmarks.add(new KeyBenchmark("CardinalitySketch.add", keyType, distribution,
+                                                    "maxelements=" + maxelements) {
+                        private CardinalitySketch sketch;
+
+                        protected void setup() {
+                            super.setup();
+                            sketch = new CardinalitySketch(maxelements);
+                        }
+
+                        protected long run() {
+                            if ( keyType == KeyType.LONG ) {
+                                for (long key : longs) {
+                                    sketch.add(key, null);
+                                }
+                            } else {
+                                for (String key : strings) {
+                                    sketch.add(key, null);
+                                }
+                            }
+                            return BenchmarkKeys.KEYS;
+                        }
+
+                        protected Object state() {
+                            return sketch;
+                        }
+                    });
+                }
+
+                for (final int width : SKETCH_WIDTHS) {
+                    addFrequencySketchBenchmarks(benchmarks, keyType, distribution, width);
+                }
+
+                for (final TopK.Engine engine : TopK.Engine.values()) {
+                    benchmarks.add(new KeyBenchmark("TopK.add", keyType, distribution, "engine=" + engine) {
+                        private TopK topk;
+
+                        protected void setup() {
+                            super.setup();
+                            topk = new TopK(SqlStatistics.TOPK_COUNT, engine, SKETCH_DEPTH, TopK.COUNT_SKETCH_WIDTH, 1);
+                        }
+
+                        protected long run() {
+                            if ( keyType == KeyType.LONG ) {
+                                for (long key : longs) {
+                                    topk.add(key, 1, null);
+                                }
+                            } else {
+                                for (String key : strings) {
+                                    topk.add(key, 1, null);
+                                }
+                            }
+                            return BenchmarkKeys.KEYS;
+                        }
+
+                        protected Object state() {
+                            return topk;
+                        }
+                    });
+                }
+            }
+        }
+
+        for (final int width : SKETCH_WIDTHS) {
+            benchmarks.add(new KeyBenchmark("CountMinSketch.merge", KeyType.LONG, BenchmarkKeys.Distribution.ZIPF,
+                                            "width=" + width) {
+                private CountMinSketch[] sketches;
+
+                protected void setup() {
+                    super.setup();
+                    sketches = new CountMinSketch[2];
+                    for (int i=0; i<sketches.length; ++i) {
+                        sketches[i] = new CountMinSketch(SKETCH_DEPTH, width, 1);
+                        for (long[] batch : longBatches) {
+                            sketches[i].addAll(batch, ones, BATCH_SIZE);
+                        }
+                    }
+                }
+
+                protected long run() {
+                    for (int i=0; i<16; ++i) {
+                        sink += CountMinSketch.merge(sketches).size();
+                    }
+                    return 16;
+                }
+
+                protected Object state() {
+                    return sketches[0];
+                }
+            });
+            benchmarks.add(new KeyBenchmark("CountMinSketch.serialize", KeyType.LONG, BenchmarkKeys.Distribution.ZIPF,
+                                            "width=" + width) {
+                private CountMinSketch sketch;
+
+                protected void setup() {
+                    super.setup();
+                    sketch = new CountMinSketch(SKETCH_DEPTH, width, 1);
+                    for (long[] batch : longBatches) {
+                        sketch.addAll(batch, ones, BATCH_SIZE);
+                    }
+                }
+
+                protected long run() {
+                    for (int i=0; i<16; ++i) {
+                        sink += CountMinSketch.serialize(sketch).length;
+                    }
+                    return 16;
+                }
+
+                protected Object state() {
+                    return sketch;
+                }
+            });
+        }
+
+        return benchmarks;
+    }
+
+    // add, addAll, estimateCount and estimateAll of CountSketch and
+    // CountMinSketch; the estimates are of a sketch filled with the same keys
+    private static void addFrequencySketchBenchmarks(List<Benchmark> benchmarks, final KeyType keyType,
+                                                     BenchmarkKeys.Distribution distribution, final int width) {
+        String parameter = "width=" + width;
+
+        benchmarks.add(new KeyBenchmark("CountSketch.add", keyType, distribution, parameter) {
+            private CountSketch sketch;
+
+            protected void setup() {
+                super.setup();
+                sketch = new CountSketch(SKETCH_DEPTH, width, 1);
+            }
+
+            protected long run() {
+                if ( keyType == KeyType.LONG ) {
+                    for (long key : longs) {
+                        sketch.add(key, 1);
+                    }
+                } else {
+                    for (String key : strings) {
+                        sketch.add(key, 1);
+                    }
+                }
+                return BenchmarkKeys.KEYS;
+            }
+
+            protected Object state() {
+                return sketch;
+            }
+        });
+        benchmarks.add(new KeyBenchmark("CountSketch.addAll", keyType, distribution, parameter) {
+            private CountSketch sketch;
+
+            protected void setup() {
+                super.setup();
+                sketch = new CountSketch(SKETCH_DEPTH, width, 1);
+            }
+
+            protected long run() {
+                if ( keyType == KeyType.LONG ) {
+                    for (long[] batch : longBatches) {
+                        sketch.addAll(batch, ones, BATCH_SIZE);
+                    }
+                } else {
+                    for (CharSequence[] batch : stringBatches) {
+                        sketch.addAll(batch, BATCH_SIZE);
+                    }
+                }
+                return BenchmarkKeys.KEYS;
+            }
+
+            protected Object state() {
+                return sketch;
+            }
+        });
+        benchmarks.add(new KeyBenchmark("CountSketch.estimateCount", keyType, distribution, parameter) {
+            private CountSketch sketch;
+
+            protected void setup() {
+                super.setup();
+                sketch = new CountSketch(SKETCH_DEPTH, width, 1);
+                fill(this, sketch, null);
+            }
+
+            protected long run() {
+                long result = 0;
+                if ( keyType == KeyType.LONG ) {
+                    for (long key : longs) {
+                        result += sketch.estimateCount(key);
+                    }
+                } else {
+                    for (String key : strings) {
+                        result += sketch.estimateCount(key);
+                    }
+                }
+                sink += result;
+                return BenchmarkKeys.KEYS;
+            }
+
+            protected Object state() {
+                return sketch;
+            }
+        });
+        benchmarks.add(new KeyBenchmark("CountSketch.estimateAll", keyType, distribution, parameter) {
+            private CountSketch sketch;
+
+            protected void setup() {
+                super.setup();
+                sketch = new CountSketch(SKETCH_DEPTH, width, 1);
+                fill(this, sketch, null);
+            }
+
+            protected long run() {
+                long result = 0;
+                if ( keyType == KeyType.LONG ) {
+                    for (long[] batch : longBatches) {
+                        sketch.estimateAll(batch, BATCH_SIZE, estimates);
+                        result += estimates[0];
+                    }
+                } else {
+                    for (CharSequence[] batch : stringBatches) {
+                        sketch.estimateAll(batch, BATCH_SIZE, estimates);
+                        result += estimates[0];
+                    }
+                }
+                sink += result;
+                return BenchmarkKeys.KEYS;
+            }
+
+            protected Object state() {
+                return sketch;
+            }
+        });
+
+        benchmarks.add(new KeyBenchmark("CountMinSketch.add", keyType, distribution, parameter) {
+            private CountMinSketch sketch;
+
+            protected void setup() {
+                super.setup();
+                sketch = new CountMinSketch(SKETCH_DEPTH, width, 1);
+            }
+
+            protected long run() {
+                if ( keyType == KeyType.LONG ) {
+                    for (long key : longs) {
+                        sketch.add(key, 1);
+                    }
+                } else {
+                    for (String key : strings) {
+                        sketch.add(key, 1);
+                    }
+                }
+                return BenchmarkKeys.KEYS;
+            }
+
+            protected Object state() {
+                return sketch;
+            }
+        });
+        benchmarks.add(new KeyBenchmark("CountMinSketch.addAll", keyType, distribution, parameter) {
+            private CountMinSketch sketch;
+
+            protected void setup() {
+                super.setup();
+                sketch = new CountMinSketch(SKETCH_DEPTH, width, 1);
+            }
+
+            protected long run() {
+                if ( keyType == KeyType.LONG ) {
+                    for (long[] batch : longBatches) {
+                        sketch.addAll(batch, ones, BATCH_SIZE);
+                    }
+                } else {
+                    for (CharSequence[] batch : stringBatches) {
+                        sketch.addAll(batch, BATCH_SIZE);
+                    }
+                }
+                return BenchmarkKeys.KEYS;
+            }
+
+            protected Object state() {
+                return sketch;
+            }
+        });
+        benchmarks.add(new KeyBenchmark("CountMinSketch.estimateCount", keyType, distribution, parameter) {
+            private CountMinSketch sketch;
+
+            protected void setup() {
+                super.setup();
+                sketch = new CountMinSketch(SKETCH_DEPTH, width, 1);
+                fill(this, null, sketch);
+            }
+
+            protected long run() {
+                long result = 0;
+                if ( keyType == KeyType.LONG ) {
+                    for (long key : longs) {
+                        result += sketch.estimateCount(key);
+                    }
+                } else {
+                    for (String key : strings) {
+                        result += sketch.estimateCount(key);
+                    }
+                }
+                sink += result;
+                return BenchmarkKeys.KEYS;
+            }
+
+            protected Object state() {
+                return sketch;
+            }
+        });
+        benchmarks.add(new KeyBenchmark("CountMinSketch.estimateAll", keyType, distribution, parameter) {
+            private CountMinSketch sketch;
+
+            protected void setup() {
+                super.setup();
+                sketch = new CountMinSketch(SKETCH_DEPTH, width, 1);
+                fill(this, null, sketch);
+            }
+
+            protected long run() {
+                long result = 0;
+                if ( keyType == KeyType.LONG ) {
+                    for (long[] batch : longBatches) {
+                        sketch.estimateAll(batch, BATCH_SIZE, estimates);
+                        result += estimates[0];
+                    }
+                } else {
+                    for (CharSequence[] batch : stringBatches) {
+                        sketch.estimateAll(batch, BATCH_SIZE, estimates);
+                        result += estimates[0];
+                    }
+                }
+                sink += result;
+                return BenchmarkKeys.KEYS;
+            }
+
+            protected Object state() {
+                return sketch;
+            }
+        });
+    }
+
+    private static void fill(KeyBenchmark keys, CountSketch countSketch, CountMinSketch countMinSketch) {
+        if ( keys.keyType == KeyType.LONG ) {
+            for (long[] batch : keys.longBatches) {
+                if ( countSketch != null ) {
+                    countSketch.addAll(batch, keys.ones, BATCH_SIZE);
+                } else {
+                    countMinSketch.addAll(batch, keys.ones, BATCH_SIZE);
+                }
+            }
+        } else {
+            for (CharSequence[] batch : keys.stringBatches) {
+                if ( countSketch != null ) {
+                    countSketch.addAll(batch, BATCH_SIZE);
+                } else {
+                    countMinSketch.addAll(batch, BATCH_SIZE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs one benchmark in this JVM and prints its RESULT line for the
+     * parent: the ops/s of each timed iteration, bytes allocated per
+     * operation, collections and their time, and the retained size.
+     */
+    private static void runHere(Benchmark benchmark) {
+        benchmark.setup();
+
+        for (int i=0; i<warmupIterations; ++i) {
+            System.out.printf("  warmup    %d: %,.0f ops/s\n", i + 1, iteration(benchmark));
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long[] gcBefore = gcCountAndMillis();
+        long opsBefore = measuredOps;
+        StringBuilder scores = new StringBuilder();
+        for (int i=0; i<iterations; ++i) {
+            double score = iteration(benchmark);
+            System.out.printf("  iteration %d: %,.0f ops/s\n", i + 1, score);
+            scores.append(i == 0 ? "" : ",").append(score);
+        }
+        long ops = measuredOps - opsBefore;
+        long allocatedAfter = allocatedBytes();
+        long[] gcAfter = gcCountAndMillis();
+
+        double bytesPerOp = allocatedBefore < 0 ? -1 : (double) (allocatedAfter - allocatedBefore) / ops;
+        long retained = benchmark.state() == null ? 0 : Footprint.retainedBytes(benchmark.state());
+        System.out.println("RESULT\t" + benchmark.getName() + "\t" + scores + "\t" + bytesPerOp + "\t" +
+                           (gcAfter[0] - gcBefore[0]) + "\t" + (gcAfter[1] - gcBefore[1]) + "\t" + retained);
+    }
+
+    private static double iteration(Benchmark benchmark) {
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + iterationMillis * 1000000;
+        long now;
+        do {
+            ops += benchmark.run();
+            now = System.nanoTime();
+        } while ( now < end );
+        measuredOps += ops;
+        return ops * 1e9 / (now - start);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if ( threads instanceof com.sun.management.ThreadMXBean ) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long[] gcCountAndMillis() {
+        long[] result = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result[0] += Math.max(0, gc.getCollectionCount());
+            result[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return result;
+    }
+
+    // Runs the benchmark in forks JVMs like this one and sums up their RESULT
+    // lines; their other output is only shown with -v.
+    private static void runForked(Benchmark benchmark, List<String> results) throws IOException, InterruptedException {
+        List<Double> scores = new ArrayList<Double>();
+        double bytesPerOp = 0;
+        long gcs = 0;
+        long gcMillis = 0;
+        long retained = 0;
+
+        for (int fork=0; fork<forks; ++fork) {
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(SketchBenchmark.class.getName());
+            command.addAll(Arrays.asList("-f", "0", "-wi", Integer.toString(warmupIterations),
+                                         "-i", Integer.toString(iterations), "-t", Long.toString(iterationMillis),
+                                         "^" + Pattern.quote(benchmark.getName()) + "$"));
+
+            System.out.println("# fork " + (fork + 1) + " of " + forks);
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                if ( line.startsWith("RESULT\t") ) {
+                    String[] fields = line.split("\t");
+                    for (String score : fields[2].split(",")) {
+                        scores.add(Double.parseDouble(score));
+                    }
+                    bytesPerOp += Double.parseDouble(fields[3]) / forks;
+                    gcs += Long.parseLong(fields[4]);
+                    gcMillis += Long.parseLong(fields[5]);
+                    retained = Long.parseLong(fields[6]);
+                } else if ( verbose || line.startsWith("  ") || line.contains("Exception") ) {
+                    System.out.println(line);
+                }
+            }
+            if ( process.waitFor() != 0 ) {
+                System.out.println("# fork failed");
+            }
+        }
+
+        if ( scores.isEmpty() ) {
+            results.add(String.format("%-60s %s", benchmark.getName(), "failed"));
+            return;
+        }
+        double mean = 0;
+        for (double score : scores) {
+            mean += score / scores.size();
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / Math.max(1, scores.size() - 1);
+        }
+        results.add(String.format("%-60s %,16.0f %,14.0f %10.2f %6d %8d %,14d", benchmark.getName(), mean,
+                                  Math.sqrt(variance), bytesPerOp, gcs, gcMillis, retained));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Pattern filter = Pattern.compile(".*");
+        boolean list = false;
+
+        for (int i=0; i<args.length; ++i) {
+            if ( args[i].equals("-f") ) {
+                forks = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-wi") ) {
+                warmupIterations = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-i") ) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if ( args[i].equals("-t") ) {
+                iterationMillis = Long.parseLong(args[++i]);
+            } else if ( args[i].equals("-l") ) {
+                list = true;
+            } else if ( args[i].equals("-v") ) {
+                verbose = true;
+            } else {
+                filter = Pattern.compile(args[i]);
+            }
+        }
+
+        List<Benchmark> selected = new ArrayList<Benchmark>();
+        for (Benchmark benchmark : benchmarks()) {
+            if ( filter.matcher(benchmark.getName()).find() ) {
+                selected.add(benchmark);
+            }
+        }
+
+        if ( list ) {
+            for (Benchmark benchmark : selected) {
+                System.out.println(benchmark.getName());
+            }
+            return;
+        }
+
+        if ( forks == 0 ) {
+            for (Benchmark benchmark : selected) {
+                System.out.println("# " + benchmark.getName());
+                runHere(benchmark);
+            }
+            return;
+        }
+
+        List<String> results = new ArrayList<String>();
+        for (Benchmark benchmark : selected) {
+            System.out.println("# " + benchmark.getName());
+            runForked(benchmark, results);
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-60s %16s %14s %10s %6s %8s %14s", "Benchmark", "ops/s", "stdev",
+                                         "B/op", "gcs", "gc ms", "retained B"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+}
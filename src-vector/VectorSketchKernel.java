@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SketchKernel on the incubating Vector API (JDK 16+). Needs
+ * --add-modules jdk.incubator.vector both to compile and to run; without it
+ * SketchKernel.getDefault() falls back to the scalar loops.
+ *
+ * Only the batch loops are vectorized, with one item per lane: a row's
+ * buckets and signs for LONGS.length() items are computed at once, and the
+ * min/median over the rows is a chain of lanewise min/max between whole rows.
+ * The single item loops stay scalar; with a depth of 8 or so, one row per
+ * lane was slower than the scalar loop.
+ */
+public class VectorSketchKernel extends SketchKernel {
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    // same lane count as LONGS, for narrowing bucket offsets to int
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(LONGS.vectorBitSize() / 2));
+
+    @Override
+    public String getName() {
+        return "vector " + LONGS.vectorBitSize() + " bit";
+    }
+
+    private static LongVector reduce(LongVector hash) {
+        return hash.add(hash.lanewise(VectorOperators.ASHR, 32)).and(PRIME_MODULUS);
+    }
+
+    private static IntVector toInts(LongVector v) {
+        return (IntVector) v.convertShape(VectorOperators.L2I, INTS, 0);
+    }
+
+    @Override
+    public void hashItems(long a, long b, long[] items, int n, int base, int mask, int[] offsets, int from) {
+        int k = 0;
+        for (int bound=LONGS.loopBound(n); k<bound; k += LONGS.length()) {
+            LongVector hash = LongVector.fromArray(LONGS, items, k).mul(a).add(b);
+            toInts(reduce(hash).and(mask).add(base)).intoArray(offsets, from + k);
+        }
+        for (; k<n; ++k) {
+            offsets[from + k] = base + ((int) reduce(a * items[k] + b) & mask);
+        }
+    }
+
+    @Override
+    public void signItems(long a, long b, long[] items, int n, long[] signs, int from) {
+        int k = 0;
+        for (int bound=LONGS.loopBound(n); k<bound; k += LONGS.length()) {
+            LongVector hash = LongVector.fromArray(LONGS, items, k).mul(a).add(b);
+            reduce(hash).and(1).mul(-2).add(1).intoArray(signs, from + k);
+        }
+        for (; k<n; ++k) {
+            signs[from + k] = 1 - 2 * (reduce(a * items[k] + b) & 1);
+        }
+    }
+
+    @Override
+    public void gather(LongTable table, int[] offsets, long[] signs, int length, long[] values) {
+        if ( table.isOffHeap() ) {
+            super.gather(table, offsets, signs, length, values);
+            return;
+        }
+
+        long[] array = table.array();
+        int j = 0;
+        for (int bound=LONGS.loopBound(length); j<bound; j += LONGS.length()) {
+            LongVector cells = LongVector.fromArray(LONGS, array, 0, offsets, j);
+            if ( signs != null ) {
+                cells = cells.mul(LongVector.fromArray(LONGS, signs, j));
+            }
+            cells.intoArray(values, j);
+        }
+        for (; j<length; ++j) {
+            values[j] = signs == null ? array[offsets[j]] : array[offsets[j]] * signs[j];
+        }
+    }
+
+    @Override
+    public void minRows(long[] values, int rows, int n, long[] out) {
+        int k = 0;
+        for (int bound=LONGS.loopBound(n); k<bound; k += LONGS.length()) {
+            LongVector min = LongVector.fromArray(LONGS, values, k);
+            for (int i=1; i<rows; ++i) {
+                min = min.min(LongVector.fromArray(LONGS, values, i * n + k));
+            }
+            min.intoArray(out, k);
+        }
+        for (; k<n; ++k) {
+            long min = values[k];
+            for (int i=1; i<rows; ++i) {
+                min = Math.min(min, values[i * n + k]);
+            }
+            out[k] = min;
+        }
+    }
+
+    @Override
+    public void medianRows(MedianNetwork network, long[] values, int n, long[] out) {
+        int[] c = network.getComparators();
+        int bound = LONGS.loopBound(n);
+        for (int p=0; p<c.length; p += 2) {
+            int lo = c[p] * n;
+            int hi = c[p + 1] * n;
+            int k = 0;
+            for (; k<bound; k += LONGS.length()) {
+                LongVector x = LongVector.fromArray(LONGS, values, lo + k);
+                LongVector y = LongVector.fromArray(LONGS, values, hi + k);
+                x.min(y).intoArray(values, lo + k);
+                x.max(y).intoArray(values, hi + k);
+            }
+            for (; k<n; ++k) {
+                long x = values[lo + k];
+                long y = values[hi + k];
+                values[lo + k] = Math.min(x, y);
+                values[hi + k] = Math.max(x, y);
+            }
+        }
+        medianOfSorted(network.getSize(), values, n, out);
+    }
+}
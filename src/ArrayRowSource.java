@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Rows held in memory, one array per column: long[] or int[] (LONG),
+ * double[] (DOUBLE), or an Object[] whose ingest type is that of its element
+ * class (see ColumnStats.IngestType.forColumn): Long[] or Integer[] are
+ * LONG, Double[] DOUBLE, Timestamp[] or java.sql.Date[] TIMESTAMP, anything
+ * else, Float[] included, STRING. Nulls are null elements of the object arrays. Each row is
+ * located by its index, or by its element of keys (withKeys).
+ */
+public class ArrayRowSource implements RowSource {
+    private String[] labels;
+    private Object[] columns;
+    private Object[] keys;
+    private String[] classNames;
+    private ColumnStats.IngestType[] ingestTypes;
+    private int rows;
+    private int row;
+
+    public ArrayRowSource(String[] labels, Object... columns) {
+        this(labels, columns, null);
+    }
+
+    /**
+     * Rows located by their element of keys rather than by their index.
+     */
+    public static ArrayRowSource withKeys(String[] labels, Object[] keys, Object... columns) {
+        return new ArrayRowSource(labels, columns, keys);
+    }
+
+    private ArrayRowSource(String[] labels, Object[] columns, Object[] keys) {
+        if ( labels.length != columns.length ) {
+            throw new IllegalArgumentException(labels.length + " labels for " + columns.length + " columns");
+        }
+        this.labels = labels;
+        this.columns = columns;
+        this.keys = keys;
+        this.classNames = new String[columns.length];
+        this.ingestTypes = new ColumnStats.IngestType[columns.length];
+        this.rows = keys == null ? -1 : keys.length;
+
+        for (int i=0; i<columns.length; ++i) {
+            Object column = columns[i];
+            int length;
+            if ( column instanceof long[] ) {
+                classNames[i] = "java.lang.Long";
+                length = ((long[]) column).length;
+            } else if ( column instanceof int[] ) {
+                classNames[i] = "java.lang.Integer";
+                length = ((int[]) column).length;
+            } else if ( column instanceof double[] ) {
+                classNames[i] = "java.lang.Double";
+                length = ((double[]) column).length;
+            } else if ( column instanceof Object[] ) {
+                classNames[i] = column.getClass().getComponentType().getName();
+                length = ((Object[]) column).length;
+            } else {
+                throw new IllegalArgumentException("Column " + labels[i] + " is not an array");
+            }
+            ingestTypes[i] = ColumnStats.IngestType.forColumn(classNames[i], 0, 0);
+
+            if ( rows >= 0 && length != rows ) {
+                throw new IllegalArgumentException("Column " + labels[i] + " has " + length + " rows, not " + rows);
+            }
+            rows = length;
+        }
+        this.row = 0;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getColumnLabel(int column) {
+        return labels[column];
+    }
+
+    public String getColumnClassName(int column) {
+        return classNames[column];
+    }
+
+    public ColumnStats.IngestType getIngestType(int column) {
+        return ingestTypes[column];
+    }
+
+    public boolean next(RowBatch batch) {
+        int start = batch.getSize();
+
+        while ( !batch.isFull() && row < rows ) {
+            batch.setRowid(keys == null ? new RowLocator(row) : new RowLocator(String.valueOf(keys[row])));
+            for (int i=0; i<columns.length; ++i) {
+                Object column = columns[i];
+                if ( column instanceof long[] ) {
+                    batch.setLong(i, ((long[]) column)[row]);
+                } else if ( column instanceof int[] ) {
+                    batch.setLong(i, ((int[]) column)[row]);
+                } else if ( column instanceof double[] ) {
+                    batch.setLong(i, Double.doubleToRawLongBits(((double[]) column)[row]));
+                } else {
+                    setValue(batch, i, ((Object[]) column)[row]);
+                }
+            }
+            batch.nextRow();
+            ++row;
+        }
+        return batch.getSize() > start;
+    }
+
+    // Boxed numbers and dates are stored as the ingest type of their column
+    // reads them.
+    private void setValue(RowBatch batch, int column, Object value) {
+        if ( value == null ) {
+            batch.setNull(column);
+            return;
+        }
+
+        switch ( ingestTypes[column] ) {
+            case LONG:
+                batch.setLong(column, ((Number) value).longValue());
+                break;
+            case DOUBLE:
+                batch.setLong(column, Double.doubleToRawLongBits(((Number) value).doubleValue()));
+                break;
+            case TIMESTAMP:
+                batch.setValue(column, value instanceof Timestamp ? value
+                                                                  : new Timestamp(((Date) value).getTime()));
+                break;
+            default:
+                batch.setValue(column, value);
+        }
+    }
+
+    public void close() {
+    }
+}
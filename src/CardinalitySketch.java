@@ -12,8 +12,10 @@
  * limitations under the License.
  */
 
-import oracle.sql.ROWID;
-
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.RowId;
+import java.sql.Timestamp;
 import java.util.*;
 
 /**
@@ -24,27 +26,26 @@ public class CardinalitySketch {
     private static final long HASH_SIZE = 64;
     private static final int MAX_ELEMENTS = 16384;
     private static final long MEGABYTE = 1024L * 1024L;
+    private static final int NIL = -1;
 
-    public class Node {
+    /**
+     * Snapshot of one sketch entry, as returned by getFrequencies.
+     */
+    public static class Node {
         private long hash;
-        private Node[] next;
-        private Node[] previous;
         private long frequency;
         private String value;
-        private ROWID rowid;
+        private RowId rowid;
 
-        public Node(long hash, String value, ROWID rowid) {
+        public Node(long hash, String value, RowId rowid, long frequency) {
             this.hash = hash;
-            this.next = new Node[64];
-            this.previous = new Node[64];
-            this.frequency = 1;
+            this.frequency = frequency;
             this.value = value;
             this.rowid = rowid;
+        }
 
-            for (int i=0; i<64; ++i) {
-                next[i] = null;
-                previous[i] = null;
-            }
+        public long getHash() {
+            return hash;
         }
 
         public long getFrequency() {
@@ -63,43 +64,130 @@ public class CardinalitySketch {
             return this.value;
         }
 
-        public ROWID getRowid() {
+        public RowId getRowid() {
             return this.rowid;
         }
     }
 
-    private class NodeComparator implements Comparator<Node> {
+    private static class NodeComparator implements Comparator<Node> {
         public int compare(Node n1, Node n2) {
             return (int)(n2.getFrequency() - n1.getFrequency());
         }
     }
 
+    /**
+     * Estimators of the NDV of a whole column from a sketch of a random
+     * sample of its rows (see estimateNDV(long, long, NDVEstimator)).
+     *
+     * GEE is Charikar et al.'s guaranteed-error estimator: every value seen
+     * more than once is counted once, every singleton sqrt(N/n) times. Its
+     * error ratio is bounded by about sqrt(N/n) whatever the distribution.
+     *
+     * HAAS_STOKES is Haas and Stokes' stabilized smoothed jackknife (Duj2a):
+     * values seen more than HAAS_STOKES_CUTOFF times are counted once and set
+     * aside, the rest are scaled up according to the number of singletons and
+     * their estimated skew. Usually closer than GEE on low and moderate skew.
+     */
+    public enum NDVEstimator {
+        GEE, HAAS_STOKES
+    }
+
+    private static final int HAAS_STOKES_CUTOFF = 50;
+
+    /**
+     * A scaled up NDV with its bounds. The bounds are the range the NDV can
+     * have given the frequencies seen, from every singleton being the only row
+     * of its value to every singleton standing for N/n values, widened by two
+     * standard errors of the sketch's own hash sampling once it has split.
+     */
+    public static class SampleEstimate {
+        private long ndv;
+        private long lowerBound;
+        private long upperBound;
+
+        public SampleEstimate(long ndv, long lowerBound, long upperBound) {
+            this.ndv = ndv;
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+
+        public long getNDV() {
+            return ndv;
+        }
+
+        public long getLowerBound() {
+            return lowerBound;
+        }
+
+        public long getUpperBound() {
+            return upperBound;
+        }
+
+        public String toString() {
+            return ndv + " [" + lowerBound + ", " + upperBound + "]";
+        }
+    }
+
     public static class Synopsis {
         private int split;
-        private Set<Long> synopsis;
+        private long[] synopsis;
         private long ndv;
 
-        public Synopsis(Set<Long> synopsis, int split) {
+        public Synopsis(long[] synopsis, int split) {
             this.split = split;
             this.synopsis = synopsis;
-            this.ndv = synopsis.size() * (1L << split);
+            this.ndv = synopsis.length * (1L << split);
+        }
+
+        public Synopsis(Set<Long> synopsis, int split) {
+            this(toArray(synopsis), split);
+        }
+
+        private static long[] toArray(Set<Long> set) {
+            long[] array = new long[set.size()];
+            int i = 0;
+            for (Long value : set) {
+                array[i++] = value;
+            }
+            return array;
+        }
+
+        public int getSplit() {
+            return split;
+        }
+
+        public long estimateNDV() {
+            return ndv;
+        }
+
+        public long[] getHashes() {
+            return synopsis;
         }
 
         public String toString() {
             StringBuffer stringBuffer = new StringBuffer();
-            for (Long value: synopsis) {
+            for (long value: synopsis) {
                 stringBuffer.append(String.format("%" + HASH_SIZE + "s\n", Long.toBinaryString(value)).replace(' ', '0'));
             }
 
-            stringBuffer.append("Size: " + synopsis.size() + " Split: " + split);
+            stringBuffer.append("Size: " + synopsis.length + " Split: " + split);
 
             return stringBuffer.toString();
         }
     }
 
-    private Node[] listsHead;
-    private Node[] listsTail;
-    private HashMap<Long, Node> sketchMap;
+    // Entries are kept in parallel arrays indexed by slot. A split evicts every
+    // hash with exactly split-1 leading zeros, so the slots are chained per
+    // level (number of leading zeros) through nextInLevel, and a split just
+    // unlinks one level. Free slots are chained through nextInLevel as well.
+    private long[] hashes;
+    private long[] frequencies;
+    private String[] values;
+    private RowId[] rowids;
+    private int[] nextInLevel;
+    private int[] levelHead;
+    private int freeSlot;
+    private LongIntHashMap sketchMap;
     private int size;
     private int split;
     private long splitMask;
@@ -110,70 +198,67 @@ public class CardinalitySketch {
     }
 
     public CardinalitySketch(int maxelements) {
-        this.listsHead = new Node[64];
-        this.listsTail = new Node[64];
+        int capacity = maxelements + 1;
+        this.hashes = new long[capacity];
+        this.frequencies = new long[capacity];
+        this.values = new String[capacity];
+        this.rowids = new RowId[capacity];
+        this.nextInLevel = new int[capacity];
+        this.levelHead = new int[(int) HASH_SIZE + 1];
         this.size = 0;
         this.split = 0;
         this.splitMask = 0;
         this.maxelements = maxelements;
-        this.sketchMap = new HashMap<Long, Node>();
-        for (int i=0; i<HASH_SIZE; ++i) {
-            this.listsHead[i] = null;
-            this.listsTail[i] = null;
+        this.sketchMap = new LongIntHashMap(capacity);
+
+        Arrays.fill(levelHead, NIL);
+        for (int i=0; i<capacity; ++i) {
+            nextInLevel[i] = i + 1;
         }
+        nextInLevel[capacity - 1] = NIL;
+        this.freeSlot = 0;
     }
 
     public int getMaxelements() {
         return maxelements;
     }
 
+    /**
+     * Raises the split of an empty sketch, when restoring a stored one.
+     */
+    void restoreSplit(int split) {
+        while ( this.split < split ) {
+            incrementSplit();
+        }
+    }
+
     private void incrementSplit() {
         ++this.split;
         splitMask = splitMask | ( 1L << (HASH_SIZE - this.split) );
     }
 
     private void evictNodesOnSplit() {
-        int splitArrayIndex = this.split - 1;
+        int level = this.split - 1;
         System.out.println("####################################");
         printMemoryUsage();
-        System.out.println("Splitting for: " + splitArrayIndex + " size: " + size);
+        System.out.println("Splitting for: " + level + " size: " + size);
         System.out.println("Split mask " + Long.toBinaryString(splitMask));
 
-        Node node = this.listsHead[splitArrayIndex];
-
-        while ( node != null ) {
-            for (int i=0; i<HASH_SIZE; ++i) {
-                if ( i != splitArrayIndex ) {
-                    Node previousNode = node.previous[i];
-                    Node nextNode = node.next[i];
-                    if ( previousNode != null ) {
-                        previousNode.next[i] = nextNode;
-                        if ( nextNode == null )
-                            listsTail[i] = previousNode;
-                    }
-
-                    if ( nextNode != null ) {
-                        nextNode.previous[i] = previousNode;
-                        if ( previousNode == null )
-                            listsHead[i] = nextNode;
-                    }
-                }
-            }
-
-            Node nextNode = node.next[splitArrayIndex];
-
-            if ( nextNode != null ) {
-                node.next[splitArrayIndex] = null;
-                nextNode.previous[splitArrayIndex] = null;
-            }
+        int slot = levelHead[level];
 
-            sketchMap.remove(node.hash);
+        while ( slot != NIL ) {
+            int next = nextInLevel[slot];
+            sketchMap.remove(hashes[slot]);
+            values[slot] = null;
+            rowids[slot] = null;
+            nextInLevel[slot] = freeSlot;
+            freeSlot = slot;
             --size;
-            node = nextNode;
+            slot = next;
         }
 
-        listsHead[splitArrayIndex] = null;
-        System.out.println("Split done for: " + splitArrayIndex + " size: " + size);
+        levelHead[level] = NIL;
+        System.out.println("Split done for: " + level + " size: " + size);
         printMemoryUsage();
         System.out.println("####################################");
         System.out.println();
@@ -184,14 +269,24 @@ public class CardinalitySketch {
         evictNodesOnSplit();
     }
 
-    private boolean belongsInSketch(long hash) {
-        if ( !sketchMap.containsKey(hash) && (hash & this.splitMask) == 0  ) {
-            return true;
-        } else {
-            if ( sketchMap.containsKey(hash) ) {
-                sketchMap.get(hash).incrementFrequency();
-            }
-            return false;
+    private void insert(int notFound, long hash, String value, RowId rowid, long frequency) {
+        int slot = freeSlot;
+        int level = Long.numberOfLeadingZeros(hash);
+        freeSlot = nextInLevel[slot];
+
+        hashes[slot] = hash;
+        frequencies[slot] = frequency;
+        values[slot] = value;
+        rowids[slot] = rowid;
+        nextInLevel[slot] = levelHead[level];
+        levelHead[level] = slot;
+        sketchMap.insertAt(notFound, hash, slot);
+        ++size;
+
+        // A split can evict nothing when its level is empty, keep going until
+        // there is room again so the arrays never overflow.
+        while ( size > maxelements ) {
+            splitSketch();
         }
     }
 
@@ -201,16 +296,12 @@ public class CardinalitySketch {
 
     public int getSplit() { return this.split; }
 
-    public void printSketch(int bit) {
-        for ( int i=0; i<listsHead.length; ++i ) {
-            if ( bit == -1 || bit == i) {
-                System.out.println("List for bit " + i);
-                Node node = listsHead[i];
-                if ( node != null ) {
-                    while ( node != null ) {
-                        System.out.println("  " + Long.toBinaryString(node.hash) + " (" + node.hash + ")");
-                        node = node.next[i];
-                    }
+    public void printSketch(int level) {
+        for ( int i=0; i<levelHead.length; ++i ) {
+            if ( level == -1 || level == i) {
+                System.out.println("List for level " + i);
+                for ( int slot = levelHead[i]; slot != NIL; slot = nextInLevel[slot] ) {
+                    System.out.println("  " + Long.toBinaryString(hashes[slot]) + " (" + hashes[slot] + ")");
                 }
             }
         }
@@ -218,62 +309,154 @@ public class CardinalitySketch {
 
     public void printSketchMap() {
         System.out.println(" Sketch Map After Split: " + split);
-        for ( Long key : sketchMap.keySet() ) {
-            System.out.println(Long.toBinaryString(key));
+        for ( int level=0; level<levelHead.length; ++level ) {
+            for ( int slot = levelHead[level]; slot != NIL; slot = nextInLevel[slot] ) {
+                System.out.println(Long.toBinaryString(hashes[slot]));
+            }
         }
         System.out.println();
     }
 
-    private void processHashForBitposition(Node node, int position) {
-        if ( this.listsHead[position] == null ) {
-            this.listsHead[position] = node;
-            this.listsTail[position] = node;
-        } else {
-            Node tail = listsTail[position];
-            tail.next[position] = node;
-            listsTail[position] = node;
-            node.previous[position] = tail;
+    /**
+     * Counts an occurrence of hash. Returns the (negative) insertion point if
+     * the hash is new and belongs in the sketch, 0 otherwise. One probe either
+     * finds the hash or gives the slot to insert it at.
+     */
+    private int probe(long hash) {
+        int index = sketchMap.find(hash);
+
+        if ( index >= 0 ) {
+            ++frequencies[sketchMap.valueAt(index)];
+        } else if ( (hash & this.splitMask) == 0 ) {
+            return index;
         }
+        return 0;
     }
 
-    public void add(String item) {
+    public void add(CharSequence item) {
         add(item, null);
     }
 
-    public void add(String item, ROWID rowid) {
+    // The value is only turned into a String when it enters the sketch. The
+    // adds with a rowid return the hash of the value, for a ColumnGroup.
+    public long add(CharSequence item, RowId rowid) {
         long hash = MurmurHash.hash64(item);
-        String binaryHashString =
-                String.format("%" + HASH_SIZE + "s", Long.toBinaryString(hash)).replace(' ', '0');
+        int index = probe(hash);
 
-        if ( belongsInSketch(hash) ) {
-            ++size;
-            Node node = new Node(hash, item, rowid);
-            sketchMap.put(hash, node);
+        if ( index < 0 ) {
+            insert(index, hash, item.toString(), rowid, 1);
+        }
+        return hash;
+    }
 
-            for (int i=0; i<HASH_SIZE; ++i) {
-                if ( binaryHashString.substring( i, i + 1 ).equals("1") ) {
-                    processHashForBitposition(node, i);
-                }
-            }
+    public long add(byte[] item, int offset, int length, RowId rowid) {
+        long hash = MurmurHash.hash64(item, offset, length, MurmurHash.HASH64_SEED);
+        int index = probe(hash);
 
-            if ( size > maxelements ) {
-                splitSketch();
-            }
+        if ( index < 0 ) {
+            insert(index, hash, new String(item, offset, length, StandardCharsets.UTF_8), rowid, 1);
         }
+        return hash;
+    }
+
+    public long add(ByteBuffer item, RowId rowid) {
+        long hash = MurmurHash.hash64(item);
+        int index = probe(hash);
+
+        if ( index < 0 ) {
+            insert(index, hash, StandardCharsets.UTF_8.decode(item.duplicate()).toString(), rowid, 1);
+        }
+        return hash;
+    }
+
+    // A value read in place, e.g. from a mapped file: the bytes from offset,
+    // whatever the position and limit of the buffer.
+    public long add(ByteBuffer item, int offset, int length, RowId rowid) {
+        long hash = MurmurHash.hash64(item, offset, length, MurmurHash.HASH64_SEED);
+        int index = probe(hash);
+
+        if ( index < 0 ) {
+            insert(index, hash, decode(item, offset, length), rowid, 1);
+        }
+        return hash;
+    }
+
+    static String decode(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer value = buffer.duplicate();
+        value.limit(offset + length).position(offset);
+        return StandardCharsets.UTF_8.decode(value).toString();
+    }
+
+    /**
+     * Adds a value by its 64 bit hash (see MurmurHash); value is only turned
+     * into a String if it enters the sketch.
+     */
+    public void addHash(long hash, CharSequence value, RowId rowid) {
+        int index = probe(hash);
+
+        if ( index < 0 ) {
+            insert(index, hash, value.toString(), rowid, 1);
+        }
+    }
+
+    void addNode(long hash, String value, RowId rowid, long frequency) {
+        if ( (hash & this.splitMask) != 0 ) {
+            return;
+        }
+
+        int index = sketchMap.find(hash);
+        if ( index >= 0 ) {
+            frequencies[sketchMap.valueAt(index)] += frequency;
+        } else {
+            insert(index, hash, value, rowid, frequency);
+        }
+    }
+
+    // Numbers and timestamps are hashed from their binary value, the String is
+    // only built for values that enter the sketch.
+    public long add(long item, RowId rowid) {
+        long hash = MurmurHash.hash64(item);
+        int index = probe(hash);
+
+        if ( index < 0 ) {
+            insert(index, hash, Long.toString(item), rowid, 1);
+        }
+        return hash;
+    }
+
+    public long add(double item, RowId rowid) {
+        long hash = MurmurHash.hash64(item);
+        int index = probe(hash);
+
+        if ( index < 0 ) {
+            insert(index, hash, Double.toString(item), rowid, 1);
+        }
+        return hash;
+    }
+
+    public long add(Timestamp item, RowId rowid) {
+        long hash = MurmurHash.hash64(item);
+        int index = probe(hash);
+
+        if ( index < 0 ) {
+            insert(index, hash, item.toString(), rowid, 1);
+        }
+        return hash;
     }
 
     public void add(long item) {
-        add(Long.toString(item));
+        add(item, null);
     }
 
     public void add(int item) {
-        add(Integer.toString(item));
+        add((long) item, null);
     }
 
     public void add(double item) {
-        add(Double.toString(item));
+        add(item, null);
     }
 
+    // as Float.toString, see TopK.add(float, ...)
     public void add(float item) {
         add(Float.toString(item));
     }
@@ -282,44 +465,236 @@ public class CardinalitySketch {
         return (1L << split) * size;
     }
 
+    /**
+     * Estimates the NDV of a column of totalRows (non null) rows, of which
+     * this sketch saw a uniform random sample of sampleRows.
+     *
+     * The estimators need the frequency of frequencies of the sample: f[j],
+     * the number of values seen exactly j times. The sketch keeps the exact
+     * frequency of every value it holds (a hash that is in the sketch has
+     * been since its first row) and the values it holds are a uniform 1 in
+     * 2^split sample of the distinct values, so f[j] is estimated as 2^split
+     * times the number of entries of frequency j.
+     */
+    public SampleEstimate estimateNDV(long sampleRows, long totalRows, NDVEstimator estimator) {
+        if ( sampleRows <= 0 || size == 0 ) {
+            return new SampleEstimate(0, 0, 0);
+        }
+        if ( totalRows <= sampleRows ) {
+            long ndv = estimateNDV();
+            return new SampleEstimate(ndv, ndv, ndv);
+        }
+
+        double scale = 1L << split;
+        double n = sampleRows;
+        double N = totalRows;
+        double q = n / N;
+
+        // f[j] for j <= cutoff, and the values seen more often than that
+        long[] f = new long[HAAS_STOKES_CUTOFF + 1];
+        long highValues = 0;
+        for ( int level=0; level<levelHead.length; ++level ) {
+            for ( int slot = levelHead[level]; slot != NIL; slot = nextInLevel[slot] ) {
+                long frequency = frequencies[slot];
+                if ( frequency <= HAAS_STOKES_CUTOFF ) {
+                    ++f[(int) frequency];
+                } else {
+                    ++highValues;
+                }
+            }
+        }
+
+        double d = scale * size;
+        double f1 = scale * f[1];
+        double lower = d;
+        double upper = Math.min(d + f1 * (N / n - 1), d + N - n);
+        double ndv;
+
+        if ( estimator == NDVEstimator.GEE ) {
+            ndv = d - f1 + Math.sqrt(N / n) * f1;
+        } else {
+            // Duj2a: the smoothed jackknife over the values seen at most
+            // cutoff times, plus the ones set aside
+            // values, not rows, are sampled: the rows of the values kept are
+            // counted from the sketch as well, so that they agree with f[j]
+            double dHigh = scale * highValues;
+            double nLow = 0;
+            for (int j=1; j<f.length; ++j) {
+                nLow += (double) j * scale * f[j];
+            }
+            double NLow = nLow / q;
+            double dLow = d - dHigh;
+            double shrink = 1 - (1 - q) * f1 / nLow;
+
+            if ( nLow <= 0 ) {
+                ndv = dHigh;
+            } else if ( shrink <= 0 ) {
+                ndv = upper;
+            } else {
+                double sum = 0;
+                for (int j=2; j<f.length; ++j) {
+                    sum += (double) j * (j - 1) * scale * f[j];
+                }
+                double duj1 = dLow / shrink;
+                double gamma2 = Math.max(0, duj1 / (nLow * nLow) * sum + duj1 / NLow - 1);
+                ndv = (dLow - f1 * (1 - q) * Math.log(1 - q) * gamma2 / q) / shrink + dHigh;
+            }
+        }
+
+        if ( split > 0 ) {
+            double error = 2 / Math.sqrt(size);
+            lower = lower * Math.max(0, 1 - error);
+            upper = Math.min(N, upper * (1 + error));
+        }
+        ndv = Math.max(lower, Math.min(upper, ndv));
+        return new SampleEstimate(Math.round(ndv), Math.round(lower), Math.round(upper));
+    }
+
     public Synopsis getSynopsis() {
-        return (new Synopsis(sketchMap.keySet(), split));
+        long[] synopsis = new long[size];
+        int i = 0;
+        for ( int level=0; level<levelHead.length; ++level ) {
+            for ( int slot = levelHead[level]; slot != NIL; slot = nextInLevel[slot] ) {
+                synopsis[i++] = hashes[slot];
+            }
+        }
+        return (new Synopsis(synopsis, split));
     }
 
     public PriorityQueue<Node> getFrequencies() {
         PriorityQueue<Node> nodepq = new PriorityQueue<Node>(this.maxelements, new NodeComparator());
-        for (Long key : sketchMap.keySet() ) {
-            nodepq.offer(sketchMap.get(key));
+        for ( int level=0; level<levelHead.length; ++level ) {
+            for ( int slot = levelHead[level]; slot != NIL; slot = nextInLevel[slot] ) {
+                nodepq.offer(new Node(hashes[slot], values[slot], rowids[slot], frequencies[slot]));
+            }
         }
 
         return nodepq;
     }
 
+    /**
+     * Merges cardinality sketches built over disjoint parts of the same column
+     * (e.g. ROWID ranges scanned in parallel). Unlike mergeSynopses the result
+     * keeps values, rowids and frequencies, so it can still feed the TopK.
+     */
+    public static CardinalitySketch merge(CardinalitySketch... sketches) {
+        CardinalitySketch merged = new CardinalitySketch(sketches[0].maxelements);
+
+        for (int i=0; i<sketches.length; ++i) {
+            while ( merged.split < sketches[i].split ) {
+                merged.incrementSplit();
+            }
+        }
+
+        for (int i=0; i<sketches.length; ++i) {
+            CardinalitySketch sketch = sketches[i];
+            for ( int level=0; level<sketch.levelHead.length; ++level ) {
+                for ( int slot = sketch.levelHead[level]; slot != NIL; slot = sketch.nextInLevel[slot] ) {
+                    merged.addNode(sketch.hashes[slot], sketch.values[slot], sketch.rowids[slot],
+                                   sketch.frequencies[slot]);
+                }
+            }
+        }
+
+        return merged;
+    }
+
     public static Synopsis mergeSynopses(Synopsis... synopsises) {
         if ( synopsises.length > 1 ) {
             int maxSplit = 0;
-            Set<Long> mergedSet = new HashSet<Long>();
+            int total = 0;
 
             for (int i=0; i<synopsises.length; ++i) {
                 if ( synopsises[i].split > maxSplit )
                     maxSplit = synopsises[i].split;
+                total += synopsises[i].synopsis.length;
             }
 
-            long splitMask = 1L << (HASH_SIZE - maxSplit);
+            // Every hash evicted by any of the splits up to maxSplit has to go,
+            // not just the ones with the last split bit set.
+            long splitMask = maxSplit == 0 ? 0 : -1L << (HASH_SIZE - maxSplit);
+            long[] merged = new long[total];
+            int n = 0;
             for (int i=0; i<synopsises.length; ++i) {
-                Set<Long> s = synopsises[i].synopsis;
-                for (Long value : s) {
-                    if ( (value & splitMask) == 0 ) {
-                        mergedSet.add(value);
+                long[] s = synopsises[i].synopsis;
+                for (int j=0; j<s.length; ++j) {
+                    if ( (s[j] & splitMask) == 0 ) {
+                        merged[n++] = s[j];
                     }
                 }
             }
-            return (new Synopsis(mergedSet, maxSplit));
+
+            // Sort and drop the duplicates instead of going through a Set<Long>.
+            Arrays.sort(merged, 0, n);
+            int distinct = 0;
+            for (int i=0; i<n; ++i) {
+                if ( distinct == 0 || merged[i] != merged[distinct - 1] ) {
+                    merged[distinct++] = merged[i];
+                }
+            }
+            return (new Synopsis(Arrays.copyOf(merged, distinct), maxSplit));
         } else {
             return synopsises[0];
         }
     }
 
+    /**
+     * Same as mergeSynopses, but like a sketch the result keeps at most
+     * maxelements hashes: the split is raised until they fit. This keeps
+     * every step of a merge of many synopses as small as its inputs.
+     */
+    public static Synopsis mergeSynopses(int maxelements, Synopsis... synopsises) {
+        return mergeSynopses(maxelements, 0, synopsises);
+    }
+
+    /**
+     * minSplit is a split the result is known to reach anyway, e.g. that of
+     * an earlier merge of some of the same inputs: the hashes it evicts are
+     * dropped before sorting instead of after.
+     */
+    public static Synopsis mergeSynopses(int maxelements, int minSplit, Synopsis... synopsises) {
+        int split = minSplit;
+        int total = 0;
+        for (int i=0; i<synopsises.length; ++i) {
+            split = Math.max(split, synopsises[i].split);
+            total += synopsises[i].synopsis.length;
+        }
+
+        long splitMask = split == 0 ? 0 : -1L << (HASH_SIZE - split);
+        long[] merged = new long[total];
+        int n = 0;
+        for (int i=0; i<synopsises.length; ++i) {
+            long[] s = synopsises[i].synopsis;
+            for (int j=0; j<s.length; ++j) {
+                if ( (s[j] & splitMask) == 0 ) {
+                    merged[n++] = s[j];
+                }
+            }
+        }
+
+        Arrays.sort(merged, 0, n);
+        int size = 0;
+        for (int i=0; i<n; ++i) {
+            if ( size == 0 || merged[i] != merged[size - 1] ) {
+                merged[size++] = merged[i];
+            }
+        }
+
+        // sorted stays sorted while the split goes up
+        while ( size > maxelements ) {
+            ++split;
+            splitMask = -1L << (HASH_SIZE - split);
+            int kept = 0;
+            for (int i=0; i<size; ++i) {
+                if ( (merged[i] & splitMask) == 0 ) {
+                    merged[kept++] = merged[i];
+                }
+            }
+            size = kept;
+        }
+        return new Synopsis(Arrays.copyOf(merged, size), split);
+    }
+
     private void printMemoryUsage() {
         Runtime runtime = Runtime.getRuntime();
         long totalMemory = runtime.totalMemory();
@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.sql.RowId;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+/**
+ * Columns whose combinations of values get an NDV of their own, e.g.
+ * (YEAR, REGION): the NDVs of correlated columns alone say nothing of how
+ * many of their combinations occur, which is what a group by or a predicate
+ * on both needs.
+ *
+ * The stats of a group are a ColumnStats under its label, "(YEAR, REGION)",
+ * with the sketches of a string column, gathered in the same scan as those of
+ * the columns. A row's combination is added by a hash folded from the hashes
+ * the columns' sketches return (MurmurHash.hash64(long, long) over each
+ * next one, NULL_HASH for a null), so a group costs a fold per column and a
+ * sketch probe per row, whatever the values; the String of a combination is
+ * only built when it enters a sketch. Rows where every column of the group is
+ * null count as its nulls.
+ */
+public class ColumnGroup {
+    /**
+     * What a null folds into the hash of a combination.
+     */
+    public static final long NULL_HASH = 0x6e756c6c6e756c6cL;
+
+    private String[] columns;
+    private String label;
+
+    public ColumnGroup(String... columns) {
+        if ( columns.length < 2 ) {
+            throw new IllegalArgumentException("A column group needs two columns or more: " +
+                                               Arrays.toString(columns));
+        }
+        this.columns = columns.clone();
+        this.label = label(columns);
+    }
+
+    /**
+     * The label of the stats of a group of columns: "(A, B)".
+     */
+    public static String label(String... columns) {
+        StringBuilder label = new StringBuilder("(");
+        for (int i=0; i<columns.length; ++i) {
+            if ( i > 0 ) {
+                label.append(", ");
+            }
+            label.append(columns[i]);
+        }
+        return label.append(")").toString();
+    }
+
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Whether stats are those of a column group rather than of a column.
+     */
+    public static boolean isGroup(ColumnStats stats) {
+        return ColumnGroup.class.getName().equals(stats.getColumnClassName());
+    }
+
+    /**
+     * Where the columns of the group are in labels, the column labels of a
+     * scan.
+     */
+    public int[] indexesIn(String[] labels) {
+        int[] indexes = new int[columns.length];
+
+        for (int i=0; i<columns.length; ++i) {
+            indexes[i] = Arrays.asList(labels).indexOf(columns[i]);
+            if ( indexes[i] < 0 ) {
+                throw new IllegalArgumentException("No column " + columns[i] + " for column group " + label);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Adds a row to stats, the stats of the group, from the hashes of its
+     * columns' values in the group's order. value is the row's combination.
+     */
+    public static void add(ColumnStats stats, long[] hashes, CharSequence value, RowId rowid) {
+        long hash = hashes[0];
+        boolean isNull = hash == NULL_HASH;
+
+        for (int i=1; i<hashes.length; ++i) {
+            isNull &= hashes[i] == NULL_HASH;
+            hash = MurmurHash.hash64(hash, hashes[i]);
+        }
+        if ( isNull ) {
+            stats.addNull();
+        } else {
+            stats.addHash(hash, value, rowid);
+        }
+    }
+
+    /**
+     * The combination of the values of a row, formatted when asked for:
+     * "(2013, WEST)", with value(i) the value of the group's i-th column.
+     */
+    public static abstract class Values implements CharSequence {
+        private int count;
+
+        protected Values(int count) {
+            this.count = count;
+        }
+
+        protected abstract String value(int column);
+
+        public String toString() {
+            StringBuilder values = new StringBuilder("(");
+            for (int i=0; i<count; ++i) {
+                if ( i > 0 ) {
+                    values.append(", ");
+                }
+                values.append(value(i));
+            }
+            return values.append(")").toString();
+        }
+
+        public int length() {
+            return toString().length();
+        }
+
+        public char charAt(int index) {
+            return toString().charAt(index);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+    }
+
+    /**
+     * The hash ColumnStats.add(batch, column, row) returns for a value of a
+     * RowBatch, without adding it.
+     */
+    static long hash(RowBatch batch, int column, int row, ColumnStats.IngestType ingestType) {
+        if ( batch.isNull(column, row) ) {
+            return NULL_HASH;
+        }
+
+        switch ( ingestType ) {
+            case LONG:
+                return MurmurHash.hash64(batch.getLong(column, row));
+            case DOUBLE:
+                return MurmurHash.hash64(Double.longBitsToDouble(batch.getLong(column, row)));
+            case TIMESTAMP:
+                return MurmurHash.hash64((Timestamp) batch.getValue(column, row));
+            default: {
+                Object value = batch.getValue(column, row);
+                if ( value == null ) {
+                    return MurmurHash.hash64(batch.getBytes(), batch.getOffset(column, row),
+                                             batch.getLength(column, row), MurmurHash.HASH64_SEED);
+                }
+                return MurmurHash.hash64(value.toString());
+            }
+        }
+    }
+
+    /**
+     * A value of a RowBatch as a String, "null" for a null.
+     */
+    static String format(RowBatch batch, int column, int row, ColumnStats.IngestType ingestType) {
+        if ( batch.isNull(column, row) ) {
+            return "null";
+        }
+
+        switch ( ingestType ) {
+            case LONG:
+                return Long.toString(batch.getLong(column, row));
+            case DOUBLE:
+                return Double.toString(Double.longBitsToDouble(batch.getLong(column, row)));
+            default: {
+                Object value = batch.getValue(column, row);
+                if ( value == null ) {
+                    return new String(batch.getBytes(), batch.getOffset(column, row), batch.getLength(column, row),
+                                      StandardCharsets.UTF_8);
+                }
+                return value.toString();
+            }
+        }
+    }
+}
@@ -12,22 +12,84 @@
  * limitations under the License.
  */
 
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.sql.RowId;
+import java.sql.Timestamp;
+import java.util.PriorityQueue;
 
 /**
  * Created by ap349 on 12/18/13.
  */
-public class ColumnStats {
+public class ColumnStats implements Closeable {
+    /**
+     * How the values of a column are read and hashed. Chosen once per column
+     * from the ResultSetMetaData, so numbers and timestamps are hashed from
+     * their binary value instead of being boxed and formatted on every row.
+     */
+    public enum IngestType {
+        STRING, LONG, DOUBLE, TIMESTAMP;
+
+        public static IngestType forColumn(String columnClassName, int precision, int scale) {
+            if ( "java.lang.Long".equals(columnClassName) ||
+                 "java.lang.Integer".equals(columnClassName) ||
+                 "java.lang.Short".equals(columnClassName) ||
+                 "java.lang.Byte".equals(columnClassName) ) {
+                return LONG;
+            }
+
+            // Oracle reports NUMBER columns as BigDecimal. Only NUMBER(p, 0)
+            // with p <= 18 is known to fit a long; a bare NUMBER has no
+            // precision and keeps the string path.
+            if ( "java.math.BigDecimal".equals(columnClassName) && scale == 0 && precision > 0 && precision <= 18 ) {
+                return LONG;
+            }
+
+            // A Float (REAL, BINARY_FLOAT) keeps the string path: read as a
+            // double it would be hashed and shown widened, 0.1 as
+            // 0.10000000149011612, unlike TopK.add(float).
+            if ( "java.lang.Double".equals(columnClassName) ) {
+                return DOUBLE;
+            }
+
+            if ( "java.sql.Timestamp".equals(columnClassName) ||
+                 "java.sql.Date".equals(columnClassName) ||
+                 "oracle.sql.TIMESTAMP".equals(columnClassName) ||
+                 "oracle.sql.DATE".equals(columnClassName) ) {
+                return TIMESTAMP;
+            }
+
+            return STRING;
+        }
+    }
+
+    /**
+     * How the NDV of a column is estimated. ADAPTIVE_SAMPLING keeps the
+     * values with their frequencies (CardinalitySketch) so the heavy hitters
+     * are exact while they fit; HYPERLOGLOG keeps the registers of a
+     * HyperLogLog only and sends every value to the TopK from the first row.
+     */
+    public enum NDVEngine {
+        ADAPTIVE_SAMPLING, HYPERLOGLOG
+    }
+
     private TopK topk;
     private CardinalitySketch cardinalitySketch;
+    private HyperLogLog hyperLogLog;
     private String columnName;
     private String columnClassName;
+    private IngestType ingestType;
     private long numRows;
     private long numNulls;
     private boolean doingLossyCounting;
+    // percent of the rows that were gathered, 100 unless sampled
+    private double samplePercent;
 
     public ColumnStats() {
         this.numNulls = 0;
         this.numRows = 0;
+        this.samplePercent = 100;
+        this.ingestType = IngestType.STRING;
         doingLossyCounting = false;
     }
 
@@ -39,6 +101,61 @@ public class ColumnStats {
         return this.numNulls;
     }
 
+    public void setNumRows(long numRows) {
+        this.numRows = numRows;
+    }
+
+    public void setNumNulls(long numNulls) {
+        this.numNulls = numNulls;
+    }
+
+    public double getSamplePercent() {
+        return samplePercent;
+    }
+
+    public void setSamplePercent(double samplePercent) {
+        this.samplePercent = samplePercent;
+    }
+
+    /**
+     * Scales a count of the gathered rows (rows, nulls, a heavy hitter's
+     * frequency) up to the whole table. Counts are linear in the sample.
+     */
+    public long scaleCount(long count) {
+        return samplePercent >= 100 ? count : Math.round(count * 100 / samplePercent);
+    }
+
+    public long estimateNumRows() {
+        return scaleCount(numRows);
+    }
+
+    public long estimateNumNulls() {
+        return scaleCount(numNulls);
+    }
+
+    /**
+     * NDV of the whole column with its bounds. Unlike counts the NDV does
+     * not scale linearly with the sample, it is estimated from how often the
+     * sampled values were seen (see CardinalitySketch).
+     */
+    public CardinalitySketch.SampleEstimate estimateNDV(CardinalitySketch.NDVEstimator estimator) {
+        long notNulls = numRows - numNulls;
+        if ( hyperLogLog != null ) {
+            // no frequencies to extrapolate from, only the bounds
+            long ndv = hyperLogLog.estimateNDV();
+            long upper = samplePercent >= 100 ? ndv : Math.min(scaleCount(notNulls), scaleCount(ndv));
+            return new CardinalitySketch.SampleEstimate(ndv, ndv, upper);
+        }
+        return cardinalitySketch.estimateNDV(notNulls, scaleCount(notNulls), estimator);
+    }
+
+    /**
+     * NDV of the rows gathered, by either engine.
+     */
+    public long estimateNDV() {
+        return hyperLogLog != null ? hyperLogLog.estimateNDV() : cardinalitySketch.estimateNDV();
+    }
+
     public String getColumnClassName() {
         return columnClassName;
     }
@@ -47,6 +164,14 @@ public class ColumnStats {
         this.columnClassName = columnClassName;
     }
 
+    public IngestType getIngestType() {
+        return ingestType;
+    }
+
+    public void setIngestType(IngestType ingestType) {
+        this.ingestType = ingestType;
+    }
+
     public TopK getTopk() {
         return topk;
     }
@@ -61,6 +186,25 @@ public class ColumnStats {
 
     public void setCardinalitySketch(CardinalitySketch cardinalitySketch) {
         this.cardinalitySketch = cardinalitySketch;
+        this.hyperLogLog = null;
+    }
+
+    public HyperLogLog getHyperLogLog() {
+        return hyperLogLog;
+    }
+
+    /**
+     * Makes HyperLogLog the NDV engine of the column, in place of the
+     * cardinality sketch. Every value then goes to the TopK.
+     */
+    public void setHyperLogLog(HyperLogLog hyperLogLog) {
+        this.hyperLogLog = hyperLogLog;
+        this.cardinalitySketch = null;
+        this.doingLossyCounting = true;
+    }
+
+    public NDVEngine getNDVEngine() {
+        return hyperLogLog != null ? NDVEngine.HYPERLOGLOG : NDVEngine.ADAPTIVE_SAMPLING;
     }
 
     public String getColumnName() {
@@ -86,4 +230,245 @@ public class ColumnStats {
     public void incrementNumNulls() {
         ++this.numNulls;
     }
+
+    public void addNull() {
+        ++this.numRows;
+        ++this.numNulls;
+    }
+
+    // The adds return the hash of the value (see MurmurHash), which a
+    // ColumnGroup folds into the hash of a row's combination.
+    public long add(CharSequence value, RowId rowid) {
+        long hash;
+
+        ++this.numRows;
+        if ( hyperLogLog != null ) {
+            hash = hyperLogLog.add(value);
+        } else {
+            hash = cardinalitySketch.add(value, rowid);
+        }
+        if ( doingLossyCounting ) {
+            topk.add(value, 1, rowid);
+        }
+        checkLossyCounting();
+        return hash;
+    }
+
+    public long add(byte[] value, int offset, int length, RowId rowid) {
+        long hash;
+
+        ++this.numRows;
+        if ( hyperLogLog != null ) {
+            hash = hyperLogLog.add(value, offset, length);
+        } else {
+            hash = cardinalitySketch.add(value, offset, length, rowid);
+        }
+        if ( doingLossyCounting ) {
+            topk.add(value, offset, length, 1, rowid);
+        }
+        checkLossyCounting();
+        return hash;
+    }
+
+    public long add(ByteBuffer value, int offset, int length, RowId rowid) {
+        long hash;
+
+        ++this.numRows;
+        if ( hyperLogLog != null ) {
+            hash = hyperLogLog.add(value, offset, length);
+        } else {
+            hash = cardinalitySketch.add(value, offset, length, rowid);
+        }
+        if ( doingLossyCounting ) {
+            topk.add(value, offset, length, 1, rowid);
+        }
+        checkLossyCounting();
+        return hash;
+    }
+
+    public long add(long value, RowId rowid) {
+        long hash;
+
+        ++this.numRows;
+        if ( hyperLogLog != null ) {
+            hash = hyperLogLog.add(value);
+        } else {
+            hash = cardinalitySketch.add(value, rowid);
+        }
+        if ( doingLossyCounting ) {
+            topk.add(value, 1, rowid);
+        }
+        checkLossyCounting();
+        return hash;
+    }
+
+    public long add(double value, RowId rowid) {
+        long hash;
+
+        ++this.numRows;
+        if ( hyperLogLog != null ) {
+            hash = hyperLogLog.add(value);
+        } else {
+            hash = cardinalitySketch.add(value, rowid);
+        }
+        if ( doingLossyCounting ) {
+            topk.add(value, 1, rowid);
+        }
+        checkLossyCounting();
+        return hash;
+    }
+
+    public long add(Timestamp value, RowId rowid) {
+        long hash;
+
+        ++this.numRows;
+        if ( hyperLogLog != null ) {
+            hash = hyperLogLog.add(value);
+        } else {
+            hash = cardinalitySketch.add(value, rowid);
+        }
+        if ( doingLossyCounting ) {
+            topk.add(value, 1, rowid);
+        }
+        checkLossyCounting();
+        return hash;
+    }
+
+    /**
+     * Adds a value by its 64 bit hash, the hash of a ColumnGroup's
+     * combination; value is only turned into a String if it enters a sketch.
+     */
+    public void addHash(long hash, CharSequence value, RowId rowid) {
+        ++this.numRows;
+        if ( hyperLogLog != null ) {
+            hyperLogLog.addHash(hash);
+        } else {
+            cardinalitySketch.addHash(hash, value, rowid);
+        }
+        if ( doingLossyCounting ) {
+            topk.addHash(hash, value, 1, rowid);
+        }
+        checkLossyCounting();
+    }
+
+    /**
+     * Adds the value of this column in a row of a RowBatch, as stored there
+     * by its ingest type (see RowSource), and returns its hash, or
+     * ColumnGroup.NULL_HASH for a null.
+     */
+    public long add(RowBatch batch, int column, int row) {
+        if ( batch.isNull(column, row) ) {
+            addNull();
+            return ColumnGroup.NULL_HASH;
+        }
+
+        switch ( ingestType ) {
+            case LONG:
+                return add(batch.getLong(column, row), batch.getRowid(row));
+            case DOUBLE:
+                return add(Double.longBitsToDouble(batch.getLong(column, row)), batch.getRowid(row));
+            case TIMESTAMP:
+                return add((Timestamp) batch.getValue(column, row), batch.getRowid(row));
+            default: {
+                Object value = batch.getValue(column, row);
+                if ( value == null ) {
+                    return add(batch.getBytes(), batch.getOffset(column, row), batch.getLength(column, row),
+                               batch.getRowid(row));
+                } else {
+                    return add(value.toString(), batch.getRowid(row));
+                }
+            }
+        }
+    }
+
+    private void checkLossyCounting() {
+        if ( !doingLossyCounting && cardinalitySketch.getSize() == cardinalitySketch.getMaxelements() ) {
+            System.out.println("Switching to lossy counting for " + columnName);
+            dumpCardinalitySketchIntoTopk();
+            doingLossyCounting = true;
+        }
+    }
+
+    public void dumpCardinalitySketchIntoTopk() {
+        if ( cardinalitySketch == null ) {
+            return;
+        }
+        PriorityQueue<CardinalitySketch.Node> pq = cardinalitySketch.getFrequencies();
+        CardinalitySketch.Node node = pq.poll();
+
+        while ( node != null ) {
+            topk.addHash(node.getHash(), node.getValue(), (int)node.getFrequency(), node.getRowid());
+            node = pq.poll();
+        }
+    }
+
+    /**
+     * Releases the off heap sketch memory of the column, if any.
+     */
+    public void close() {
+        if ( topk != null ) {
+            topk.close();
+        }
+    }
+
+    /**
+     * Merges the stats of one column gathered by several workers over disjoint
+     * row ranges. The TopKs must have been created with the same seed.
+     *
+     * While no worker has switched to lossy counting and the merged cardinality
+     * sketch has not split, the merged sketch still holds exact frequencies and
+     * is left to be dumped into the TopK as in a serial run. Otherwise every
+     * worker's exact frequencies are dumped into its own TopK first and the
+     * merged column is marked as lossy. HYPERLOGLOG columns merge their
+     * registers; every worker must use the same NDV engine.
+     */
+    public static ColumnStats merge(ColumnStats... columnStats) {
+        ColumnStats merged = new ColumnStats();
+        CardinalitySketch[] sketches = new CardinalitySketch[columnStats.length];
+        TopK[] topks = new TopK[columnStats.length];
+        boolean lossy = false;
+
+        merged.setColumnName(columnStats[0].getColumnName());
+        merged.setColumnClassName(columnStats[0].getColumnClassName());
+        merged.setIngestType(columnStats[0].getIngestType());
+        merged.setSamplePercent(columnStats[0].getSamplePercent());
+
+        for (int i=0; i<columnStats.length; ++i) {
+            if ( columnStats[i].getNDVEngine() != columnStats[0].getNDVEngine() ) {
+                throw new IllegalArgumentException("Cannot merge stats of " + columnStats[0].getColumnName() +
+                                                   " gathered with different NDV engines");
+            }
+            merged.numRows += columnStats[i].numRows;
+            merged.numNulls += columnStats[i].numNulls;
+            sketches[i] = columnStats[i].cardinalitySketch;
+            topks[i] = columnStats[i].topk;
+            lossy = lossy || columnStats[i].isDoingLossyCounting();
+        }
+
+        if ( columnStats[0].hyperLogLog != null ) {
+            HyperLogLog[] hyperLogLogs = new HyperLogLog[columnStats.length];
+            for (int i=0; i<columnStats.length; ++i) {
+                hyperLogLogs[i] = columnStats[i].hyperLogLog;
+            }
+            merged.setHyperLogLog(HyperLogLog.merge(hyperLogLogs));
+            merged.setTopk(TopK.merge(topks));
+            return merged;
+        }
+
+        merged.setCardinalitySketch(CardinalitySketch.merge(sketches));
+
+        if ( lossy || merged.getCardinalitySketch().getSplit() > 0 ) {
+            for (int i=0; i<columnStats.length; ++i) {
+                if ( !columnStats[i].isDoingLossyCounting() ) {
+                    columnStats[i].dumpCardinalitySketchIntoTopk();
+                    columnStats[i].setDoingLossyCounting(true);
+                }
+            }
+            lossy = true;
+        }
+
+        merged.setTopk(TopK.merge(topks));
+        merged.setDoingLossyCounting(lossy);
+        return merged;
+    }
 }
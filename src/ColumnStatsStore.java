@@ -0,0 +1,684 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.RowId;
+import java.util.*;
+
+/**
+ * File of gathered ColumnStats, laid out to be memory mapped. open() maps
+ * the file and reads the column directory only, so it costs the same for any
+ * sketch size. A column's counters, NDV and synopsis hashes are read in place,
+ * and its count sketch is a table over the mapped file: estimates and adds
+ * go straight to the file and force() makes them durable. load() decodes a
+ * column into a ColumnStats to merge new stats into, or to keep gathering,
+ * and write() stores the result again.
+ *
+ * Layout, little endian, every long array 8 byte aligned:
+ *
+ *   header     magic, version, column count, properties offset (0: none)
+ *   directory  file offset of each column block
+ *   column     fixed size header (see the H_ offsets), then its sections:
+ *              names, synopsis hashes and frequencies, synopsis values and
+ *              rowids, heavy hitters, count sketch hashes and table
+ *   properties count, then key and value strings
+ *
+ * A column whose NDV engine is HYPERLOGLOG keeps its precision in the
+ * maxelements field and its sparse entries or packed registers in place of
+ * the synopsis hashes, with no values.
+ *
+ * Strings and rowids are an int length (-1 for null) and their bytes.
+ * Offsets are ints, so a store is limited to 2GB.
+ */
+public class ColumnStatsStore implements Closeable {
+    public static final int MAGIC = 0x534b5354;   // "SKST"
+    public static final int VERSION = 2;
+
+    private static final int FILE_HEADER_SIZE = 16;
+
+    // column header fields, from the start of the block
+    private static final int H_NUM_ROWS = 0;
+    private static final int H_NUM_NULLS = 8;
+    private static final int H_SKETCH_SIZE = 16;
+    private static final int H_INGEST_TYPE = 24;
+    private static final int H_FLAGS = 28;
+    private static final int H_TOPK = 32;
+    private static final int H_MAX_ELEMENTS = 36;
+    private static final int H_SPLIT = 40;
+    private static final int H_ENTRIES = 44;
+    private static final int H_HEAVY_HITTERS = 48;
+    private static final int H_DEPTH = 52;
+    private static final int H_WIDTH = 56;
+    private static final int H_NAMES = 60;
+    private static final int H_HASHES = 64;
+    private static final int H_VALUES = 68;
+    private static final int H_TOPK_ELEMENTS = 72;
+    private static final int H_COUNT_SKETCH = 76;
+    private static final int HEADER_SIZE = 80;
+
+    private static final int FLAG_LOSSY = 1;
+    private static final int FLAG_SPACE_SAVING = 2;
+    private static final int FLAG_COUNT_SKETCH = 4;
+    private static final int FLAG_HYPERLOGLOG = 8;
+    private static final int FLAG_SPARSE = 16;
+
+    private File file;
+    private MappedByteBuffer buffer;
+    private LinkedHashMap<String, Column> columns;
+    private HashMap<String, String> properties;
+
+    private ColumnStatsStore(File file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        this.columns = new LinkedHashMap<String, Column>();
+        this.properties = new HashMap<String, String>();
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if ( buffer.capacity() < FILE_HEADER_SIZE || buffer.getInt(0) != MAGIC ) {
+            throw new IOException(file + " is not a column stats store");
+        }
+        if ( buffer.getInt(4) < 1 || buffer.getInt(4) > VERSION ) {
+            throw new IOException(file + " has unsupported store version " + buffer.getInt(4));
+        }
+
+        int count = buffer.getInt(8);
+        for (int i=0; i<count; ++i) {
+            Column column = new Column(buffer.getInt(FILE_HEADER_SIZE + 4 * i));
+            columns.put(column.getColumnName(), column);
+        }
+
+        if ( buffer.getInt(12) != 0 ) {
+            ByteBuffer section = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            section.position(buffer.getInt(12));
+            int size = section.getInt();
+            for (int i=0; i<size; ++i) {
+                properties.put(readString(section), readString(section));
+            }
+        }
+    }
+
+    /**
+     * Maps file read/write. Nothing but the directory and the column names is
+     * read until a column is asked for.
+     */
+    public static ColumnStatsStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            if ( channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException(file + " is larger than 2GB");
+            }
+            // the mapping stays valid after the channel is closed
+            return new ColumnStatsStore(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Set<String> getColumnNames() {
+        return Collections.unmodifiableSet(columns.keySet());
+    }
+
+    public Column getColumn(String columnName) {
+        return columns.get(columnName);
+    }
+
+    /**
+     * A property stored with the stats by write(), or null.
+     */
+    public String getProperty(String key) {
+        return properties.get(key);
+    }
+
+    /**
+     * Decodes every column, see Column.load().
+     */
+    public HashMap<String, ColumnStats> load() {
+        HashMap<String, ColumnStats> statsHashMap = new HashMap<String, ColumnStats>();
+        for (Column column : columns.values()) {
+            statsHashMap.put(column.getColumnName(), column.load());
+        }
+        return statsHashMap;
+    }
+
+    /**
+     * Writes the counts of the mapped count sketches back to the column
+     * headers and flushes the mapping to disk.
+     */
+    public void force() {
+        for (Column column : columns.values()) {
+            column.syncSize();
+        }
+        buffer.force();
+    }
+
+    /**
+     * Forces the store. Java cannot unmap a file, the mapping goes when it is
+     * collected; the count sketches from getCountSketch must not be used
+     * afterwards.
+     */
+    public void close() {
+        force();
+        for (Column column : columns.values()) {
+            if ( column.countSketch != null ) {
+                column.countSketch.close();
+                column.countSketch = null;
+            }
+        }
+    }
+
+    /**
+     * One stored column, read in place from the mapped file.
+     */
+    public final class Column {
+        private final int base;
+        private final String columnName;
+        private final String columnClassName;
+        private CountSketch countSketch;
+
+        private Column(int base) {
+            this.base = base;
+            ByteBuffer names = at(H_NAMES);
+            this.columnName = readString(names);
+            this.columnClassName = readString(names);
+        }
+
+        private int header(int field) {
+            return buffer.getInt(base + field);
+        }
+
+        // a cursor at the section whose offset is in header field
+        private ByteBuffer at(int field) {
+            ByteBuffer section = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            section.position(base + header(field));
+            return section;
+        }
+
+        private LongBuffer longs(int field, int skip, int length) {
+            ByteBuffer section = at(field);
+            section.position(section.position() + 8 * skip);
+            section.limit(section.position() + 8 * length);
+            return section.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        }
+
+        public String getColumnName() {
+            return columnName;
+        }
+
+        public String getColumnClassName() {
+            return columnClassName;
+        }
+
+        public ColumnStats.IngestType getIngestType() {
+            return ColumnStats.IngestType.values()[header(H_INGEST_TYPE)];
+        }
+
+        public long getNumRows() {
+            return buffer.getLong(base + H_NUM_ROWS);
+        }
+
+        public long getNumNulls() {
+            return buffer.getLong(base + H_NUM_NULLS);
+        }
+
+        public boolean isDoingLossyCounting() {
+            return (header(H_FLAGS) & FLAG_LOSSY) != 0;
+        }
+
+        public TopK.Engine getEngine() {
+            return (header(H_FLAGS) & FLAG_SPACE_SAVING) != 0 ? TopK.Engine.SPACE_SAVING : TopK.Engine.COUNT_SKETCH;
+        }
+
+        public int getSplit() {
+            return header(H_SPLIT);
+        }
+
+        public int getMaxelements() {
+            return header(H_MAX_ELEMENTS);
+        }
+
+        public int getTopk() {
+            return header(H_TOPK);
+        }
+
+        public ColumnStats.NDVEngine getNDVEngine() {
+            return (header(H_FLAGS) & FLAG_HYPERLOGLOG) != 0 ? ColumnStats.NDVEngine.HYPERLOGLOG
+                                                             : ColumnStats.NDVEngine.ADAPTIVE_SAMPLING;
+        }
+
+        public long estimateNDV() {
+            if ( getNDVEngine() == ColumnStats.NDVEngine.HYPERLOGLOG ) {
+                return getHyperLogLog().estimateNDV();
+            }
+            return (1L << header(H_SPLIT)) * header(H_ENTRIES);
+        }
+
+        /**
+         * The column's HyperLogLog, decoded, or null if its NDV engine is
+         * the cardinality sketch.
+         */
+        public HyperLogLog getHyperLogLog() {
+            if ( getNDVEngine() != ColumnStats.NDVEngine.HYPERLOGLOG ) {
+                return null;
+            }
+            LongBuffer hashes = longs(H_HASHES, 0, header(H_ENTRIES));
+            if ( (header(H_FLAGS) & FLAG_SPARSE) != 0 ) {
+                int[] entries = new int[header(H_ENTRIES)];
+                for (int i=0; i<entries.length; ++i) {
+                    entries[i] = (int) hashes.get(i);
+                }
+                return new HyperLogLog(header(H_MAX_ELEMENTS), entries);
+            }
+            long[] registers = new long[header(H_ENTRIES)];
+            hashes.get(registers);
+            return new HyperLogLog(header(H_MAX_ELEMENTS), registers);
+        }
+
+        /**
+         * The cardinality sketch's hashes, a view of the file.
+         */
+        public LongBuffer getSynopsisHashes() {
+            return longs(H_HASHES, 0, header(H_ENTRIES));
+        }
+
+        public CardinalitySketch.Synopsis getSynopsis() {
+            if ( getNDVEngine() != ColumnStats.NDVEngine.ADAPTIVE_SAMPLING ) {
+                throw new IllegalStateException(columnName + " has no cardinality sketch");
+            }
+            long[] hashes = new long[header(H_ENTRIES)];
+            getSynopsisHashes().get(hashes);
+            return new CardinalitySketch.Synopsis(hashes, header(H_SPLIT));
+        }
+
+        /**
+         * The heavy hitters, in increasing count order as TopK lists them.
+         */
+        public java.util.Stack<RowidMap> getTopKElements() {
+            int n = header(H_HEAVY_HITTERS);
+            LongBuffer counters = longs(H_TOPK_ELEMENTS, 0, 3 * n);
+            ByteBuffer strings = at(H_TOPK_ELEMENTS);
+            strings.position(strings.position() + 24 * n);
+
+            java.util.Stack<RowidMap> stack = new java.util.Stack<RowidMap>();
+            for (int i=0; i<n; ++i) {
+                String value = readString(strings);
+                RowId rowid = readRowid(strings);
+                RowidMap map = new RowidMap(rowid, counters.get(3 * i), counters.get(3 * i + 1), i);
+                map.setError(counters.get(3 * i + 2));
+                map.setObject(value);
+                stack.push(map);
+            }
+            return stack;
+        }
+
+        /**
+         * The column's count sketch over the mapped table, or null for the
+         * SPACE_SAVING engine. Adds are written to the file; force() stores
+         * the new count.
+         */
+        public CountSketch getCountSketch() {
+            if ( countSketch == null && (header(H_FLAGS) & FLAG_COUNT_SKETCH) != 0 ) {
+                int depth = header(H_DEPTH);
+                int width = header(H_WIDTH);
+                countSketch = new CountSketch(depth, width, buffer.getLong(base + H_SKETCH_SIZE),
+                                              readLongs(H_COUNT_SKETCH, 0, depth),
+                                              readLongs(H_COUNT_SKETCH, depth, depth),
+                                              readLongs(H_COUNT_SKETCH, 2 * depth, depth),
+                                              readLongs(H_COUNT_SKETCH, 3 * depth, depth),
+                                              LongTable.wrap(tableBytes(depth, width)));
+            }
+            return countSketch;
+        }
+
+        private ByteBuffer tableBytes(int depth, int width) {
+            ByteBuffer section = at(H_COUNT_SKETCH);
+            section.position(section.position() + 32 * depth);
+            section.limit(section.position() + 8 * depth * width);
+            return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private long[] readLongs(int field, int skip, int length) {
+            long[] values = new long[length];
+            longs(field, skip, length).get(values);
+            return values;
+        }
+
+        private void syncSize() {
+            if ( countSketch != null ) {
+                buffer.putLong(base + H_SKETCH_SIZE, countSketch.getSize());
+            }
+        }
+
+        /**
+         * Decodes the column into a ColumnStats of its own, on heap, that can
+         * be merged with newly gathered stats or gathered into further.
+         */
+        public ColumnStats load() {
+            ColumnStats columnStats = new ColumnStats();
+            columnStats.setColumnName(columnName);
+            columnStats.setColumnClassName(columnClassName);
+            columnStats.setIngestType(getIngestType());
+            columnStats.setNumRows(getNumRows());
+            columnStats.setNumNulls(getNumNulls());
+            columnStats.setDoingLossyCounting(isDoingLossyCounting());
+
+            if ( getNDVEngine() == ColumnStats.NDVEngine.HYPERLOGLOG ) {
+                columnStats.setHyperLogLog(getHyperLogLog());
+            } else {
+                int entries = header(H_ENTRIES);
+                CardinalitySketch cardinalitySketch = new CardinalitySketch(header(H_MAX_ELEMENTS));
+                cardinalitySketch.restoreSplit(header(H_SPLIT));
+                LongBuffer hashes = longs(H_HASHES, 0, entries);
+                LongBuffer frequencies = longs(H_HASHES, entries, entries);
+                ByteBuffer strings = at(H_VALUES);
+                for (int i=0; i<entries; ++i) {
+                    String value = readString(strings);
+                    RowId rowid = readRowid(strings);
+                    cardinalitySketch.addNode(hashes.get(i), value, rowid, frequencies.get(i));
+                }
+                columnStats.setCardinalitySketch(cardinalitySketch);
+            }
+
+            TopK topk;
+            if ( getEngine() == TopK.Engine.SPACE_SAVING ) {
+                topk = new TopK(header(H_TOPK), TopK.Engine.SPACE_SAVING);
+            } else {
+                CountSketch mapped = getCountSketch();
+                long[] table = new long[mapped.getDepth() * mapped.getWidth()];
+                tableBytes(mapped.getDepth(), mapped.getWidth()).asLongBuffer().get(table);
+                topk = new TopK(header(H_TOPK), new CountSketch(mapped.getDepth(), mapped.getWidth(), mapped.getSize(),
+                                                               mapped.getHashA().clone(), mapped.getHashB().clone(),
+                                                               mapped.getHashgA().clone(), mapped.getHashgB().clone(),
+                                                               LongTable.onHeap(table)));
+            }
+            topk.restore(getTopKElements());
+            columnStats.setTopk(topk);
+
+            return columnStats;
+        }
+    }
+
+    /**
+     * Writes statsHashMap to file, replacing it. The store is written next to
+     * file first and then moved over it, so a failed write leaves the old one.
+     */
+    public static void write(File file, HashMap<String, ColumnStats> statsHashMap) throws IOException {
+        write(file, statsHashMap, new HashMap<String, String>());
+    }
+
+    /**
+     * Also stores properties, such as where the gathering that produced the
+     * stats left off, to be read back with getProperty.
+     */
+    public static void write(File file, HashMap<String, ColumnStats> statsHashMap, Map<String, String> properties)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+
+            int count = statsHashMap.size();
+            ByteBuffer header = ByteBuffer.allocate(align(FILE_HEADER_SIZE + 4 * count)).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0);
+
+            long position = header.capacity();
+            for (ColumnStats columnStats : statsHashMap.values()) {
+                if ( position > Integer.MAX_VALUE ) {
+                    throw new IOException("Column stats store larger than 2GB");
+                }
+                header.putInt((int) position);
+                ByteBuffer block = encode(columnStats);
+                while ( block.hasRemaining() ) {
+                    position += channel.write(block, position);
+                }
+            }
+
+            Block block = new Block(0);
+            block.buffer.putInt(properties.size());
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                block.putString(property.getKey());
+                block.putString(property.getValue());
+            }
+            block.buffer.flip();
+            if ( position > Integer.MAX_VALUE ) {
+                throw new IOException("Column stats store larger than 2GB");
+            }
+            header.putInt(12, (int) position);
+            while ( block.buffer.hasRemaining() ) {
+                position += channel.write(block.buffer, position);
+            }
+            if ( position > Integer.MAX_VALUE ) {
+                throw new IOException("Column stats store larger than 2GB");
+            }
+
+            header.clear();
+            channel.write(header, 0);
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static ByteBuffer encode(ColumnStats columnStats) {
+        CardinalitySketch cardinalitySketch = columnStats.getCardinalitySketch();
+        HyperLogLog hyperLogLog = columnStats.getHyperLogLog();
+        TopK topk = columnStats.getTopk();
+        CountSketch countSketch = topk.getCountSketch();
+        Stack<RowidMap> heavyHitters = topk.getTopKElements();
+        PriorityQueue<CardinalitySketch.Node> nodes = cardinalitySketch == null ?
+                new PriorityQueue<CardinalitySketch.Node>() : cardinalitySketch.getFrequencies();
+        int entries = nodes.size();
+        int[] sparse = hyperLogLog == null ? null : hyperLogLog.getSparseEntries();
+        long[] registers = hyperLogLog == null || sparse != null ? null : hyperLogLog.getRegisters();
+        if ( hyperLogLog != null ) {
+            entries = sparse != null ? sparse.length : registers.length;
+        }
+
+        Block block = new Block(HEADER_SIZE + 16 * entries +
+                                (countSketch == null ? 0 : 8 * countSketch.getDepth() * (countSketch.getWidth() + 4)));
+        block.buffer.position(HEADER_SIZE);
+
+        block.section(H_NAMES);
+        block.putString(columnStats.getColumnName());
+        block.putString(columnStats.getColumnClassName());
+
+        block.section(H_HASHES);
+        if ( sparse != null ) {
+            for (int entry : sparse) {
+                block.putLong(entry);
+            }
+        } else if ( registers != null ) {
+            block.putLongs(registers);
+        }
+        CardinalitySketch.Node[] entryNodes = nodes.toArray(new CardinalitySketch.Node[nodes.size()]);
+        for (CardinalitySketch.Node node : entryNodes) {
+            block.putLong(node.getHash());
+        }
+        for (CardinalitySketch.Node node : entryNodes) {
+            block.putLong(node.getFrequency());
+        }
+
+        block.section(H_VALUES);
+        for (CardinalitySketch.Node node : entryNodes) {
+            block.putString(node.getValue());
+            block.putRowid(node.getRowid());
+        }
+
+        block.section(H_TOPK_ELEMENTS);
+        for (RowidMap map : heavyHitters) {
+            block.putLong(map.getValue());
+            block.putLong(map.getCount());
+            block.putLong(map.getError());
+        }
+        for (RowidMap map : heavyHitters) {
+            block.putString(map.getObject() == null ? null : map.getObject().toString());
+            block.putRowid(map.getRowid());
+        }
+
+        int flags = 0;
+        if ( columnStats.isDoingLossyCounting() ) {
+            flags |= FLAG_LOSSY;
+        }
+        if ( topk.getEngine() == TopK.Engine.SPACE_SAVING ) {
+            flags |= FLAG_SPACE_SAVING;
+        }
+        if ( hyperLogLog != null ) {
+            flags |= FLAG_HYPERLOGLOG;
+        }
+        if ( sparse != null ) {
+            flags |= FLAG_SPARSE;
+        }
+
+        block.section(H_COUNT_SKETCH);
+        if ( countSketch != null ) {
+            flags |= FLAG_COUNT_SKETCH;
+            block.putLongs(countSketch.getHashA());
+            block.putLongs(countSketch.getHashB());
+            block.putLongs(countSketch.getHashgA());
+            block.putLongs(countSketch.getHashgB());
+            LongTable table = countSketch.getTable();
+            if ( table.array() != null ) {
+                block.putLongs(table.array());
+            } else {
+                for (int i=0; i<table.length(); ++i) {
+                    block.putLong(table.get(i));
+                }
+            }
+        }
+        block.pad();
+
+        ByteBuffer buffer = block.buffer;
+        buffer.putLong(H_NUM_ROWS, columnStats.getNumRows());
+        buffer.putLong(H_NUM_NULLS, columnStats.getNumNulls());
+        buffer.putLong(H_SKETCH_SIZE, countSketch == null ? 0 : countSketch.getSize());
+        buffer.putInt(H_INGEST_TYPE, columnStats.getIngestType().ordinal());
+        buffer.putInt(H_FLAGS, flags);
+        buffer.putInt(H_TOPK, topk.getTopk());
+        buffer.putInt(H_MAX_ELEMENTS, hyperLogLog != null ? hyperLogLog.getPrecision()
+                                                          : cardinalitySketch.getMaxelements());
+        buffer.putInt(H_SPLIT, hyperLogLog != null ? 0 : cardinalitySketch.getSplit());
+        buffer.putInt(H_ENTRIES, entries);
+        buffer.putInt(H_HEAVY_HITTERS, heavyHitters.size());
+        buffer.putInt(H_DEPTH, countSketch == null ? 0 : countSketch.getDepth());
+        buffer.putInt(H_WIDTH, countSketch == null ? 0 : countSketch.getWidth());
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if ( length < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static RowId readRowid(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if ( length < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new RowLocator(bytes);
+    }
+
+    /**
+     * A column block being encoded, grown as needed.
+     */
+    private static final class Block {
+        private ByteBuffer buffer;
+
+        Block(int capacity) {
+            buffer = ByteBuffer.allocate(align(capacity + 1024)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void ensure(int bytes) {
+            if ( buffer.remaining() < bytes ) {
+                ByteBuffer grown = ByteBuffer.allocate(align(Math.max(2 * buffer.capacity(), buffer.position() + bytes)))
+                                             .order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+
+        // starts the section whose offset goes in header field
+        void section(int field) {
+            pad();
+            buffer.putInt(field, buffer.position());
+        }
+
+        void pad() {
+            int padding = align(buffer.position()) - buffer.position();
+            ensure(padding);
+            for (int i=0; i<padding; ++i) {
+                buffer.put((byte) 0);
+            }
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putLongs(long[] values) {
+            ensure(8 * values.length);
+            buffer.asLongBuffer().put(values);
+            buffer.position(buffer.position() + 8 * values.length);
+        }
+
+        void putBytes(byte[] bytes) {
+            ensure(4 + (bytes == null ? 0 : bytes.length));
+            if ( bytes == null ) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        void putString(String value) {
+            putBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void putRowid(RowId rowid) {
+            putBytes(rowid == null ? null : rowid.getBytes());
+        }
+    }
+}
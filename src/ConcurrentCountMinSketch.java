@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Count-Min Sketch that any number of threads add to and estimate from at
+ * once, without locks. It hashes exactly as a CountMinSketch of the same
+ * depth, width and seed, so its estimates are those of that sketch over all
+ * the adds; snapshot() returns one, to merge, serialize or hand to a TopK.
+ *
+ * The counters are a ConcurrentLongTable in the given mode (ATOMIC or
+ * STRIPED). Each thread hashes through a CountMinSketch of its own that
+ * holds its scratch; the total count is kept per thread.
+ */
+public class ConcurrentCountMinSketch
+{
+    private int depth;
+    private int width;
+    private long[] hashA;
+    private ConcurrentLongTable table;
+    private ConcurrentLongTable size;
+    private ThreadLocal<Local> locals;
+
+    // What a thread hashes and adds with.
+    private final class Local
+    {
+        private final CountMinSketch hasher;
+        private ConcurrentLongTable.Writer counters;
+        private ConcurrentLongTable.Writer count;
+
+        Local()
+        {
+            this.hasher = new CountMinSketch(depth, width, 0, hashA, LongTable.onHeap(0));
+        }
+
+        // readers never take a writer, which costs a table when striped
+        void add(int[] offsets, long delta)
+        {
+            if (counters == null)
+            {
+                counters = table.writer();
+                count = size.writer();
+            }
+            for (int i = 0; i < depth; ++i)
+            {
+                counters.add(offsets[i], delta);
+            }
+            count.add(0, delta);
+        }
+    }
+
+    public ConcurrentCountMinSketch(int depth, int width, int seed)
+    {
+        this(depth, width, seed, ConcurrentLongTable.Mode.ATOMIC);
+    }
+
+    /**
+     * The width is rounded up to a power of two, as for CountMinSketch.
+     */
+    public ConcurrentCountMinSketch(int depth, int width, int seed, ConcurrentLongTable.Mode mode)
+    {
+        this.depth = depth;
+        this.width = CountMinSketch.powerOfTwo(width);
+        this.hashA = CountMinSketch.randomHashes(depth, seed)[0];
+        this.table = ConcurrentLongTable.create(mode, depth * this.width);
+        this.size = ConcurrentLongTable.striped(1);
+        this.locals = new ThreadLocal<Local>()
+        {
+            @Override
+            protected Local initialValue()
+            {
+                return new Local();
+            }
+        };
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public ConcurrentLongTable.Mode getMode()
+    {
+        return table.getMode();
+    }
+
+    public long size()
+    {
+        return size.get(0);
+    }
+
+    public void add(long item, long count)
+    {
+        CountMinSketch.checkCount(count);
+        Local local = locals.get();
+        local.add(local.hasher.offsets(item), count);
+    }
+
+    public void add(CharSequence item, long count)
+    {
+        CountMinSketch.checkCount(count);
+        Local local = locals.get();
+        local.add(local.hasher.offsets(item), count);
+    }
+
+    public void add(byte[] item, int offset, int length, long count)
+    {
+        CountMinSketch.checkCount(count);
+        Local local = locals.get();
+        local.add(local.hasher.offsets(item, offset, length), count);
+    }
+
+    public void add(ByteBuffer item, long count)
+    {
+        CountMinSketch.checkCount(count);
+        Local local = locals.get();
+        local.add(local.hasher.offsets(item), count);
+    }
+
+    private long estimate(int[] offsets)
+    {
+        long res = Long.MAX_VALUE;
+        for (int i = 0; i < depth; ++i)
+        {
+            res = Math.min(res, table.get(offsets[i]));
+        }
+        return res;
+    }
+
+    public long estimateCount(long item)
+    {
+        return estimate(locals.get().hasher.offsets(item));
+    }
+
+    public long estimateCount(CharSequence item)
+    {
+        return estimate(locals.get().hasher.offsets(item));
+    }
+
+    public long estimateCount(byte[] item, int offset, int length)
+    {
+        return estimate(locals.get().hasher.offsets(item, offset, length));
+    }
+
+    public long estimateCount(ByteBuffer item)
+    {
+        return estimate(locals.get().hasher.offsets(item));
+    }
+
+    /**
+     * A CountMinSketch with the counters as of now. Adds in flight may be
+     * partly in it.
+     */
+    public CountMinSketch snapshot()
+    {
+        long count = size();
+        return new CountMinSketch(depth, width, count, hashA.clone(), LongTable.onHeap(table.toArray()));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Count sketch that any number of threads add to and estimate from at once,
+ * without locks: the ConcurrentCountMinSketch of CountSketch. It hashes and
+ * signs exactly as a CountSketch of the same depth, width and seed, and
+ * snapshot() returns one.
+ */
+public class ConcurrentCountSketch {
+    private int depth;
+    private int width;
+    private long[][] hashes;
+    private ConcurrentLongTable table;
+    private ConcurrentLongTable size;
+    private ThreadLocal<Local> locals;
+
+    // What a thread hashes, adds and takes medians with.
+    private final class Local {
+        private final CountSketch hasher;
+        private final long[] estimates;
+        private final MedianNetwork medianNetwork;
+        private ConcurrentLongTable.Writer counters;
+        private ConcurrentLongTable.Writer count;
+
+        Local() {
+            this.hasher = new CountSketch(depth, width, 0, hashes[0], hashes[1], hashes[2], hashes[3],
+                                          LongTable.onHeap(0));
+            this.estimates = new long[depth];
+            this.medianNetwork = new MedianNetwork(depth);
+        }
+
+        // readers never take a writer, which costs a table when striped
+        void add(int[] offsets, long delta) {
+            if ( counters == null ) {
+                counters = table.writer();
+                count = size.writer();
+            }
+            long[] signs = hasher.signs();
+            for (int i=0; i<depth; ++i) {
+                counters.add(offsets[i], delta * signs[i]);
+            }
+            count.add(0, delta);
+        }
+
+        long estimate(int[] offsets) {
+            long[] signs = hasher.signs();
+            for (int i=0; i<depth; ++i) {
+                estimates[i] = table.get(offsets[i]) * signs[i];
+            }
+            return medianNetwork.median(estimates);
+        }
+    }
+
+    public ConcurrentCountSketch(int depth, int width, int seed) {
+        this(depth, width, seed, ConcurrentLongTable.Mode.ATOMIC);
+    }
+
+    /**
+     * The width is rounded up to a power of two, as for CountSketch.
+     */
+    public ConcurrentCountSketch(int depth, int width, int seed, ConcurrentLongTable.Mode mode) {
+        this.depth = depth;
+        this.width = CountSketch.powerOfTwo(width);
+        this.hashes = CountSketch.randomHashes(depth, seed);
+        this.table = ConcurrentLongTable.create(mode, depth * this.width);
+        this.size = ConcurrentLongTable.striped(1);
+        this.locals = new ThreadLocal<Local>() {
+            @Override
+            protected Local initialValue() {
+                return new Local();
+            }
+        };
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public ConcurrentLongTable.Mode getMode() {
+        return table.getMode();
+    }
+
+    public long getSize() {
+        return size.get(0);
+    }
+
+    public void add(long item, long count) {
+        CountSketch.checkCount(count);
+        Local local = locals.get();
+        local.add(local.hasher.offsets(item), count);
+    }
+
+    public void add(CharSequence item, long count) {
+        CountSketch.checkCount(count);
+        Local local = locals.get();
+        local.add(local.hasher.offsets(item), count);
+    }
+
+    public void add(byte[] item, int offset, int length, long count) {
+        CountSketch.checkCount(count);
+        Local local = locals.get();
+        local.add(local.hasher.offsets(item, offset, length), count);
+    }
+
+    public void add(ByteBuffer item, long count) {
+        CountSketch.checkCount(count);
+        Local local = locals.get();
+        local.add(local.hasher.offsets(item), count);
+    }
+
+    public long estimateCount(long item) {
+        Local local = locals.get();
+        return local.estimate(local.hasher.offsets(item));
+    }
+
+    public long estimateCount(CharSequence item) {
+        Local local = locals.get();
+        return local.estimate(local.hasher.offsets(item));
+    }
+
+    public long estimateCount(byte[] item, int offset, int length) {
+        Local local = locals.get();
+        return local.estimate(local.hasher.offsets(item, offset, length));
+    }
+
+    public long estimateCount(ByteBuffer item) {
+        Local local = locals.get();
+        return local.estimate(local.hasher.offsets(item));
+    }
+
+    /**
+     * A CountSketch with the counters as of now. Adds in flight may be partly
+     * in it.
+     */
+    public CountSketch snapshot() {
+        long count = getSize();
+        return new CountSketch(depth, width, count, hashes[0].clone(), hashes[1].clone(), hashes[2].clone(),
+                               hashes[3].clone(), LongTable.onHeap(table.toArray()));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size table of long counters that any number of threads add to at
+ * once, the storage of ConcurrentCountMinSketch and ConcurrentCountSketch.
+ *
+ * atomic() is one AtomicLongArray, every add a getAndAdd: no more memory
+ * than a LongTable, but threads adding to the same counters (heavy hitters,
+ * and the rows' counters sharing a cache line) contend for them. striped()
+ * gives every writer a table of its own, which only that thread writes, so
+ * adds are plain stores with no contention at all; a read sums the counter
+ * over the writers' tables. It takes a table per writing thread and reads get
+ * slower with each one, so it suits a few long lived producer threads.
+ *
+ * Adds go through a Writer (writer()), to be kept by the thread that asked
+ * for it. A read sees every add completed before it, and any of those in
+ * flight.
+ */
+public abstract class ConcurrentLongTable {
+    public enum Mode {
+        ATOMIC, STRIPED
+    }
+
+    public static ConcurrentLongTable create(Mode mode, int length) {
+        return mode == Mode.STRIPED ? striped(length) : atomic(length);
+    }
+
+    public static ConcurrentLongTable atomic(int length) {
+        return new AtomicTable(length);
+    }
+
+    public static ConcurrentLongTable striped(int length) {
+        return new StripedTable(length);
+    }
+
+    /**
+     * Adds to the counters on behalf of one thread.
+     */
+    public static abstract class Writer {
+        public abstract void add(int index, long delta);
+    }
+
+    public abstract Mode getMode();
+
+    public abstract int length();
+
+    public abstract long get(int index);
+
+    /**
+     * A writer for the calling thread. Ask once per thread: each striped
+     * writer has a table of its own, kept for as long as the table is.
+     */
+    public abstract Writer writer();
+
+    /**
+     * Copies the counters into a new array.
+     */
+    public long[] toArray() {
+        long[] values = new long[length()];
+        for (int i=0; i<values.length; ++i) {
+            values[i] = get(i);
+        }
+        return values;
+    }
+
+    private static final class AtomicTable extends ConcurrentLongTable {
+        private final AtomicLongArray counters;
+        private final Writer writer;
+
+        AtomicTable(int length) {
+            this.counters = new AtomicLongArray(length);
+            this.writer = new Writer() {
+                @Override
+                public void add(int index, long delta) {
+                    counters.getAndAdd(index, delta);
+                }
+            };
+        }
+
+        public Mode getMode() {
+            return Mode.ATOMIC;
+        }
+
+        public int length() {
+            return counters.length();
+        }
+
+        public long get(int index) {
+            return counters.get(index);
+        }
+
+        public Writer writer() {
+            return writer;
+        }
+    }
+
+    private static final class StripedTable extends ConcurrentLongTable {
+        private final int length;
+        private final List<AtomicLongArray> stripes = new CopyOnWriteArrayList<AtomicLongArray>();
+
+        StripedTable(int length) {
+            this.length = length;
+        }
+
+        public Mode getMode() {
+            return Mode.STRIPED;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public long get(int index) {
+            long sum = 0;
+            for (AtomicLongArray stripe : stripes) {
+                sum += stripe.get(index);
+            }
+            return sum;
+        }
+
+        public Writer writer() {
+            final AtomicLongArray stripe = new AtomicLongArray(length);
+            stripes.add(stripe);
+            return new Writer() {
+                @Override
+                public void add(int index, long delta) {
+                    // the only writer of its stripe: an ordered store publishes
+                    // the sum without a compare and swap
+                    stripe.lazySet(index, stripe.get(index) + delta);
+                }
+            };
+        }
+
+        @Override
+        public long[] toArray() {
+            long[] values = new long[length];
+            for (AtomicLongArray stripe : stripes) {
+                for (int i=0; i<length; ++i) {
+                    values[i] += stripe.get(i);
+                }
+            }
+            return values;
+        }
+    }
+}
@@ -15,41 +15,70 @@
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
-import java.io.UnsupportedEncodingException;
 
 /**
  * Count-Min Sketch datastructure.
  * An Improved Data Stream Summary: The Count-Min Sketch and its Applications
  * http://www.eecs.harvard.edu/~michaelm/CS222/countmin.pdf
  */
-public class CountMinSketch
+public class CountMinSketch implements Closeable
 {
     public static final long PRIME_MODULUS = (1L << 31) - 1;
     private int depth;
     private int width;
-    private long[][] table;
+    private int mask;
+    // depth rows of width counters, row after row
+    private LongTable table;
     private long[] hashA;
     private long[] hashB;
     private long size;
     private double eps;
     private double confidence;
+    // Per value scratch: the table offset of the value's counter in each row,
+    // and the per row estimates for the median. Reused, so no call allocates.
+    private int[] offsets;
+    private long[] estimates;
+    private MedianNetwork medianNetwork;
+    // Scratch for addAll/estimateAll, grown to the largest batch seen.
+    private int[] batchOffsets;
+    private int[] batchHashes;
+    private long[] batchValues;
+    private SketchKernel kernel;
 
     private CountMinSketch()
     {
     }
 
+    /**
+     * The width is rounded up to a power of two, so buckets are picked with a
+     * mask instead of a modulo.
+     */
     public CountMinSketch(int depth, int width, int seed)
     {
         this.depth = depth;
-        this.width = width;
-        this.eps = 2.0 / width;
+        this.width = powerOfTwo(width);
+        this.eps = 2.0 / this.width;
         this.confidence = 1 - 1 / Math.pow(2, depth);
-        initTablesWith(depth, width, seed);
+        initTablesWith(depth, this.width, seed, false);
+    }
+
+    /**
+     * With offHeap the counters live in a direct buffer (see LongTable), to
+     * be released with close().
+     */
+    public CountMinSketch(int depth, int width, int seed, boolean offHeap)
+    {
+        this.depth = depth;
+        this.width = powerOfTwo(width);
+        this.eps = 2.0 / this.width;
+        this.confidence = 1 - 1 / Math.pow(2, depth);
+        initTablesWith(depth, this.width, seed, offHeap);
     }
 
     public CountMinSketch(double epsOfTotalCount, double confidence, int seed)
@@ -58,12 +87,12 @@ public class CountMinSketch
         // 1/2^depth <= 1-confidence ; depth >= -log2 (1-confidence)
         this.eps = epsOfTotalCount;
         this.confidence = confidence;
-        this.width = (int) Math.ceil(2 / epsOfTotalCount);
+        this.width = powerOfTwo((int) Math.ceil(2 / epsOfTotalCount));
         this.depth = (int) Math.ceil(-Math.log(1 - confidence) / Math.log(2));
-        initTablesWith(depth, width, seed);
+        initTablesWith(depth, width, seed, false);
     }
 
-    private CountMinSketch(int depth, int width, int size, long[] hashA, long[][] table)
+    CountMinSketch(int depth, int width, long size, long[] hashA, LongTable table)
     {
         this.depth = depth;
         this.width = width;
@@ -72,13 +101,31 @@ public class CountMinSketch
         this.hashA = hashA;
         this.table = table;
         this.size  = size;
+        initScratch();
+    }
+
+    static int powerOfTwo(int width)
+    {
+        int rounded = Integer.highestOneBit(Math.max(1, width));
+        return rounded == width ? width : rounded << 1;
     }
 
-    private void initTablesWith(int depth, int width, int seed)
+    private void initTablesWith(int depth, int width, int seed, boolean offHeap)
     {
-        this.table = new long[depth][width];
-        this.hashA = new long[depth];
-        this.hashB = new long[depth];
+        this.table = offHeap ? LongTable.offHeap(depth * width) : LongTable.onHeap(depth * width);
+        long[][] hashes = randomHashes(depth, seed);
+        this.hashA = hashes[0];
+        this.hashB = hashes[1];
+        initScratch();
+    }
+
+    /**
+     * hashA and hashB of a sketch of the given depth and seed.
+     */
+    static long[][] randomHashes(int depth, int seed)
+    {
+        long[] hashA = new long[depth];
+        long[] hashB = new long[depth];
         Random r = new Random(seed);
         // We're using a linear hash functions
         // of the form (a*x+b) mod p.
@@ -91,6 +138,23 @@ public class CountMinSketch
             hashA[i] = r.nextInt(Integer.MAX_VALUE);
             hashB[i] = r.nextInt(Integer.MAX_VALUE);
         }
+        return new long[][] { hashA, hashB };
+    }
+
+    private void initScratch()
+    {
+        if (Integer.bitCount(width) != 1)
+        {
+            throw new IllegalArgumentException("width must be a power of two: " + width);
+        }
+        this.mask = width - 1;
+        this.offsets = new int[depth];
+        this.estimates = new long[depth];
+        this.medianNetwork = new MedianNetwork(depth);
+        this.batchOffsets = new int[0];
+        this.batchHashes = new int[0];
+        this.batchValues = new long[0];
+        this.kernel = SketchKernel.getDefault();
     }
 
     public double getRelativeError()
@@ -103,45 +167,67 @@ public class CountMinSketch
         return confidence;
     }
 
-    private int[] getHashBuckets(byte[] b, int hashCount, int max)
+    private void setOffsets(int hash1, int hash2)
     {
-        int[] result = new int[hashCount];
-        int hash1 = MurmurHash.hash(b, b.length, 0);
-        int hash2 = MurmurHash.hash(b, b.length, hash1);
-        for (int i = 0; i < hashCount; i++)
+        for (int i = 0; i < depth; i++)
         {
-            result[i] = Math.abs((hash1 + i * hash2) % max);
+            offsets[i] = i * width + ((hash1 + i * hash2) & mask);
         }
-        return result;
     }
 
-    private int[] getHashBuckets(String key, int hashCount, int max)
+    private void setOffsets(byte[] b, int offset, int length)
     {
-        byte[] b;
-        try
-        {
-            b = key.getBytes("UTF-16");
-        }
-        catch (UnsupportedEncodingException e)
-        {
-            throw new RuntimeException(e);
-        }
-        return getHashBuckets(b, hashCount, max);
+        int hash1 = MurmurHash.hash(b, offset, length, 0);
+        setOffsets(hash1, MurmurHash.hash(b, offset, length, hash1));
     }
 
-    private int hash(long item, int i)
+    private void setOffsets(ByteBuffer b)
     {
-        long hash = hashA[i] * item;
-        // A super fast way of computing x mod 2^p-1
-        // See http://www.cs.princeton.edu/courses/archive/fall09/cos521/Handouts/universalclasses.pdf
-        // page 149, right after Proposition 7.
-        hash += hash >> 32;
-        hash &= PRIME_MODULUS;
-        // Doing "%" after (int) conversion is ~2x faster than %'ing longs.
-        return ((int) hash) % width;
+        int hash1 = MurmurHash.hash(b, 0);
+        setOffsets(hash1, MurmurHash.hash(b, hash1));
     }
 
-    public void add(long item, long count)
+    // Keys are hashed over their UTF-8 encoding, straight from the chars, so a
+    // key hashes the same whether it comes as a CharSequence or as bytes.
+    private void setOffsets(CharSequence key)
+    {
+        int hash1 = MurmurHash.hash(key, 0);
+        setOffsets(hash1, MurmurHash.hash(key, hash1));
+    }
+
+    // Row i buckets item by hashA[i] * item mod 2^31-1; see SketchKernel.
+    private void setOffsets(long item)
+    {
+        kernel.hashRows(hashA, null, item, depth, width, mask, offsets);
+    }
+
+    // The table offsets of an item in each row, in this sketch's scratch.
+    // ConcurrentCountMinSketch hashes through a sketch of its own per thread.
+    int[] offsets(long item)
+    {
+        setOffsets(item);
+        return offsets;
+    }
+
+    int[] offsets(CharSequence item)
+    {
+        setOffsets(item);
+        return offsets;
+    }
+
+    int[] offsets(byte[] item, int offset, int length)
+    {
+        setOffsets(item, offset, length);
+        return offsets;
+    }
+
+    int[] offsets(ByteBuffer item)
+    {
+        setOffsets(item);
+        return offsets;
+    }
+
+    static void checkCount(long count)
     {
         if (count < 0)
         {
@@ -151,89 +237,290 @@ public class CountMinSketch
             // parameter to constructor.
             throw new IllegalArgumentException("Negative increments not implemented");
         }
+    }
+
+    private void addOffsets(long count)
+    {
         for (int i = 0; i < depth; ++i)
         {
-            table[i][hash(item, i)] += count;
+            table.addAndGet(offsets[i], count);
         }
         size += count;
     }
 
-    public void add(String item, long count)
+    private long estimateOffsets()
     {
-        if (count < 0)
+        return kernel.minAt(table, offsets, depth);
+    }
+
+    private long addAndEstimateOffsets(long count)
+    {
+        long res = Long.MAX_VALUE;
+        for (int i = 0; i < depth; ++i)
         {
-            // Actually for negative increments we'll need to use the median
-            // instead of minimum, and accuracy will suffer somewhat.
-            // Probably makes sense to add an "allow negative increments"
-            // parameter to constructor.
-            throw new IllegalArgumentException("Negative increments not implemented");
+            res = Math.min(res, table.addAndGet(offsets[i], count));
         }
-        int[] buckets = getHashBuckets(item, depth, width);
+        size += count;
+        return res;
+    }
+
+    private long unbiasedEstimateOffsets()
+    {
         for (int i = 0; i < depth; ++i)
         {
-            table[i][buckets[i]] += count;
+            long cell = table.get(offsets[i]);
+            estimates[i] = cell - (size - cell) / (width - 1);
         }
-        size += count;
+        return medianNetwork.median(estimates);
     }
 
-    public long size()
+    public void add(long item, long count)
     {
-        return size;
+        checkCount(count);
+        setOffsets(item);
+        addOffsets(count);
+    }
+
+    public void add(CharSequence item, long count)
+    {
+        checkCount(count);
+        setOffsets(item);
+        addOffsets(count);
+    }
+
+    public void add(byte[] item, int offset, int length, long count)
+    {
+        checkCount(count);
+        setOffsets(item, offset, length);
+        addOffsets(count);
+    }
+
+    public void add(ByteBuffer item, long count)
+    {
+        checkCount(count);
+        setOffsets(item);
+        addOffsets(count);
     }
 
     /**
-     * The estimate is correct within 'epsilon' * (total item count),
-     * with probability 'confidence'.
+     * Adds count to item and returns its new estimate, hashing it only once.
      */
-    public long estimateCount(long item)
+    public long addAndEstimate(long item, long count)
     {
-        long res = Long.MAX_VALUE;
+        checkCount(count);
+        setOffsets(item);
+        return addAndEstimateOffsets(count);
+    }
+
+    public long addAndEstimate(CharSequence item, long count)
+    {
+        checkCount(count);
+        setOffsets(item);
+        return addAndEstimateOffsets(count);
+    }
+
+    public long addAndEstimate(byte[] item, int offset, int length, long count)
+    {
+        checkCount(count);
+        setOffsets(item, offset, length);
+        return addAndEstimateOffsets(count);
+    }
+
+    public long addAndEstimate(ByteBuffer item, long count)
+    {
+        checkCount(count);
+        setOffsets(item);
+        return addAndEstimateOffsets(count);
+    }
+
+    private int[] batchOffsets(int n)
+    {
+        if (batchOffsets.length < n * depth)
+        {
+            batchOffsets = new int[n * depth];
+            batchValues = new long[n * depth];
+        }
+        return batchOffsets;
+    }
+
+    private int[] batchHashes(int n)
+    {
+        if (batchHashes.length < n * 2)
+        {
+            batchHashes = new int[n * 2];
+        }
+        return batchHashes;
+    }
+
+    // Batches are hashed up front into batchOffsets, one row after the other
+    // (offsets[i * n + k] is item k's counter in row i), so that the updates
+    // and lookups can then walk the table one row at a time.
+    private void setBatchOffsets(long[] items, int n)
+    {
+        int[] offsets = batchOffsets(n);
         for (int i = 0; i < depth; ++i)
         {
-            res = Math.min(res, table[i][hash(item, i)]);
+            kernel.hashItems(hashA[i], 0, items, n, i * width, mask, offsets, i * n);
         }
-        return res;
     }
 
-    public long estimateCount(String item)
+    private void setBatchOffsets(CharSequence[] items, int n)
     {
-        long res = Long.MAX_VALUE;
-        int[] buckets = getHashBuckets(item, depth, width);
+        int[] offsets = batchOffsets(n);
+        int[] hashes = batchHashes(n);
+        for (int k = 0; k < n; ++k)
+        {
+            int hash1 = MurmurHash.hash(items[k], 0);
+            hashes[2 * k] = hash1;
+            hashes[2 * k + 1] = MurmurHash.hash(items[k], hash1);
+        }
         for (int i = 0; i < depth; ++i)
         {
-            res = Math.min(res, table[i][buckets[i]]);
+            int base = i * width;
+            for (int k = 0; k < n; ++k)
+            {
+                offsets[i * n + k] = base + ((hashes[2 * k] + i * hashes[2 * k + 1]) & mask);
+            }
         }
-        return res;
     }
 
-    private long median(long[] array) {
-        Arrays.sort(array);
-        int middle = array.length/2;
-        long medianValue = 0;
+    /**
+     * Adds counts[k] to items[k] for the first n items. Same result as n calls
+     * to add, but the whole batch is hashed first and the table is then
+     * updated one row at a time.
+     */
+    public void addAll(long[] items, long[] counts, int n)
+    {
+        for (int k = 0; k < n; ++k)
+        {
+            checkCount(counts[k]);
+        }
+        setBatchOffsets(items, n);
+
+        int[] offsets = batchOffsets;
+        for (int i = 0; i < depth; ++i)
+        {
+            for (int k = 0; k < n; ++k)
+            {
+                table.addAndGet(offsets[i * n + k], counts[k]);
+            }
+        }
+        for (int k = 0; k < n; ++k)
+        {
+            size += counts[k];
+        }
+    }
+
+    /**
+     * Adds one occurrence of each of the first n items.
+     */
+    public void addAll(CharSequence[] items, int n)
+    {
+        setBatchOffsets(items, n);
+
+        int[] offsets = batchOffsets;
+        for (int i = 0; i < depth * n; ++i)
+        {
+            table.addAndGet(offsets[i], 1);
+        }
+        size += n;
+    }
+
+    /**
+     * Writes the estimate of items[k] into estimates[k] for the first n items.
+     */
+    public void estimateAll(long[] items, int n, long[] estimates)
+    {
+        setBatchOffsets(items, n);
+        estimateBatchOffsets(n, estimates);
+    }
+
+    public void estimateAll(CharSequence[] items, int n, long[] estimates)
+    {
+        setBatchOffsets(items, n);
+        estimateBatchOffsets(n, estimates);
+    }
+
+    private void estimateBatchOffsets(int n, long[] estimates)
+    {
+        kernel.gather(table, batchOffsets, null, depth * n, batchValues);
+        kernel.minRows(batchValues, depth, n, estimates);
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    long[] getHashA()
+    {
+        return hashA;
+    }
+
+    LongTable getTable()
+    {
+        return table;
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    public boolean isOffHeap()
+    {
+        return table.isOffHeap();
+    }
+
+    /**
+     * Frees an off heap table; the sketch must not be used afterwards.
+     */
+    public void close()
+    {
+        table.close();
+    }
+
+    /**
+     * The estimate is correct within 'epsilon' * (total item count),
+     * with probability 'confidence'.
+     */
+    public long estimateCount(long item)
+    {
+        setOffsets(item);
+        return estimateOffsets();
+    }
 
-        if (array.length % 2 == 1)
-            medianValue = array[middle];
-        else
-            medianValue = (array[middle-1] + array[middle]) / 2;
+    public long estimateCount(CharSequence item)
+    {
+        setOffsets(item);
+        return estimateOffsets();
+    }
 
-        return medianValue;
+    public long estimateCount(byte[] item, int offset, int length)
+    {
+        setOffsets(item, offset, length);
+        return estimateOffsets();
+    }
+
+    public long estimateCount(ByteBuffer item)
+    {
+        setOffsets(item);
+        return estimateOffsets();
     }
 
     public long unbiasedEstimateCount(long item) {
-        long[] result = new long[depth];
-        for (int i=0; i < depth; ++i) {
-            result[i] = table[i][hash(item ,i)] - (size - table[i][hash(item ,i)])/(width - 1);
-        }
-        return(median(result));
+        setOffsets(item);
+        return unbiasedEstimateOffsets();
     }
 
-    public long unbiasedEstimateCount(String item) {
-        long[] result = new long[depth];
-        int[] buckets = getHashBuckets(item, depth, width);
-        for (int i=0; i < depth; ++i) {
-            result[i] = table[i][buckets[i]] - (size - table[i][buckets[i]])/(width - 1);
-        }
-        return(median(result));
+    public long unbiasedEstimateCount(CharSequence item) {
+        setOffsets(item);
+        return unbiasedEstimateOffsets();
     }
 
     /**
@@ -251,17 +538,14 @@ public class CountMinSketch
             int width = estimators[0].width;
             long[] hashA = Arrays.copyOf(estimators[0].hashA, estimators[0].hashA.length);
 
-            long[][] table = new long[depth][width];
-            int size = 0;
+            LongTable table = estimators[0].table.newTable();
+            long size = 0;
 
             for (CountMinSketch estimator : estimators)
             {
-                for (int i = 0; i < table.length; i++)
+                for (int i = 0; i < table.length(); i++)
                 {
-                    for (int j = 0; j < table[i].length; j++)
-                    {
-                        table[i][j] += estimator.table[i][j];
-                    }
+                    table.addAndGet(i, estimator.table.get(i));
                 }
                 size += estimator.size;
             }
@@ -272,23 +556,17 @@ public class CountMinSketch
         return merged;
     }
 
+    /**
+     * The sketch in SketchFormat; use a SketchWriter to stream it instead.
+     */
     public static byte[] serialize(CountMinSketch sketch)
     {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream s = new DataOutputStream(bos);
         try
         {
-            s.writeLong(sketch.size);
-            s.writeInt(sketch.depth);
-            s.writeInt(sketch.width);
-            for (int i = 0; i < sketch.depth; ++i)
-            {
-                s.writeLong(sketch.hashA[i]);
-                for (int j = 0; j < sketch.width; ++j)
-                {
-                    s.writeLong(sketch.table[i][j]);
-                }
-            }
+            SketchWriter writer = new SketchWriter(bos);
+            writer.write(sketch);
+            writer.flush();
             return bos.toByteArray();
         }
         catch (IOException e)
@@ -298,12 +576,21 @@ public class CountMinSketch
         }
     }
 
+    /**
+     * Reads serialize() output, including the headerless format it wrote
+     * before SketchFormat.
+     */
     public static CountMinSketch deserialize(byte[] data)
     {
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
         DataInputStream s = new DataInputStream(bis);
         try
         {
+            if ( SketchFormat.hasMagic(data) )
+            {
+                return new SketchReader(bis).readCountMinSketch();
+            }
+
             CountMinSketch sketch = new CountMinSketch();
             sketch.size = s.readLong();
             sketch.depth = s.readInt();
@@ -311,15 +598,16 @@ public class CountMinSketch
             sketch.eps = 2.0 / sketch.width;
             sketch.confidence = 1 - 1 / Math.pow(2, sketch.depth);
             sketch.hashA = new long[sketch.depth];
-            sketch.table = new long[sketch.depth][sketch.width];
+            sketch.table = LongTable.onHeap(sketch.depth * sketch.width);
             for (int i = 0; i < sketch.depth; ++i)
             {
                 sketch.hashA[i] = s.readLong();
                 for (int j = 0; j < sketch.width; ++j)
                 {
-                    sketch.table[i][j] = s.readLong();
+                    sketch.table.set(i * sketch.width + j, s.readLong());
                 }
             }
+            sketch.initScratch();
             return sketch;
         }
         catch (IOException e)
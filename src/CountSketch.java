@@ -13,18 +13,21 @@
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.Arrays;
 
 /**
  * Created by ap349 on 12/11/13.
  */
-public class CountSketch {
+public class CountSketch implements Closeable {
     public static final long PRIME_MODULUS = (1L << 31) - 1;
 
     private int depth;
     private int width;
-    private long[][] sketch;
+    private int mask;
+    // depth rows of width counters, row after row
+    private LongTable sketch;
     private long[] hashA;
     private long[] hashB;
     private long[] hashgA;
@@ -32,27 +35,81 @@ public class CountSketch {
     private long size;
     private double epsilon;
     private double confidence;
+    // Per value scratch: the table offset and the sign of the value's counter
+    // in each row, and the per row estimates for the median. Reused, so no
+    // call allocates.
+    private int[] offsets;
+    private long[] signs;
+    private long[] estimates;
+    private MedianNetwork medianNetwork;
+    // Scratch for addAll/estimateAll, grown to the largest batch seen.
+    private int[] batchOffsets;
+    private long[] batchSigns;
+    private long[] batchEstimates;
+    private int[] batchHashes;
+    private SketchKernel kernel;
 
     public CountSketch() {
 
     }
 
-    public CountSketch(int depth, int width, int seed) {
+    /**
+     * A sketch over an existing table, e.g. one mapped from a
+     * ColumnStatsStore file, with the hash parameters it was built with.
+     */
+    CountSketch(int depth, int width, long size, long[] hashA, long[] hashB,
+                long[] hashgA, long[] hashgB, LongTable sketch) {
         this.depth = depth;
         this.width = width;
+        this.size = size;
+        this.epsilon = Math.sqrt(2.0/width);
+        this.confidence = 1 - (1/Math.pow(2.0, depth));
+        this.hashA = hashA;
+        this.hashB = hashB;
+        this.hashgA = hashgA;
+        this.hashgB = hashgB;
+        this.sketch = sketch;
+        initScratch();
+    }
+
+    /**
+     * The width is rounded up to a power of two, so buckets are picked with a
+     * mask instead of a modulo.
+     */
+    public CountSketch(int depth, int width, int seed) {
+        this.depth = depth;
+        this.width = powerOfTwo(width);
+        this.size = 0;
+        this.epsilon = Math.sqrt(2.0/this.width);
+        this.confidence = 1 - (1/Math.pow(2.0, depth));
+        initTablesWith(depth, this.width, seed, false);
+    }
+
+    /**
+     * With offHeap the counters live in a direct buffer (see LongTable), to
+     * be released with close().
+     */
+    public CountSketch(int depth, int width, int seed, boolean offHeap) {
+        this.depth = depth;
+        this.width = powerOfTwo(width);
         this.size = 0;
-        this.epsilon = Math.sqrt(2/width);
+        this.epsilon = Math.sqrt(2.0/this.width);
         this.confidence = 1 - (1/Math.pow(2.0, depth));
-        initTablesWith(depth, width, seed);
+        initTablesWith(depth, this.width, seed, offHeap);
     }
 
     public CountSketch(double epsilon, double confidence, int seed) {
         this.epsilon = epsilon;
         this.confidence = confidence;
-        this.width = (int) (2/Math.pow(epsilon,2));
+        this.width = powerOfTwo((int) (2/Math.pow(epsilon,2)));
         this.depth = (int) (((-1) * Math.log(1 - confidence))/Math.log(2));
         this.size = 0;
-        initTablesWith(depth, width, seed);
+        initTablesWith(depth, width, seed, false);
+    }
+
+    static int powerOfTwo(int width) {
+        int rounded = Integer.highestOneBit(Math.max(1, width));
+        return rounded == width ? width : rounded << 1;
     }
 
     public double getRelativeError() {
@@ -67,13 +124,79 @@ public class CountSketch {
         return this.size;
     }
 
-    private void initTablesWith(int depth, int width, int seed) {
+    public boolean isOffHeap() {
+        return this.sketch.isOffHeap();
+    }
+
+    public int getDepth() {
+        return this.depth;
+    }
+
+    public int getWidth() {
+        return this.width;
+    }
+
+    long[] getHashA() {
+        return hashA;
+    }
+
+    long[] getHashB() {
+        return hashB;
+    }
+
+    long[] getHashgA() {
+        return hashgA;
+    }
+
+    long[] getHashgB() {
+        return hashgB;
+    }
+
+    LongTable getTable() {
+        return sketch;
+    }
+
+    /**
+     * Adds other, built with the same seed, depth and width, into this
+     * sketch's own table.
+     */
+    public void mergeFrom(CountSketch other) {
+        if ( other.depth != depth || other.width != width || !Arrays.equals(other.hashA, hashA) ||
+             !Arrays.equals(other.hashgA, hashgA) ) {
+            throw new IllegalArgumentException("Cannot merge count sketches of different seeds or sizes");
+        }
+        for (int i=0; i<depth * width; ++i) {
+            this.sketch.addAndGet(i, other.sketch.get(i));
+        }
+        this.size += other.size;
+    }
+
+    /**
+     * Frees an off heap table; the sketch must not be used afterwards.
+     */
+    public void close() {
+        this.sketch.close();
+    }
+
+    private void initTablesWith(int depth, int width, int seed, boolean offHeap) {
+        this.sketch = offHeap ? LongTable.offHeap(depth * width) : LongTable.onHeap(depth * width);
+        long[][] hashes = randomHashes(depth, seed);
+        this.hashA = hashes[0];
+        this.hashB = hashes[1];
+        this.hashgA = hashes[2];
+        this.hashgB = hashes[3];
+        initScratch();
+    }
+
+    /**
+     * hashA, hashB, hashgA and hashgB of a sketch of the given depth and seed.
+     */
+    static long[][] randomHashes(int depth, int seed) {
         Random random = new Random(seed);
-        this.sketch = new long[depth][width];
-        this.hashA = new long[depth];
-        this.hashB = new long[depth];
-        this.hashgA = new long[depth];
-        this.hashgB = new long[depth];
+        long[] hashA = new long[depth];
+        long[] hashB = new long[depth];
+        long[] hashgA = new long[depth];
+        long[] hashgB = new long[depth];
 
         // We're using a linear hash functions
         // of the form (a*x+b) mod p.
@@ -87,105 +210,89 @@ public class CountSketch {
             hashgA[i] = random.nextInt(Integer.MAX_VALUE);
             hashgB[i] = random.nextInt(Integer.MAX_VALUE);
         }
+        return new long[][] { hashA, hashB, hashgA, hashgB };
     }
 
-    private int[] getHashBuckets(byte[] b, int hashCount, int max)
-    {
-        int[] result = new int[hashCount];
-        int hash1 = MurmurHash.hash(b, b.length, 0);
-        int hash2 = MurmurHash.hash(b, b.length, hash1);
-        for (int i = 0; i < hashCount; i++)
-        {
-            result[i] = Math.abs((hash1 + i * hash2) % max);
+    private void initScratch() {
+        if ( Integer.bitCount(width) != 1 ) {
+            throw new IllegalArgumentException("width must be a power of two: " + width);
         }
-        return result;
+        this.mask = width - 1;
+        this.offsets = new int[depth];
+        this.signs = new long[depth];
+        this.estimates = new long[depth];
+        this.medianNetwork = new MedianNetwork(depth);
+        this.batchOffsets = new int[0];
+        this.batchSigns = new long[0];
+        this.batchEstimates = new long[0];
+        this.batchHashes = new int[0];
+        this.kernel = SketchKernel.getDefault();
     }
 
-    private int[] getHashBuckets(String key, int hashCount, int max)
-    {
-        byte[] b;
-        try
-        {
-            b = key.getBytes("UTF-16");
+    private void setOffsets(int hash1, int hash2, int hashg1, int hashg2) {
+        for (int i = 0; i < depth; i++) {
+            offsets[i] = i * width + ((hash1 + i * hash2) & mask);
+            // the parity of the g bucket picks the sign
+            signs[i] = 1 - 2 * ((hashg2 + i * hashg1) & 1);
         }
-        catch (UnsupportedEncodingException e)
-        {
-            throw new RuntimeException(e);
-        }
-        return getHashBuckets(b, hashCount, max);
     }
 
-    private int[] getHashBucketsg(byte[] b, int hashCount, int max)
-    {
-        int[] result = new int[hashCount];
-        int hash1 = MurmurHash.hash(b, b.length, Integer.MAX_VALUE);
-        int hash2 = MurmurHash.hash(b, b.length, hash1);
-        for (int i = 0; i < hashCount; i++)
-        {
-            int temp = Math.abs((hash2 + i * hash1) % max) % 2;
-            if ( temp == 0 ) result[i] = 1;
-            if ( temp == 1 ) result[i] = -1;
-        }
-        return result;
+    // Keys are hashed over their UTF-8 encoding, straight from the chars, so a
+    // key hashes the same whether it comes as a CharSequence or as bytes.
+    private void setOffsets(CharSequence item) {
+        int hash1 = MurmurHash.hash(item, 0);
+        int hashg1 = MurmurHash.hash(item, Integer.MAX_VALUE);
+        setOffsets(hash1, MurmurHash.hash(item, hash1), hashg1, MurmurHash.hash(item, hashg1));
     }
 
-    private int[] getHashBucketsg(String key, int hashCount, int max)
-    {
-        byte[] b;
-        try
-        {
-            b = key.getBytes("UTF-16");
-        }
-        catch (UnsupportedEncodingException e)
-        {
-            throw new RuntimeException(e);
-        }
-        return getHashBucketsg(b, hashCount, max);
+    private void setOffsets(byte[] item, int offset, int length) {
+        int hash1 = MurmurHash.hash(item, offset, length, 0);
+        int hashg1 = MurmurHash.hash(item, offset, length, Integer.MAX_VALUE);
+        setOffsets(hash1, MurmurHash.hash(item, offset, length, hash1),
+                   hashg1, MurmurHash.hash(item, offset, length, hashg1));
     }
 
-    private int hash(long item, int i) {
-        long hash = hashA[i] * item;
-        hash = hash + hashB[i];
-
-        // A super fast way of computing x mod 2^p-1
-        // See http://www.cs.princeton.edu/courses/archive/fall09/cos521/Handouts/universalclasses.pdf
-        // page 149, right after Proposition 7.
-
-        hash += hash >> 32;
-        hash &= PRIME_MODULUS;
-        return ((int) hash % this.width);
+    private void setOffsets(ByteBuffer item) {
+        int hash1 = MurmurHash.hash(item, 0);
+        int hashg1 = MurmurHash.hash(item, Integer.MAX_VALUE);
+        setOffsets(hash1, MurmurHash.hash(item, hash1), hashg1, MurmurHash.hash(item, hashg1));
     }
 
-    private int hashg(long item, int i) {
-        long hash = hashgA[i] * item;
-        hash = hash + hashgB[i];
-
-        // A super fast way of computing x mod 2^p-1
-        // See http://www.cs.princeton.edu/courses/archive/fall09/cos521/Handouts/universalclasses.pdf
-        // page 149, right after Proposition 7.
+    // Row i buckets item by hashA[i] * item + hashB[i] mod 2^31-1 and signs
+    // it by the parity of the same hash with hashgA/hashgB; see SketchKernel.
+    private void setOffsets(long item) {
+        kernel.hashRows(hashA, hashB, item, depth, width, mask, offsets);
+        kernel.signRows(hashgA, hashgB, item, depth, signs);
+    }
 
-        hash += hash >> 32;
-        hash &= PRIME_MODULUS;
+    // The table offsets of an item in each row, in this sketch's scratch, and
+    // (after them) its signs. ConcurrentCountSketch hashes through a sketch of
+    // its own per thread.
+    int[] offsets(long item) {
+        setOffsets(item);
+        return offsets;
+    }
 
-        if ( (int) hash % 2 == 0 ) return 1;
-        return -1;
+    int[] offsets(CharSequence item) {
+        setOffsets(item);
+        return offsets;
     }
 
-    private long median(long[] array) {
-        Arrays.sort(array);
-        int middle = array.length/2;
-        long medianValue = 0;
+    int[] offsets(byte[] item, int offset, int length) {
+        setOffsets(item, offset, length);
+        return offsets;
+    }
 
-        if (array.length % 2 == 1)
-            medianValue = array[middle];
-        else
-            medianValue = (array[middle-1] + array[middle]) / 2;
+    int[] offsets(ByteBuffer item) {
+        setOffsets(item);
+        return offsets;
+    }
 
-        //System.out.println(medianValue);
-        return medianValue;
+    long[] signs() {
+        return signs;
     }
 
-    public void add(long item, long count) {
+    static void checkCount(long count) {
         if ( count < 0 ) {
             // Actually for negative increments we'll need to use the median
             // instead of minimum, and accuracy will suffer somewhat.
@@ -193,78 +300,210 @@ public class CountSketch {
             // parameter to constructor.
             throw new IllegalArgumentException("Negative increments not implemented");
         }
+    }
 
+    private void addOffsets(long count) {
         for ( int i=0; i < depth; ++i ) {
-            this.sketch[i][hash(item, i)] += count * hashg(item, i);
+            this.sketch.addAndGet(offsets[i], count * signs[i]);
         }
 
         this.size += count;
     }
 
-    public void add(String item, long count) {
-        if (count < 0)
-        {
-            // Actually for negative increments we'll need to use the median
-            // instead of minimum, and accuracy will suffer somewhat.
-            // Probably makes sense to add an "allow negative increments"
-            // parameter to constructor.
-            throw new IllegalArgumentException("Negative increments not implemented");
+    private long estimateOffsets() {
+        for ( int i=0; i < depth; ++i ) {
+            estimates[i] = this.sketch.get(offsets[i]) * signs[i];
         }
-        int[] buckets = getHashBuckets(item, depth, width);
-        int[] bucketsg = getHashBucketsg(item, depth, width);
 
-        for (int i=0; i < depth; ++i ) {
-            this.sketch[i][buckets[i]] += count * bucketsg[i];
+        return medianNetwork.median(estimates);
+    }
+
+    private long addAndEstimateOffsets(long count) {
+        for ( int i=0; i < depth; ++i ) {
+            estimates[i] = this.sketch.addAndGet(offsets[i], count * signs[i]) * signs[i];
         }
+
+        this.size += count;
+        return medianNetwork.median(estimates);
     }
 
-    public void add(double item, long count) {
-        add(Double.toString(item), count);
+    private void growBatch(int n) {
+        if ( batchOffsets.length < n * depth ) {
+            batchOffsets = new int[n * depth];
+            batchSigns = new long[n * depth];
+            batchEstimates = new long[n * depth];
+            batchHashes = new int[n * 4];
+        }
     }
 
-    public long estimateCount(long item) {
-        long[] result = new long[this.depth];
+    // Batches are hashed up front into batchOffsets/batchSigns, one row after
+    // the other (offsets[i * n + k] is item k's counter in row i), so that the
+    // updates and lookups can then walk the table one row at a time.
+    private void setBatchOffsets(long[] items, int n) {
+        growBatch(n);
+        for ( int i=0; i < depth; ++i ) {
+            kernel.hashItems(hashA[i], hashB[i], items, n, i * width, mask, batchOffsets, i * n);
+            kernel.signItems(hashgA[i], hashgB[i], items, n, batchSigns, i * n);
+        }
+    }
 
-        for (int i=0; i<this.depth; ++i) {
-            result[i] = this.sketch[i][hash(item, i)] * hashg(item, i);
+    private void setBatchOffsets(CharSequence[] items, int n) {
+        growBatch(n);
+        int[] hashes = batchHashes;
+        for ( int k=0; k < n; ++k ) {
+            int hash1 = MurmurHash.hash(items[k], 0);
+            int hashg1 = MurmurHash.hash(items[k], Integer.MAX_VALUE);
+            hashes[4 * k] = hash1;
+            hashes[4 * k + 1] = MurmurHash.hash(items[k], hash1);
+            hashes[4 * k + 2] = hashg1;
+            hashes[4 * k + 3] = MurmurHash.hash(items[k], hashg1);
         }
+        for ( int i=0; i < depth; ++i ) {
+            int base = i * width;
+            for ( int k=0; k < n; ++k ) {
+                batchOffsets[i * n + k] = base + ((hashes[4 * k] + i * hashes[4 * k + 1]) & mask);
+                batchSigns[i * n + k] = 1 - 2 * ((hashes[4 * k + 3] + i * hashes[4 * k + 2]) & 1);
+            }
+        }
+    }
 
-        return median(result);
+    /**
+     * Adds counts[k] to items[k] for the first n items. Same result as n calls
+     * to add, but the whole batch is hashed first and the table is then
+     * updated one row at a time.
+     */
+    public void addAll(long[] items, long[] counts, int n) {
+        for ( int k=0; k < n; ++k ) {
+            checkCount(counts[k]);
+        }
+        setBatchOffsets(items, n);
+
+        for ( int i=0; i < depth; ++i ) {
+            for ( int k=0; k < n; ++k ) {
+                this.sketch.addAndGet(batchOffsets[i * n + k], counts[k] * batchSigns[i * n + k]);
+            }
+        }
+        for ( int k=0; k < n; ++k ) {
+            this.size += counts[k];
+        }
     }
 
-    public long estimateCount(String item) {
-        long[] result = new long[this.depth];
-        int[] buckets = getHashBuckets(item, depth, width);
-        int[] bucketsg = getHashBucketsg(item, depth,width);
+    /**
+     * Adds one occurrence of each of the first n items.
+     */
+    public void addAll(CharSequence[] items, int n) {
+        setBatchOffsets(items, n);
 
-        for (int i=0; i<this.depth; ++i) {
-            result[i] = this.sketch[i][buckets[i]] * bucketsg[i];
+        for ( int i=0; i < depth * n; ++i ) {
+            this.sketch.addAndGet(batchOffsets[i], batchSigns[i]);
         }
+        this.size += n;
+    }
+
+    /**
+     * Writes the estimate of items[k] into estimates[k] for the first n items.
+     */
+    public void estimateAll(long[] items, int n, long[] estimates) {
+        setBatchOffsets(items, n);
+        estimateBatchOffsets(n, estimates);
+    }
 
-        return median(result);
+    public void estimateAll(CharSequence[] items, int n, long[] estimates) {
+        setBatchOffsets(items, n);
+        estimateBatchOffsets(n, estimates);
     }
 
+    private void estimateBatchOffsets(int n, long[] estimates) {
+        kernel.gather(this.sketch, batchOffsets, batchSigns, depth * n, batchEstimates);
+        kernel.medianRows(medianNetwork, batchEstimates, n, estimates);
+    }
+
+    public void add(long item, long count) {
+        checkCount(count);
+        setOffsets(item);
+        addOffsets(count);
+    }
+
+    public void add(CharSequence item, long count) {
+        checkCount(count);
+        setOffsets(item);
+        addOffsets(count);
+    }
+
+    public void add(byte[] item, int offset, int length, long count) {
+        checkCount(count);
+        setOffsets(item, offset, length);
+        addOffsets(count);
+    }
+
+    public void add(ByteBuffer item, long count) {
+        checkCount(count);
+        setOffsets(item);
+        addOffsets(count);
+    }
+
+    public void add(double item, long count) {
+        add(Double.toString(item), count);
+    }
+
+    /**
+     * Adds count to item and returns its new estimate, hashing it only once.
+     */
+    public long addAndEstimate(long item, long count) {
+        checkCount(count);
+        setOffsets(item);
+        return addAndEstimateOffsets(count);
+    }
+
+    public long addAndEstimate(CharSequence item, long count) {
+        checkCount(count);
+        setOffsets(item);
+        return addAndEstimateOffsets(count);
+    }
+
+    public long addAndEstimate(byte[] item, int offset, int length, long count) {
+        checkCount(count);
+        setOffsets(item, offset, length);
+        return addAndEstimateOffsets(count);
+    }
+
+    public long addAndEstimate(ByteBuffer item, long count) {
+        checkCount(count);
+        setOffsets(item);
+        return addAndEstimateOffsets(count);
+    }
+
+    public long estimateCount(long item) {
+        setOffsets(item);
+        return estimateOffsets();
+    }
+
+    public long estimateCount(CharSequence item) {
+        setOffsets(item);
+        return estimateOffsets();
+    }
+
+    public long estimateCount(byte[] item, int offset, int length) {
+        setOffsets(item, offset, length);
+        return estimateOffsets();
+    }
+
+    public long estimateCount(ByteBuffer item) {
+        setOffsets(item);
+        return estimateOffsets();
+    }
+
+    /**
+     * The sketch in SketchFormat; use a SketchWriter to stream it instead.
+     */
     public static byte[] serialize(CountSketch sketch)
     {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        DataOutputStream s = new DataOutputStream(bos);
         try
         {
-            s.writeLong(sketch.size);
-            s.writeInt(sketch.depth);
-            s.writeInt(sketch.width);
-            for (int i = 0; i < sketch.depth; ++i)
-            {
-                s.writeLong(sketch.hashA[i]);
-                s.writeLong(sketch.hashB[i]);
-                s.writeLong(sketch.hashgA[i]);
-                s.writeLong(sketch.hashgB[i]);
-
-                for (int j = 0; j < sketch.width; ++j)
-                {
-                    s.writeLong(sketch.sketch[i][j]);
-                }
-            }
+            SketchWriter writer = new SketchWriter(bos);
+            writer.write(sketch);
+            writer.flush();
             return bos.toByteArray();
         }
         catch (IOException e)
@@ -274,23 +513,32 @@ public class CountSketch {
         }
     }
 
+    /**
+     * Reads serialize() output, including the headerless format it wrote
+     * before SketchFormat.
+     */
     public static CountSketch deserialize(byte[] data)
     {
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
         DataInputStream s = new DataInputStream(bis);
         try
         {
+            if ( SketchFormat.hasMagic(data) )
+            {
+                return new SketchReader(bis).readCountSketch();
+            }
+
             CountSketch sketch = new CountSketch();
             sketch.size = s.readLong();
             sketch.depth = s.readInt();
             sketch.width = s.readInt();
-            sketch.epsilon = Math.sqrt(2/sketch.width);
+            sketch.epsilon = Math.sqrt(2.0/sketch.width);
             sketch.confidence = 1 - (1/Math.pow(2.0, sketch.depth));;
             sketch.hashA = new long[sketch.depth];
             sketch.hashB = new long[sketch.depth];
             sketch.hashgA = new long[sketch.depth];
             sketch.hashgB = new long[sketch.depth];
-            sketch.sketch = new long[sketch.depth][sketch.width];
+            sketch.sketch = LongTable.onHeap(sketch.depth * sketch.width);
 
             for (int i = 0; i < sketch.depth; ++i)
             {
@@ -301,9 +549,10 @@ public class CountSketch {
 
                 for (int j = 0; j < sketch.width; ++j)
                 {
-                    sketch.sketch[i][j] = s.readLong();
+                    sketch.sketch.set(i * sketch.width + j, s.readLong());
                 }
             }
+            sketch.initScratch();
             return sketch;
         }
         catch (IOException e)
@@ -328,16 +577,18 @@ public class CountSketch {
             merged.hashB = hashB;
             merged.hashgA = hashgA;
             merged.hashgB = hashgB;
-            long[][] sketch = new long[merged.depth][merged.width];
+            merged.epsilon = estimators[0].epsilon;
+            merged.confidence = estimators[0].confidence;
+            LongTable sketch = estimators[0].sketch.newTable();
+            merged.sketch = sketch;
 
             for (CountSketch estimator : estimators) {
-                for (int i=0; i<sketch.length; ++i)  {
-                    for (int j=0; j<sketch[i].length; ++j) {
-                        sketch[i][j] += estimator.sketch[i][j];
-                    }
+                for (int i=0; i<sketch.length(); ++i)  {
+                    sketch.addAndGet(i, estimator.sketch.get(i));
                 }
                 merged.size += estimator.size;
             }
+            merged.initScratch();
         }
 
         return merged;
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rows of a delimited text file (CSV, TSV) in UTF-8, whose first line names
+ * the columns. Every column is gathered as strings; an empty field is a null,
+ * as in Oracle. Fields may be quoted with double quotes, a quote inside being
+ * doubled, but a quoted field cannot span lines and its closing quote must
+ * end it. Each row is located by its line number in the file.
+ */
+public class FileRowSource implements RowSource {
+    private BufferedReader reader;
+    private char delimiter;
+    private String[] labels;
+    private long line;
+    private List<String> fields = new ArrayList<String>();
+
+    public FileRowSource(File file, char delimiter) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        this.delimiter = delimiter;
+
+        String header = reader.readLine();
+        if ( header == null ) {
+            reader.close();
+            throw new IOException("No header in " + file);
+        }
+        this.line = 1;
+        split(header);
+        this.labels = fields.toArray(new String[fields.size()]);
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public String getColumnLabel(int column) {
+        return labels[column];
+    }
+
+    public String getColumnClassName(int column) {
+        return "java.lang.String";
+    }
+
+    public ColumnStats.IngestType getIngestType(int column) {
+        return ColumnStats.IngestType.STRING;
+    }
+
+    public boolean next(RowBatch batch) throws IOException {
+        int start = batch.getSize();
+        String text;
+
+        while ( !batch.isFull() && (text = reader.readLine()) != null ) {
+            ++line;
+            if ( text.isEmpty() ) {
+                continue;
+            }
+            split(text);
+            if ( fields.size() != labels.length ) {
+                throw new IOException("Line " + line + " has " + fields.size() + " fields, not " + labels.length);
+            }
+            batch.setRowid(new RowLocator(line));
+            for (int i=0; i<labels.length; ++i) {
+                String field = fields.get(i);
+                batch.setValue(i, field.isEmpty() ? null : field);
+            }
+            batch.nextRow();
+        }
+        return batch.getSize() > start;
+    }
+
+    private void split(String text) throws IOException {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean closed = false;
+
+        for (int i=0; i<text.length(); ++i) {
+            char c = text.charAt(i);
+            if ( closed && c != delimiter ) {
+                // as MappedFileScanner: "ab"c is malformed, not abc
+                throw new IOException("Text after a closing quote on line " + line);
+            }
+            closed = false;
+            if ( quoted ) {
+                if ( c != '"' ) {
+                    field.append(c);
+                } else if ( i + 1 < text.length() && text.charAt(i + 1) == '"' ) {
+                    field.append(c);
+                    ++i;
+                } else {
+                    quoted = false;
+                    closed = true;
+                }
+            } else if ( c == '"' && field.length() == 0 ) {
+                quoted = true;
+            } else if ( c == delimiter ) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if ( quoted ) {
+            throw new IOException("Unterminated quote on line " + line);
+        }
+        fields.add(field.toString());
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
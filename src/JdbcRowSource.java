@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Rows of a ResultSet from any JDBC driver. The first locatorColumns columns
+ * of the select locate the row and are not gathered: a ROWID read with
+ * getRowId (Oracle's "select rowid, ..."), or the primary key for drivers
+ * without RowId support such as Postgres and MySQL.
+ */
+public class JdbcRowSource implements RowSource {
+    private ResultSet resultSet;
+    private boolean rowId;
+    private int locatorColumns;
+    private String[] labels;
+    private String[] classNames;
+    private ColumnStats.IngestType[] ingestTypes;
+
+    private JdbcRowSource(ResultSet resultSet, boolean rowId, int locatorColumns) throws SQLException {
+        this.resultSet = resultSet;
+        this.rowId = rowId;
+        this.locatorColumns = locatorColumns;
+
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columnCount = metaData.getColumnCount() - locatorColumns;
+        this.labels = new String[columnCount];
+        this.classNames = new String[columnCount];
+        this.ingestTypes = new ColumnStats.IngestType[columnCount];
+        for (int i=0; i<columnCount; ++i) {
+            int index = i + locatorColumns + 1;
+            labels[i] = metaData.getColumnLabel(index);
+            classNames[i] = metaData.getColumnClassName(index);
+            ingestTypes[i] = ColumnStats.IngestType.forColumn(classNames[i], metaData.getPrecision(index),
+                                                              metaData.getScale(index));
+        }
+    }
+
+    /**
+     * The first column is the ROWID of the row.
+     */
+    public static JdbcRowSource withRowId(ResultSet resultSet) throws SQLException {
+        return new JdbcRowSource(resultSet, true, 1);
+    }
+
+    /**
+     * The first keyColumns columns are the primary key of the row; the
+     * locator is their values, separated by commas.
+     */
+    public static JdbcRowSource withKey(ResultSet resultSet, int keyColumns) throws SQLException {
+        return new JdbcRowSource(resultSet, false, keyColumns);
+    }
+
+    /**
+     * Every column is gathered and rows have no locator.
+     */
+    public static JdbcRowSource withoutLocator(ResultSet resultSet) throws SQLException {
+        return new JdbcRowSource(resultSet, false, 0);
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public String getColumnLabel(int column) {
+        return labels[column];
+    }
+
+    public String getColumnClassName(int column) {
+        return classNames[column];
+    }
+
+    public ColumnStats.IngestType getIngestType(int column) {
+        return ingestTypes[column];
+    }
+
+    public boolean next(RowBatch batch) throws IOException {
+        int start = batch.getSize();
+
+        try {
+            while ( !batch.isFull() && resultSet.next() ) {
+                if ( rowId ) {
+                    batch.setRowid(resultSet.getRowId(1));
+                } else if ( locatorColumns > 0 ) {
+                    batch.setRowid(getKey());
+                }
+                for (int i=0; i<labels.length; ++i) {
+                    fetchColumnValue(i + locatorColumns + 1, i, batch);
+                }
+                batch.nextRow();
+            }
+            return batch.getSize() > start;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private RowLocator getKey() throws SQLException {
+        if ( locatorColumns == 1 ) {
+            return new RowLocator(String.valueOf(resultSet.getString(1)));
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i=1; i<=locatorColumns; ++i) {
+            if ( i > 1 ) {
+                key.append(',');
+            }
+            key.append(resultSet.getString(i));
+        }
+        return new RowLocator(key.toString());
+    }
+
+    // Reads a column of the current row with the getter of its ingest type.
+    private void fetchColumnValue(int columnIndex, int column, RowBatch batch) throws SQLException {
+        switch ( ingestTypes[column] ) {
+            case LONG: {
+                long value = resultSet.getLong(columnIndex);
+                if ( resultSet.wasNull() ) {
+                    batch.setNull(column);
+                } else {
+                    batch.setLong(column, value);
+                }
+                break;
+            }
+            case DOUBLE: {
+                double value = resultSet.getDouble(columnIndex);
+                if ( resultSet.wasNull() ) {
+                    batch.setNull(column);
+                } else {
+                    batch.setLong(column, Double.doubleToRawLongBits(value));
+                }
+                break;
+            }
+            case TIMESTAMP:
+                batch.setValue(column, resultSet.getTimestamp(columnIndex));
+                break;
+            default:
+                batch.setValue(column, resultSet.getObject(columnIndex));
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            resultSet.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
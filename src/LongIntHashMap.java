@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) map from long keys to non negative int
+ * values, without boxing. Removal shifts the following entries back instead
+ * of leaving tombstones, so lookups never degrade after many splits.
+ *
+ * find returns the table index of a key, or the index where it would go,
+ * so a lookup followed by an insert costs a single probe sequence.
+ */
+public class LongIntHashMap {
+    public static final int NO_VALUE = -1;
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int shift;
+    private int size;
+
+    public LongIntHashMap(int expectedSize) {
+        allocate(Math.max(4, Integer.highestOneBit(Math.max(1, expectedSize) * 2 - 1) << 1));
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        this.size = 0;
+        Arrays.fill(values, NO_VALUE);
+    }
+
+    private int index(long key) {
+        return (int) ((key * PHI) >>> shift);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the index of key if it is present, or -(insertion index + 1).
+     */
+    public int find(long key) {
+        int i = index(key);
+        while ( values[i] != NO_VALUE ) {
+            if ( keys[i] == key ) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -(i + 1);
+    }
+
+    public int get(long key) {
+        int i = find(key);
+        return i >= 0 ? values[i] : NO_VALUE;
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    public long keyAt(int index) {
+        return keys[index];
+    }
+
+    public int valueAt(int index) {
+        return values[index];
+    }
+
+    public void setValueAt(int index, int value) {
+        values[index] = value;
+    }
+
+    /**
+     * Inserts at the position returned by a failed find. Nothing may have been
+     * inserted or removed since that find.
+     */
+    public void insertAt(int notFound, long key, int value) {
+        int i = -notFound - 1;
+        keys[i] = key;
+        values[i] = value;
+        ++size;
+
+        if ( size * 2 > keys.length ) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    public void put(long key, int value) {
+        int i = find(key);
+        if ( i >= 0 ) {
+            values[i] = value;
+        } else {
+            insertAt(i, key, value);
+        }
+    }
+
+    public int remove(long key) {
+        int i = find(key);
+        if ( i < 0 ) {
+            return NO_VALUE;
+        }
+
+        int value = values[i];
+        int j = i;
+        while ( true ) {
+            j = (j + 1) & mask;
+            if ( values[j] == NO_VALUE ) {
+                break;
+            }
+            // The entry at j may fill the hole at i unless its home slot lies
+            // cyclically in (i, j].
+            int home = index(keys[j]);
+            if ( ((j - home) & mask) >= ((j - i) & mask) ) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = NO_VALUE;
+        --size;
+        return value;
+    }
+
+    public void clear() {
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+
+        for (int i=0; i<oldKeys.length; ++i) {
+            if ( oldValues[i] != NO_VALUE ) {
+                int j = index(oldKeys[i]);
+                while ( values[j] != NO_VALUE ) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                ++size;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size table of long counters, the storage of CountSketch and
+ * CountMinSketch. onHeap() is a plain long[]; offHeap() is a direct buffer
+ * that the GC neither scans nor copies, freed by close() rather than when it
+ * becomes garbage. getOffHeapBytes() tells how much is currently allocated.
+ * wrap() is a view of longs in a buffer owned by someone else, such as a
+ * region of a mapped ColumnStatsStore file.
+ */
+public abstract class LongTable implements Closeable {
+    // a direct buffer is indexed by int bytes
+    public static final int MAX_OFF_HEAP_LENGTH = Integer.MAX_VALUE / 8;
+
+    private static final AtomicLong offHeapBytes = new AtomicLong();
+
+    public static LongTable onHeap(int length) {
+        return new HeapTable(new long[length]);
+    }
+
+    public static LongTable onHeap(long[] array) {
+        return new HeapTable(array);
+    }
+
+    public static LongTable offHeap(int length) {
+        return new DirectTable(length);
+    }
+
+    /**
+     * A table over the longs of buffer, from its position to its limit, in
+     * the buffer's byte order. It is not counted by getOffHeapBytes and
+     * close() leaves the buffer alone.
+     */
+    public static LongTable wrap(ByteBuffer buffer) {
+        return new DirectTable(buffer);
+    }
+
+    public static long getOffHeapBytes() {
+        return offHeapBytes.get();
+    }
+
+    public abstract int length();
+
+    public abstract long get(int index);
+
+    public abstract void set(int index, long value);
+
+    public abstract long addAndGet(int index, long delta);
+
+    /**
+     * Copies values.length counters, from index on, into values.
+     */
+    public abstract void get(int index, long[] values);
+
+    /**
+     * The backing array, or null if the table is off heap.
+     */
+    public abstract long[] array();
+
+    public boolean isOffHeap() {
+        return array() == null;
+    }
+
+    /**
+     * A new, zeroed table of the same length and kind.
+     */
+    public LongTable newTable() {
+        return isOffHeap() ? offHeap(length()) : onHeap(length());
+    }
+
+    /**
+     * Frees off heap memory right away. The table must not be used after.
+     */
+    public void close() {
+    }
+
+    private static final class HeapTable extends LongTable {
+        private final long[] array;
+
+        HeapTable(long[] array) {
+            this.array = array;
+        }
+
+        public int length() {
+            return array.length;
+        }
+
+        public long get(int index) {
+            return array[index];
+        }
+
+        public void set(int index, long value) {
+            array[index] = value;
+        }
+
+        public long addAndGet(int index, long delta) {
+            return array[index] += delta;
+        }
+
+        public void get(int index, long[] values) {
+            System.arraycopy(array, index, values, 0, values.length);
+        }
+
+        public long[] array() {
+            return array;
+        }
+    }
+
+    private static final class DirectTable extends LongTable {
+        private static final LongBuffer CLOSED = LongBuffer.allocate(0);
+
+        private final int length;
+        private final boolean owned;
+        private ByteBuffer buffer;
+        private LongBuffer longs;
+
+        DirectTable(int length) {
+            if ( length < 0 || length > MAX_OFF_HEAP_LENGTH ) {
+                throw new IllegalArgumentException("Off heap table too large: " + length);
+            }
+            this.length = length;
+            // allocateDirect zeroes the memory
+            this.buffer = ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder());
+            this.longs = buffer.asLongBuffer();
+            this.owned = true;
+            offHeapBytes.addAndGet(length * 8L);
+        }
+
+        DirectTable(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.longs = buffer.asLongBuffer();
+            this.length = longs.remaining();
+            this.owned = false;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public long get(int index) {
+            return longs.get(index);
+        }
+
+        public void set(int index, long value) {
+            longs.put(index, value);
+        }
+
+        public long addAndGet(int index, long delta) {
+            long value = longs.get(index) + delta;
+            longs.put(index, value);
+            return value;
+        }
+
+        public void get(int index, long[] values) {
+            LongBuffer view = longs.duplicate();
+            view.position(index);
+            view.get(values);
+        }
+
+        public long[] array() {
+            return null;
+        }
+
+        public synchronized void close() {
+            if ( buffer == null ) {
+                return;
+            }
+            if ( !owned ) {
+                longs = CLOSED;
+                buffer = null;
+                return;
+            }
+            // any later access fails on the empty buffer instead of reading
+            // freed memory
+            ByteBuffer freed = buffer;
+            longs = CLOSED;
+            buffer = null;
+            offHeapBytes.addAndGet(-length * 8L);
+            free(freed);
+        }
+    }
+
+    // There is no public API to free a direct buffer: use Unsafe.invokeCleaner
+    // on Java 9+ and the buffer's Cleaner before that. If neither is there the
+    // memory goes when the buffer is collected.
+    private static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // before Java 9
+        }
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if ( c != null ) {
+                c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (Exception e) {
+            // left to the GC
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel scan of a delimited text file (CSV, TSV) in UTF-8, with the same
+ * format as FileRowSource: a header line naming the columns, every column
+ * gathered as strings, empty fields as nulls, double quoted fields that do
+ * not span lines.
+ *
+ * The file is cut into chunks of CHUNK_SIZE bytes. Each thread maps a chunk
+ * at a time with FileChannel.map and takes the lines that start in it, the
+ * last one read past its end. Fields are hashed straight from the mapped
+ * bytes into the thread's own ColumnStats, a String being built only for the
+ * values that enter a sketch; the stats of the threads are merged at the end
+ * (ColumnStats.merge). Rows have no locator.
+ */
+public class MappedFileScanner {
+    public static int CHUNK_SIZE      = 64 << 20;
+    public static int MAX_LINE_LENGTH = 1 << 20;
+
+    private File file;
+    private byte delimiter;
+    private String[] labels;
+    private long dataStart;
+    private long size;
+    private RowSourceStatistics rowSourceStatistics = new RowSourceStatistics();
+
+    public MappedFileScanner(File file, char delimiter) throws IOException {
+        if ( delimiter >= 0x80 || delimiter == '"' || delimiter == '\n' || delimiter == '\r' ) {
+            throw new IllegalArgumentException("Delimiter must be an ASCII character other than quote or newline");
+        }
+        this.file = file;
+        this.delimiter = (byte) delimiter;
+
+        FileRowSource header = new FileRowSource(file, delimiter);
+        try {
+            this.labels = new String[header.getColumnCount()];
+            for (int i=0; i<labels.length; ++i) {
+                labels[i] = header.getColumnLabel(i);
+            }
+        } finally {
+            header.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            this.size = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                                  Math.min(size, MAX_LINE_LENGTH));
+            int p = 0;
+            while ( p < buffer.limit() && buffer.get(p) != '\n' ) {
+                ++p;
+            }
+            if ( p == buffer.limit() && p < size ) {
+                throw new IOException("Header of " + file + " longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            this.dataStart = Math.min(size, p + 1);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public String getColumnLabel(int column) {
+        return labels[column];
+    }
+
+    /**
+     * Picks the heavy hitter engine for one column (by its label); the other
+     * columns use SqlStatistics.TOPK_ENGINE.
+     */
+    public void setTopKEngine(String columnLabel, TopK.Engine engine) {
+        rowSourceStatistics.setTopKEngine(columnLabel, engine);
+    }
+
+    private class Scanner implements Callable<ColumnStats[]> {
+        private FileChannel channel;
+        private AtomicInteger nextChunk;
+        private int chunks;
+        private ColumnStats[] columnStats;
+        // a quoted field with doubled quotes, unescaped
+        private byte[] unescaped = new byte[MAX_LINE_LENGTH];
+        // file offsets of the chunk mapped
+        private long mapStart;
+        private long mapEnd;
+
+        public Scanner(FileChannel channel, AtomicInteger nextChunk, int chunks, int seed) {
+            this.channel = channel;
+            this.nextChunk = nextChunk;
+            this.chunks = chunks;
+            this.columnStats = new ColumnStats[labels.length];
+            for (int i=0; i<labels.length; ++i) {
+                columnStats[i] = rowSourceStatistics.createColumnStats(labels[i], "java.lang.String",
+                                                                       ColumnStats.IngestType.STRING, seed);
+            }
+        }
+
+        @Override
+        public ColumnStats[] call() throws IOException {
+            int chunk = nextChunk.getAndIncrement();
+
+            while ( chunk < chunks ) {
+                long start = dataStart + (long) chunk * CHUNK_SIZE;
+                scan(start, Math.min(size, start + CHUNK_SIZE));
+                chunk = nextChunk.getAndIncrement();
+            }
+            return columnStats;
+        }
+
+        // Scans the lines starting in [start, end). The map begins a byte early
+        // so a chunk can tell whether it starts on a line, and runs up to
+        // MAX_LINE_LENGTH past the end for its last line.
+        private void scan(long start, long end) throws IOException {
+            mapStart = start == dataStart ? start : start - 1;
+            mapEnd = Math.min(size, end + MAX_LINE_LENGTH);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+            int limit = buffer.limit();
+            int last = (int) (end - mapStart);
+            int p = 0;
+
+            if ( start != dataStart ) {
+                while ( p < limit && buffer.get(p) != '\n' ) {
+                    ++p;
+                }
+                ++p;
+            }
+
+            while ( p < last ) {
+                int next = scanLine(buffer, p, limit);
+                if ( next < 0 ) {
+                    throw new IOException("Line at byte " + (mapStart + p) + " longer than " +
+                                          MAX_LINE_LENGTH + " bytes");
+                }
+                p = next;
+            }
+        }
+
+        // Adds the fields of the line at p and returns the index after it, or
+        // -1 if it runs past the end of the map before the end of the file.
+        private int scanLine(MappedByteBuffer buffer, int p, int limit) throws IOException {
+            int lineStart = p;
+            int column = 0;
+
+            if ( buffer.get(p) == '\n' ) {
+                return p + 1;
+            }
+            if ( buffer.get(p) == '\r' && p + 1 < limit && buffer.get(p + 1) == '\n' ) {
+                return p + 2;
+            }
+
+            while ( true ) {
+                if ( column == labels.length ) {
+                    throw new IOException("Line at byte " + (mapStart + lineStart) + " has more than " +
+                                          labels.length + " fields");
+                }
+
+                if ( p < limit && buffer.get(p) == '"' ) {
+                    int q = p + 1;
+                    boolean escaped = false;
+                    while ( true ) {
+                        if ( q >= limit && mapEnd < size ) {
+                            return -1;
+                        }
+                        if ( q >= limit || buffer.get(q) == '\n' ) {
+                            throw new IOException("Unterminated quote in line at byte " +
+                                                  (mapStart + lineStart));
+                        }
+                        if ( buffer.get(q) == '"' ) {
+                            if ( q + 1 < limit && buffer.get(q + 1) == '"' ) {
+                                escaped = true;
+                                q += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        ++q;
+                    }
+                    add(columnStats[column], buffer, p + 1, q, escaped);
+                    p = q + 1;
+                } else {
+                    int q = p;
+                    while ( q < limit && buffer.get(q) != delimiter && buffer.get(q) != '\n' ) {
+                        ++q;
+                    }
+                    int fieldEnd = q;
+                    if ( fieldEnd > p && buffer.get(fieldEnd - 1) == '\r' ) {
+                        --fieldEnd;
+                    }
+                    add(columnStats[column], buffer, p, fieldEnd, false);
+                    p = q;
+                }
+                ++column;
+
+                if ( p < limit && buffer.get(p) == '\r' ) {
+                    ++p;
+                }
+                if ( p >= limit ) {
+                    if ( mapEnd < size ) {
+                        return -1;
+                    }
+                    break;
+                }
+                byte b = buffer.get(p++);
+                if ( b == '\n' ) {
+                    break;
+                }
+                if ( b != delimiter ) {
+                    throw new IOException("Text after a closing quote in line at byte " +
+                                          (mapStart + lineStart));
+                }
+            }
+
+            if ( column != labels.length ) {
+                throw new IOException("Line at byte " + (mapStart + lineStart) + " has " + column +
+                                      " fields, not " + labels.length);
+            }
+            return p;
+        }
+
+        private void add(ColumnStats stats, MappedByteBuffer buffer, int start, int end, boolean escaped) {
+            if ( start == end ) {
+                stats.addNull();
+            } else if ( !escaped ) {
+                stats.add(buffer, start, end - start, null);
+            } else {
+                int length = 0;
+                for (int i=start; i<end; ++i) {
+                    unescaped[length++] = buffer.get(i);
+                    if ( buffer.get(i) == '"' ) {
+                        ++i;
+                    }
+                }
+                stats.add(unescaped, 0, length, null);
+            }
+        }
+
+    }
+
+    /**
+     * Scans the file with the given number of threads and returns the stats
+     * of its columns, by label.
+     */
+    public HashMap<String, ColumnStats> scan(int threads) throws IOException {
+        int chunks = (int) ((size - dataStart + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        threads = Math.max(1, Math.min(threads, chunks));
+        int seed = (int)System.currentTimeMillis();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        List<Future<ColumnStats[]>> futures = new ArrayList<Future<ColumnStats[]>>();
+        ColumnStats[][] scanned = new ColumnStats[threads][];
+        long startTime = System.nanoTime();
+
+        try {
+            AtomicInteger nextChunk = new AtomicInteger();
+            for (int i=0; i<threads; ++i) {
+                futures.add(executorService.submit(new Scanner(raf.getChannel(), nextChunk, chunks, seed)));
+            }
+            for (int i=0; i<threads; ++i) {
+                scanned[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if ( e.getCause() instanceof IOException ) {
+                throw (IOException) e.getCause();
+            }
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executorService.shutdownNow();
+            raf.close();
+        }
+
+        HashMap<String, ColumnStats> statsHashMap = new HashMap<String, ColumnStats>();
+        for (int column=0; column<labels.length; ++column) {
+            ColumnStats[] columnStats = new ColumnStats[threads];
+            for (int i=0; i<threads; ++i) {
+                columnStats[i] = scanned[i][column];
+            }
+            statsHashMap.put(labels[column], threads == 1 ? columnStats[0] : ColumnStats.merge(columnStats));
+        }
+
+        long elapsed = System.nanoTime() - startTime;
+        System.out.println("Scanned " + size/(1024*1024) + " MB in " + elapsed/1000000 + " ms (" +
+                           (long) (size * 1e9 / elapsed / (1024*1024)) + " MB/s) with " + threads + " threads");
+        return statsHashMap;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if ( args.length < 1 ) {
+            System.out.println("Usage: java MappedFileScanner file [delimiter] [threads]");
+            return;
+        }
+        char delimiter = args.length > 1 ? (args[1].equals("\\t") ? '\t' : args[1].charAt(0)) : ',';
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        HashMap<String, ColumnStats> val = new MappedFileScanner(new File(args[0]), delimiter).scan(threads);
+        for (ColumnStats columnStats : val.values()) {
+            if ( !columnStats.isDoingLossyCounting() ) {
+                columnStats.dumpCardinalitySketchIntoTopk();
+            }
+        }
+        SqlStatistics.printColumnStats(val);
+        SqlStatistics.closeColumnStats(val);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Fixed compare-exchange network (Batcher's odd-even merge sort) for the
+ * median of a handful of values, e.g. one estimate per sketch row. The
+ * comparators are generated once for the size, so a median costs a fixed
+ * sequence of branch free min/max operations instead of an Arrays.sort.
+ */
+public class MedianNetwork {
+    private int size;
+    private int[] comparators;
+
+    public MedianNetwork(int size) {
+        this.size = size;
+
+        int count = 0;
+        int[] pairs = new int[size * size * 2 + 2];
+        for (int p=1; p<size; p <<= 1) {
+            for (int k=p; k>=1; k >>= 1) {
+                for (int j=k % p; j<=size - 1 - k; j += 2 * k) {
+                    for (int i=0; i<=Math.min(k - 1, size - j - k - 1); ++i) {
+                        if ( (i + j) / (p * 2) == (i + j + k) / (p * 2) ) {
+                            pairs[count++] = i + j;
+                            pairs[count++] = i + j + k;
+                        }
+                    }
+                }
+            }
+        }
+
+        this.comparators = java.util.Arrays.copyOf(pairs, count);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * The compare-exchange pairs, flattened: (c[0], c[1]), (c[2], c[3]), ...
+     */
+    int[] getComparators() {
+        return comparators;
+    }
+
+    /**
+     * Sorts the first size values in place and returns their median (the mean
+     * of the two middle values for an even size).
+     */
+    public long median(long[] values) {
+        return median(values, 0);
+    }
+
+    /**
+     * Same as median(values), for the size values starting at offset.
+     */
+    public long median(long[] values, int offset) {
+        int[] c = comparators;
+        for (int i=0; i<c.length; i += 2) {
+            long a = values[offset + c[i]];
+            long b = values[offset + c[i + 1]];
+            values[offset + c[i]] = Math.min(a, b);
+            values[offset + c[i + 1]] = Math.max(a, b);
+        }
+
+        int middle = offset + size / 2;
+        if ( size % 2 == 1 ) {
+            return values[middle];
+        }
+        return (values[middle - 1] + values[middle]) / 2;
+    }
+}
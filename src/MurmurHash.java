@@ -15,6 +15,10 @@
  * the License.
  */
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Timestamp;
+
 /**
  * This is a very fast, non-cryptographic hash suitable for general hash-based
  * lookup. See http://murmurhash.googlepages.com/ for more details.
@@ -26,6 +30,8 @@
  */
 public class MurmurHash
 {
+    public static final int HASH64_SEED = 0xe17a1465;
+
     public static int hash(Object o)
     {
         if (o == null)
@@ -48,9 +54,9 @@ public class MurmurHash
         {
             return hashLong(Float.floatToRawIntBits((Float) o));
         }
-        if (o instanceof String)
+        if (o instanceof CharSequence)
         {
-            return hash(((String) o).getBytes());
+            return hash((CharSequence) o, -1);
         }
         if (o instanceof byte[])
         {
@@ -70,6 +76,11 @@ public class MurmurHash
     }
 
     public static int hash(byte[] data, int length, int seed)
+    {
+        return hash(data, 0, length, seed);
+    }
+
+    public static int hash(byte[] data, int offset, int length, int seed)
     {
         int m = 0x5bd1e995;
         int r = 24;
@@ -80,7 +91,7 @@ public class MurmurHash
 
         for (int i = 0; i < len_4; i++)
         {
-            int i_4 = i << 2;
+            int i_4 = offset + (i << 2);
             int k = data[i_4 + 3];
             k = k << 8;
             k = k | (data[i_4 + 2] & 0xff);
@@ -98,20 +109,79 @@ public class MurmurHash
         // avoid calculating modulo
         int len_m = len_4 << 2;
         int left = length - len_m;
+        int end = offset + length;
+
+        if (left != 0)
+        {
+            if (left >= 3)
+            {
+                h ^= (int) data[end - 3] << 16;
+            }
+            if (left >= 2)
+            {
+                h ^= (int) data[end - 2] << 8;
+            }
+            if (left >= 1)
+            {
+                h ^= (int) data[end - 1];
+            }
+
+            h *= m;
+        }
+
+        h ^= h >>> 13;
+        h *= m;
+        h ^= h >>> 15;
+
+        return h;
+    }
+
+    /**
+     * Hashes the remaining bytes of the buffer in place, without moving its
+     * position. Same result as hash(byte[]) over the same bytes.
+     */
+    public static int hash(ByteBuffer buffer, int seed)
+    {
+        int m = 0x5bd1e995;
+        int r = 24;
+        int offset = buffer.position();
+        int length = buffer.remaining();
+        boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+
+        int h = seed ^ length;
+
+        int len_4 = length >> 2;
+
+        for (int i = 0; i < len_4; i++)
+        {
+            int k = buffer.getInt(offset + (i << 2));
+            if (bigEndian)
+            {
+                k = Integer.reverseBytes(k);
+            }
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h *= m;
+            h ^= k;
+        }
+
+        int left = length - (len_4 << 2);
+        int end = offset + length;
 
         if (left != 0)
         {
             if (left >= 3)
             {
-                h ^= (int) data[length - 3] << 16;
+                h ^= (int) buffer.get(end - 3) << 16;
             }
             if (left >= 2)
             {
-                h ^= (int) data[length - 2] << 8;
+                h ^= (int) buffer.get(end - 2) << 8;
             }
             if (left >= 1)
             {
-                h ^= (int) data[length - 1];
+                h ^= (int) buffer.get(end - 1);
             }
 
             h *= m;
@@ -124,6 +194,79 @@ public class MurmurHash
         return h;
     }
 
+    /**
+     * Hashes the UTF-8 encoding of the characters, reading them in place.
+     * Same result as hash(s.toString().getBytes(UTF-8), seed).
+     */
+    public static int hash(CharSequence s, int seed)
+    {
+        int m = 0x5bd1e995;
+        int r = 24;
+        int length = utf8Length(s);
+
+        int h = seed ^ length;
+
+        // Encoded bytes are gathered little endian into k, four at a time.
+        int k = 0;
+        int n = 0;
+        int chars = s.length();
+
+        for (int i = 0; i < chars; i++)
+        {
+            char c = s.charAt(i);
+            int bytes;
+            int count;
+
+            if (c < 0x80)
+            {
+                bytes = c;
+                count = 1;
+            }
+            else
+            {
+                int codePoint = codePointAt(s, i);
+                if (codePoint > 0xffff)
+                {
+                    i++;
+                }
+                bytes = utf8Bytes(codePoint);
+                count = utf8Count(codePoint);
+            }
+
+            for (int b = 0; b < count; b++)
+            {
+                k |= ((bytes >>> (b << 3)) & 0xff) << (n << 3);
+                if (++n == 4)
+                {
+                    k *= m;
+                    k ^= k >>> r;
+                    k *= m;
+                    h *= m;
+                    h ^= k;
+                    k = 0;
+                    n = 0;
+                }
+            }
+        }
+
+        if (n != 0)
+        {
+            // The tail bytes are xor'ed in reverse order and sign extended,
+            // exactly like the byte[] version does.
+            for (int b = 0; b < n; b++)
+            {
+                h ^= (int) (byte) (k >>> (b << 3)) << ((n - 1 - b) << 3);
+            }
+            h *= m;
+        }
+
+        h ^= h >>> 13;
+        h *= m;
+        h ^= h >>> 15;
+
+        return h;
+    }
+
     public static int hashLong(long data)
     {
         int m = 0x5bd1e995;
@@ -153,10 +296,9 @@ public class MurmurHash
         {
             return 0l;
         }
-        else if (o instanceof String)
+        else if (o instanceof CharSequence)
         {
-            final byte[] bytes = ((String) o).getBytes();
-            return hash64(bytes, bytes.length);
+            return hash64((CharSequence) o);
         }
         else if (o instanceof byte[])
         {
@@ -177,7 +319,7 @@ public class MurmurHash
      */
     public static long hash64(final byte[] data, int length)
     {
-        return hash64(data, length, 0xe17a1465);
+        return hash64(data, length, HASH64_SEED);
     }
 
 
@@ -190,6 +332,20 @@ public class MurmurHash
      * @return 64 bit hash of the given array
      */
     public static long hash64(final byte[] data, int length, int seed)
+    {
+        return hash64(data, 0, length, seed);
+    }
+
+    /**
+     * Generates 64 bit hash from a range of a byte array and seed.
+     *
+     * @param data   byte array to hash
+     * @param offset first byte of the range
+     * @param length length of the range
+     * @param seed   initial seed value
+     * @return 64 bit hash of the given range
+     */
+    public static long hash64(final byte[] data, int offset, int length, int seed)
     {
         final long m = 0xc6a4a7935bd1e995L;
         final int r = 47;
@@ -200,7 +356,7 @@ public class MurmurHash
 
         for (int i = 0; i < length8; i++)
         {
-            final int i8 = i * 8;
+            final int i8 = offset + i * 8;
             long k = ((long) data[i8 + 0] & 0xff) + (((long) data[i8 + 1] & 0xff) << 8)
                     + (((long) data[i8 + 2] & 0xff) << 16) + (((long) data[i8 + 3] & 0xff) << 24)
                     + (((long) data[i8 + 4] & 0xff) << 32) + (((long) data[i8 + 5] & 0xff) << 40)
@@ -214,22 +370,24 @@ public class MurmurHash
             h *= m;
         }
 
+        final int tail = offset + (length & ~7);
+
         switch (length % 8)
         {
             case 7:
-                h ^= (long) (data[(length & ~7) + 6] & 0xff) << 48;
+                h ^= (long) (data[tail + 6] & 0xff) << 48;
             case 6:
-                h ^= (long) (data[(length & ~7) + 5] & 0xff) << 40;
+                h ^= (long) (data[tail + 5] & 0xff) << 40;
             case 5:
-                h ^= (long) (data[(length & ~7) + 4] & 0xff) << 32;
+                h ^= (long) (data[tail + 4] & 0xff) << 32;
             case 4:
-                h ^= (long) (data[(length & ~7) + 3] & 0xff) << 24;
+                h ^= (long) (data[tail + 3] & 0xff) << 24;
             case 3:
-                h ^= (long) (data[(length & ~7) + 2] & 0xff) << 16;
+                h ^= (long) (data[tail + 2] & 0xff) << 16;
             case 2:
-                h ^= (long) (data[(length & ~7) + 1] & 0xff) << 8;
+                h ^= (long) (data[tail + 1] & 0xff) << 8;
             case 1:
-                h ^= (long) (data[length & ~7] & 0xff);
+                h ^= (long) (data[tail] & 0xff);
                 h *= m;
         }
         ;
@@ -240,4 +398,373 @@ public class MurmurHash
 
         return h;
     }
+
+    /**
+     * Generates 64 bit hash of a long with default seed value. Same result as
+     * the byte[] version over its 8 little endian bytes.
+     *
+     * @param data long to hash
+     * @return 64 bit hash of data
+     */
+    public static long hash64(long data)
+    {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        long h = (HASH64_SEED & 0xffffffffl) ^ (8 * m);
+
+        long k = data;
+        k *= m;
+        k ^= k >>> r;
+        k *= m;
+
+        h ^= k;
+        h *= m;
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+
+    /**
+     * Generates 64 bit hash of two longs with default seed value. Same result
+     * as the byte[] version over their 16 little endian bytes.
+     *
+     * @param data1 first long to hash
+     * @param data2 second long to hash
+     * @return 64 bit hash of data1 followed by data2
+     */
+    public static long hash64(long data1, long data2)
+    {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        long h = (HASH64_SEED & 0xffffffffl) ^ (16 * m);
+
+        long k = data1;
+        k *= m;
+        k ^= k >>> r;
+        k *= m;
+
+        h ^= k;
+        h *= m;
+
+        k = data2;
+        k *= m;
+        k ^= k >>> r;
+        k *= m;
+
+        h ^= k;
+        h *= m;
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+
+    /**
+     * Generates 64 bit hash of a double with default seed value. -0.0 hashes
+     * like 0.0 and every NaN hashes alike, so equal values always collide.
+     *
+     * @param data double to hash
+     * @return 64 bit hash of data
+     */
+    public static long hash64(double data)
+    {
+        return hash64(data == 0.0 ? 0L : Double.doubleToLongBits(data));
+    }
+
+    /**
+     * Generates 64 bit hash of a timestamp with default seed value, from its
+     * epoch seconds and nanoseconds so that the whole DATE/TIMESTAMP range is
+     * covered without overflow.
+     *
+     * @param data timestamp to hash
+     * @return 64 bit hash of data
+     */
+    public static long hash64(Timestamp data)
+    {
+        long millis = data.getTime();
+        long seconds = millis / 1000;
+        if (millis % 1000 < 0)
+        {
+            --seconds;
+        }
+        return hash64(seconds, data.getNanos());
+    }
+
+    /**
+     * Generates 64 bit hash from the remaining bytes of a buffer with default
+     * seed value, without moving its position.
+     *
+     * @param buffer buffer to hash
+     * @return 64 bit hash of the remaining bytes
+     */
+    public static long hash64(ByteBuffer buffer)
+    {
+        return hash64(buffer, HASH64_SEED);
+    }
+
+    /**
+     * Generates 64 bit hash from the remaining bytes of a buffer and seed,
+     * without moving its position. Same result as the byte[] version over
+     * the same bytes.
+     *
+     * @param buffer buffer to hash
+     * @param seed   initial seed value
+     * @return 64 bit hash of the remaining bytes
+     */
+    public static long hash64(ByteBuffer buffer, int seed)
+    {
+        return hash64(buffer, buffer.position(), buffer.remaining(), seed);
+    }
+
+    /**
+     * Generates 64 bit hash from length bytes of a buffer from offset and
+     * seed, ignoring its position and limit; for values read in place from a
+     * mapped file. Same result as the byte[] version over the same bytes.
+     *
+     * @param buffer buffer to hash
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @param seed   initial seed value
+     * @return 64 bit hash of the bytes
+     */
+    public static long hash64(ByteBuffer buffer, int offset, int length, int seed)
+    {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+
+        long h = (seed & 0xffffffffl) ^ (length * m);
+
+        int length8 = length / 8;
+
+        for (int i = 0; i < length8; i++)
+        {
+            long k = buffer.getLong(offset + i * 8);
+            if (bigEndian)
+            {
+                k = Long.reverseBytes(k);
+            }
+
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+
+            h ^= k;
+            h *= m;
+        }
+
+        final int tail = offset + (length & ~7);
+
+        switch (length % 8)
+        {
+            case 7:
+                h ^= (long) (buffer.get(tail + 6) & 0xff) << 48;
+            case 6:
+                h ^= (long) (buffer.get(tail + 5) & 0xff) << 40;
+            case 5:
+                h ^= (long) (buffer.get(tail + 4) & 0xff) << 32;
+            case 4:
+                h ^= (long) (buffer.get(tail + 3) & 0xff) << 24;
+            case 3:
+                h ^= (long) (buffer.get(tail + 2) & 0xff) << 16;
+            case 2:
+                h ^= (long) (buffer.get(tail + 1) & 0xff) << 8;
+            case 1:
+                h ^= (long) (buffer.get(tail) & 0xff);
+                h *= m;
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+
+    /**
+     * Generates 64 bit hash from the UTF-8 encoding of the characters with
+     * default seed value, reading them in place.
+     *
+     * @param s characters to hash
+     * @return 64 bit hash of the UTF-8 encoding of s
+     */
+    public static long hash64(CharSequence s)
+    {
+        return hash64(s, HASH64_SEED);
+    }
+
+    /**
+     * Generates 64 bit hash from the UTF-8 encoding of the characters and
+     * seed, reading them in place. Same result as the byte[] version over
+     * s.toString().getBytes(UTF-8).
+     *
+     * @param s    characters to hash
+     * @param seed initial seed value
+     * @return 64 bit hash of the UTF-8 encoding of s
+     */
+    public static long hash64(CharSequence s, int seed)
+    {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        final int length = utf8Length(s);
+
+        long h = (seed & 0xffffffffl) ^ (length * m);
+
+        // Encoded bytes are gathered little endian into k, eight at a time.
+        long k = 0;
+        int n = 0;
+        int chars = s.length();
+
+        for (int i = 0; i < chars; i++)
+        {
+            char c = s.charAt(i);
+
+            if (c < 0x80)
+            {
+                k |= (long) c << (n << 3);
+                if (++n == 8)
+                {
+                    k *= m;
+                    k ^= k >>> r;
+                    k *= m;
+
+                    h ^= k;
+                    h *= m;
+                    k = 0;
+                    n = 0;
+                }
+                continue;
+            }
+
+            int codePoint = codePointAt(s, i);
+            if (codePoint > 0xffff)
+            {
+                i++;
+            }
+            int bytes = utf8Bytes(codePoint);
+            int count = utf8Count(codePoint);
+
+            for (int b = 0; b < count; b++)
+            {
+                k |= (long) ((bytes >>> (b << 3)) & 0xff) << (n << 3);
+                if (++n == 8)
+                {
+                    k *= m;
+                    k ^= k >>> r;
+                    k *= m;
+
+                    h ^= k;
+                    h *= m;
+                    k = 0;
+                    n = 0;
+                }
+            }
+        }
+
+        if (n != 0)
+        {
+            h ^= k;
+            h *= m;
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+
+    /**
+     * Returns the code point at i, or '?' for an unpaired surrogate, which is
+     * what String.getBytes encodes it as.
+     */
+    private static int codePointAt(CharSequence s, int i)
+    {
+        char c = s.charAt(i);
+        if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+        {
+            return Character.toCodePoint(c, s.charAt(i + 1));
+        }
+        if (Character.isSurrogate(c))
+        {
+            return '?';
+        }
+        return c;
+    }
+
+    private static int utf8Count(int codePoint)
+    {
+        if (codePoint < 0x80)
+        {
+            return 1;
+        }
+        if (codePoint < 0x800)
+        {
+            return 2;
+        }
+        if (codePoint < 0x10000)
+        {
+            return 3;
+        }
+        return 4;
+    }
+
+    /**
+     * Returns the UTF-8 encoding of the code point packed little endian into
+     * an int, first byte in the lowest bits.
+     */
+    private static int utf8Bytes(int codePoint)
+    {
+        if (codePoint < 0x80)
+        {
+            return codePoint;
+        }
+        if (codePoint < 0x800)
+        {
+            return (0xc0 | (codePoint >>> 6))
+                    | (0x80 | (codePoint & 0x3f)) << 8;
+        }
+        if (codePoint < 0x10000)
+        {
+            return (0xe0 | (codePoint >>> 12))
+                    | (0x80 | ((codePoint >>> 6) & 0x3f)) << 8
+                    | (0x80 | (codePoint & 0x3f)) << 16;
+        }
+        return (0xf0 | (codePoint >>> 18))
+                | (0x80 | ((codePoint >>> 12) & 0x3f)) << 8
+                | (0x80 | ((codePoint >>> 6) & 0x3f)) << 16
+                | (0x80 | (codePoint & 0x3f)) << 24;
+    }
+
+    private static int utf8Length(CharSequence s)
+    {
+        int chars = s.length();
+        int length = chars;
+
+        for (int i = 0; i < chars; i++)
+        {
+            char c = s.charAt(i);
+            if (c >= 0x80)
+            {
+                int codePoint = codePointAt(s, i);
+                if (codePoint > 0xffff)
+                {
+                    i++;
+                    length += 2;
+                }
+                else
+                {
+                    length += utf8Count(codePoint) - 1;
+                }
+            }
+        }
+        return length;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,355 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stats of a partitioned table kept per partition, one ColumnStatsStore file
+ * per partition in a directory, from which the global stats are derived
+ * without scanning anything: the global NDV by merging the partitions'
+ * synopses (or HyperLogLogs) and the global top-k by summing their count
+ * sketches and re-estimating their heavy hitters. Regathering a partition
+ * replaces its file, dropping one deletes it; either way only merge() is
+ * redone.
+ *
+ * merge() reads the partition stores in place (see ColumnStatsStore) and
+ * runs on a ForkJoinPool: synopses are merged pairwise up a tree, bounded
+ * to maxelements hashes at every step, and the count sketches are summed
+ * one range of counters per task. The global split is at least that of any
+ * merge done so far, so each merge drops the hashes that split evicts before
+ * it sorts; most of the partitions' hashes never get sorted.
+ */
+public class PartitionedStats implements Closeable {
+    private static final String SUFFIX = ".stats";
+    // partitions merged at the leaves of the synopsis tree
+    private static final int SYNOPSIS_LEAF = 8;
+    // counters summed by one task
+    private static final int COUNTER_RANGE = 16384;
+
+    private File directory;
+    private TreeMap<String, ColumnStatsStore> partitions;
+    private int seed;
+
+    /**
+     * Opens the partition stores in directory, creating it if needed.
+     */
+    public PartitionedStats(File directory) throws IOException {
+        this.directory = directory;
+        this.partitions = new TreeMap<String, ColumnStatsStore>();
+        this.seed = (int)System.currentTimeMillis();
+
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            ColumnStatsStore store = ColumnStatsStore.open(file);
+            partitions.put(name.substring(0, name.length() - SUFFIX.length()), store);
+            if ( store.getProperty("seed") != null ) {
+                seed = Integer.parseInt(store.getProperty("seed"));
+            }
+        }
+    }
+
+    /**
+     * The seed every partition's TopK must be created with, so that their
+     * count sketches can be summed.
+     */
+    public int getSeed() {
+        return seed;
+    }
+
+    public Set<String> getPartitions() {
+        return Collections.unmodifiableSet(partitions.keySet());
+    }
+
+    public ColumnStatsStore getPartition(String partition) {
+        return partitions.get(partition);
+    }
+
+    /**
+     * Stores the stats of a partition, replacing what was there. Exact
+     * frequencies still in a cardinality sketch are moved into the count
+     * sketch first, so the partition's whole distribution gets merged.
+     */
+    public void putPartition(String partition, HashMap<String, ColumnStats> statsHashMap) throws IOException {
+        for (ColumnStats columnStats : statsHashMap.values()) {
+            if ( !columnStats.isDoingLossyCounting() ) {
+                columnStats.dumpCardinalitySketchIntoTopk();
+                columnStats.setDoingLossyCounting(true);
+            }
+        }
+
+        ColumnStatsStore old = partitions.remove(partition);
+        if ( old != null ) {
+            old.close();
+        }
+        File file = new File(directory, partition + SUFFIX);
+        ColumnStatsStore.write(file, statsHashMap, Collections.singletonMap("seed", Integer.toString(seed)));
+        partitions.put(partition, ColumnStatsStore.open(file));
+    }
+
+    public void dropPartition(String partition) throws IOException {
+        ColumnStatsStore store = partitions.remove(partition);
+        if ( store != null ) {
+            store.close();
+            if ( !store.getFile().delete() ) {
+                throw new IOException("Cannot delete " + store.getFile());
+            }
+        }
+    }
+
+    public void close() {
+        for (ColumnStatsStore store : partitions.values()) {
+            store.close();
+        }
+        partitions.clear();
+    }
+
+    /**
+     * Global stats of one column, derived from its partitions.
+     */
+    public static class GlobalColumnStats {
+        private String columnName;
+        private long numRows;
+        private long numNulls;
+        private CardinalitySketch.Synopsis synopsis;
+        private HyperLogLog hyperLogLog;
+        private TopK topk;
+
+        public String getColumnName() {
+            return columnName;
+        }
+
+        public long getNumRows() {
+            return numRows;
+        }
+
+        public long getNumNulls() {
+            return numNulls;
+        }
+
+        public CardinalitySketch.Synopsis getSynopsis() {
+            return synopsis;
+        }
+
+        /**
+         * The union of the partitions' HyperLogLogs, for a column whose NDV
+         * engine is HYPERLOGLOG (it then has no synopsis).
+         */
+        public HyperLogLog getHyperLogLog() {
+            return hyperLogLog;
+        }
+
+        public long estimateNDV() {
+            return hyperLogLog != null ? hyperLogLog.estimateNDV() : synopsis.estimateNDV();
+        }
+
+        public TopK getTopk() {
+            return topk;
+        }
+    }
+
+    public HashMap<String, GlobalColumnStats> merge() {
+        return merge(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Derives the global stats of every column found in any partition.
+     */
+    public HashMap<String, GlobalColumnStats> merge(int parallelism) {
+        LinkedHashMap<String, List<ColumnStatsStore.Column>> columns =
+                new LinkedHashMap<String, List<ColumnStatsStore.Column>>();
+        for (ColumnStatsStore store : partitions.values()) {
+            for (String columnName : store.getColumnNames()) {
+                if ( !columns.containsKey(columnName) ) {
+                    columns.put(columnName, new ArrayList<ColumnStatsStore.Column>());
+                }
+                columns.get(columnName).add(store.getColumn(columnName));
+            }
+        }
+
+        HashMap<String, GlobalColumnStats> global = new HashMap<String, GlobalColumnStats>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Map.Entry<String, List<ColumnStatsStore.Column>> entry : columns.entrySet()) {
+                ColumnStatsStore.Column[] parts = entry.getValue().toArray(new ColumnStatsStore.Column[0]);
+                GlobalColumnStats stats = new GlobalColumnStats();
+                stats.columnName = entry.getKey();
+                for (ColumnStatsStore.Column part : parts) {
+                    stats.numRows += part.getNumRows();
+                    stats.numNulls += part.getNumNulls();
+                }
+                if ( parts[0].getNDVEngine() == ColumnStats.NDVEngine.HYPERLOGLOG ) {
+                    stats.hyperLogLog = mergeHyperLogLogs(parts);
+                } else {
+                    stats.synopsis = pool.invoke(new SynopsisMerge(parts, 0, parts.length, parts[0].getMaxelements(),
+                                                                   new AtomicInteger()));
+                }
+                stats.topk = mergeTopK(pool, parts);
+                global.put(entry.getKey(), stats);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        return global;
+    }
+
+    private static HyperLogLog mergeHyperLogLogs(ColumnStatsStore.Column[] parts) {
+        HyperLogLog[] hyperLogLogs = new HyperLogLog[parts.length];
+        for (int i=0; i<parts.length; ++i) {
+            hyperLogLogs[i] = parts[i].getHyperLogLog();
+            if ( hyperLogLogs[i] == null ) {
+                throw new IllegalArgumentException("Cannot merge stats of " + parts[i].getColumnName() +
+                                                   " gathered with different NDV engines");
+            }
+        }
+        return HyperLogLog.merge(hyperLogLogs);
+    }
+
+    private static TopK mergeTopK(ForkJoinPool pool, ColumnStatsStore.Column[] parts) {
+        int topk = parts[0].getTopk();
+        List<RowidMap> candidates = new ArrayList<RowidMap>();
+
+        if ( parts[0].getEngine() == TopK.Engine.SPACE_SAVING ) {
+            TopK[] topks = new TopK[parts.length];
+            for (int i=0; i<parts.length; ++i) {
+                if ( parts[i].getEngine() != TopK.Engine.SPACE_SAVING ) {
+                    throw new IllegalArgumentException("Cannot merge TopKs of different engines");
+                }
+                topks[i] = new TopK(topk, TopK.Engine.SPACE_SAVING);
+                topks[i].restore(parts[i].getTopKElements());
+            }
+            return TopK.merge(topks);
+        }
+
+        CountSketch[] sketches = new CountSketch[parts.length];
+        long size = 0;
+        for (int i=0; i<parts.length; ++i) {
+            sketches[i] = parts[i].getCountSketch();
+            if ( sketches[i] == null ) {
+                throw new IllegalArgumentException("Cannot merge TopKs of different engines");
+            }
+            if ( sketches[i].getDepth() != sketches[0].getDepth() || sketches[i].getWidth() != sketches[0].getWidth() ||
+                 !Arrays.equals(sketches[i].getHashA(), sketches[0].getHashA()) ||
+                 !Arrays.equals(sketches[i].getHashgA(), sketches[0].getHashgA()) ) {
+                throw new IllegalArgumentException("Cannot merge count sketches of different seeds or sizes");
+            }
+            size += sketches[i].getSize();
+            candidates.addAll(parts[i].getTopKElements());
+        }
+
+        CountSketch first = sketches[0];
+        long[] table = new long[first.getDepth() * first.getWidth()];
+        pool.invoke(new CounterSum(sketches, table, 0, table.length));
+        CountSketch merged = new CountSketch(first.getDepth(), first.getWidth(), size,
+                                             first.getHashA().clone(), first.getHashB().clone(),
+                                             first.getHashgA().clone(), first.getHashgB().clone(),
+                                             LongTable.onHeap(table));
+        return TopK.merge(topk, merged, candidates);
+    }
+
+    private static class SynopsisMerge extends RecursiveTask<CardinalitySketch.Synopsis> {
+        private static final long serialVersionUID = 1L;
+
+        private ColumnStatsStore.Column[] parts;
+        private int from;
+        private int to;
+        private int maxelements;
+        // largest split of any merge so far
+        private AtomicInteger minSplit;
+
+        SynopsisMerge(ColumnStatsStore.Column[] parts, int from, int to, int maxelements, AtomicInteger minSplit) {
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+            this.maxelements = maxelements;
+            this.minSplit = minSplit;
+        }
+
+        @Override
+        protected CardinalitySketch.Synopsis compute() {
+            CardinalitySketch.Synopsis merged;
+
+            if ( to - from <= SYNOPSIS_LEAF ) {
+                CardinalitySketch.Synopsis[] synopses = new CardinalitySketch.Synopsis[to - from];
+                for (int i=from; i<to; ++i) {
+                    synopses[i - from] = parts[i].getSynopsis();
+                }
+                merged = CardinalitySketch.mergeSynopses(maxelements, minSplit.get(), synopses);
+            } else {
+                int middle = (from + to) >>> 1;
+                SynopsisMerge left = new SynopsisMerge(parts, from, middle, maxelements, minSplit);
+                left.fork();
+                CardinalitySketch.Synopsis right = new SynopsisMerge(parts, middle, to, maxelements, minSplit).compute();
+                merged = CardinalitySketch.mergeSynopses(maxelements, minSplit.get(), left.join(), right);
+            }
+
+            int split = minSplit.get();
+            while ( merged.getSplit() > split && !minSplit.compareAndSet(split, merged.getSplit()) ) {
+                split = minSplit.get();
+            }
+            return merged;
+        }
+    }
+
+    private static class CounterSum extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private CountSketch[] sketches;
+        private long[] table;
+        private int from;
+        private int to;
+
+        CounterSum(CountSketch[] sketches, long[] table, int from, int to) {
+            this.sketches = sketches;
+            this.table = table;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ( to - from > COUNTER_RANGE ) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CounterSum(sketches, table, from, middle),
+                          new CounterSum(sketches, table, middle, to));
+                return;
+            }
+
+            long[] counters = new long[to - from];
+            for (CountSketch sketch : sketches) {
+                sketch.getTable().get(from, counters);
+                for (int i=0; i<counters.length; ++i) {
+                    table[from + i] += counters[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.sql.RowId;
+import java.util.Arrays;
+
+/**
+ * Reusable batch of fetched rows. Values are stored column by column so that
+ * a sketch thread only touches the columns it owns.
+ */
+public class RowBatch {
+    private RowId[] rowids;
+    private Object[][] values;
+    private long[][] longs;
+    private boolean[][] nulls;
+    // values passed as bytes, one after the other
+    private byte[] bytes;
+    private int bytesUsed;
+    private int size;
+
+    public RowBatch(int columnCount, int capacity) {
+        this(columnCount, capacity, 0);
+    }
+
+    /**
+     * byteCapacity is the room for the values passed to setBytes.
+     */
+    public RowBatch(int columnCount, int capacity, int byteCapacity) {
+        this.rowids = new RowId[capacity];
+        this.values = new Object[columnCount][capacity];
+        this.longs = new long[columnCount][capacity];
+        this.nulls = new boolean[columnCount][capacity];
+        this.bytes = new byte[byteCapacity];
+        this.bytesUsed = 0;
+        this.size = 0;
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    public int getCapacity() {
+        return this.rowids.length;
+    }
+
+    public boolean isFull() {
+        return this.size == this.rowids.length;
+    }
+
+    public RowId getRowid(int row) {
+        return this.rowids[row];
+    }
+
+    public Object getValue(int column, int row) {
+        return this.values[column][row];
+    }
+
+    public long getLong(int column, int row) {
+        return this.longs[column][row];
+    }
+
+    public boolean isNull(int column, int row) {
+        return this.nulls[column][row];
+    }
+
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    public int getOffset(int column, int row) {
+        return (int) (this.longs[column][row] >>> 32);
+    }
+
+    public int getLength(int column, int row) {
+        return (int) this.longs[column][row];
+    }
+
+    public int getBytesRemaining() {
+        return this.bytes.length - this.bytesUsed;
+    }
+
+    public void setRowid(RowId rowid) {
+        this.rowids[size] = rowid;
+    }
+
+    public void setValue(int column, Object value) {
+        this.values[column][size] = value;
+        this.nulls[column][size] = value == null;
+    }
+
+    // Numeric columns are passed as primitives (doubles as their raw bits).
+    public void setLong(int column, long value) {
+        this.longs[column][size] = value;
+        this.nulls[column][size] = false;
+    }
+
+    // Copies the value into the batch's bytes, no object per value; the
+    // column's long holds its offset and length.
+    public void setBytes(int column, ByteBuffer src, int length) {
+        src.get(this.bytes, bytesUsed, length);
+        this.longs[column][size] = (long) bytesUsed << 32 | length;
+        this.nulls[column][size] = false;
+        bytesUsed += length;
+    }
+
+    public void setNull(int column) {
+        this.values[column][size] = null;
+        this.nulls[column][size] = true;
+    }
+
+    public void nextRow() {
+        ++this.size;
+    }
+
+    public void clear() {
+        Arrays.fill(this.rowids, 0, size, null);
+        for (int i=0; i<values.length; ++i) {
+            Arrays.fill(this.values[i], 0, size, null);
+        }
+        this.bytesUsed = 0;
+        this.size = 0;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Bounded ring of reusable row batches between one fetch thread and several
+ * sketch threads. Every sketch thread sees every batch (each one owns a subset
+ * of the columns), and a slot is only handed back to the fetch thread once all
+ * of them have released it, so a slow sketch thread throttles the fetch.
+ *
+ * The time each side spends blocked on the other is recorded, to tell whether
+ * the database or the sketches are the bottleneck.
+ */
+public class RowBatchRingBuffer {
+    private RowBatch[] batches;
+    private long published;
+    private long[] consumed;
+    private boolean closed;
+    private boolean aborted;
+    private long fetchStallNanos;
+    private long[] sketchStallNanos;
+
+    public RowBatchRingBuffer(int capacity, int columnCount, int batchSize, int consumers) {
+        this(capacity, columnCount, batchSize, 0, consumers);
+    }
+
+    /**
+     * byteCapacity is the room of each batch for values passed as bytes.
+     */
+    public RowBatchRingBuffer(int capacity, int columnCount, int batchSize, int byteCapacity, int consumers) {
+        this.batches = new RowBatch[capacity];
+        this.consumed = new long[consumers];
+        this.sketchStallNanos = new long[consumers];
+        this.published = 0;
+        this.closed = false;
+        this.aborted = false;
+
+        for (int i=0; i<capacity; ++i) {
+            batches[i] = new RowBatch(columnCount, batchSize, byteCapacity);
+        }
+    }
+
+    private long minConsumed() {
+        long min = Long.MAX_VALUE;
+        for (int i=0; i<consumed.length; ++i) {
+            min = Math.min(min, consumed[i]);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the next empty batch for the fetch thread to fill, waiting while
+     * the ring is full. Returns null if a sketch thread has aborted.
+     */
+    public synchronized RowBatch claim() throws InterruptedException {
+        if ( !aborted && published - minConsumed() >= batches.length ) {
+            long start = System.nanoTime();
+            while ( !aborted && published - minConsumed() >= batches.length ) {
+                wait();
+            }
+            fetchStallNanos += System.nanoTime() - start;
+        }
+
+        if ( aborted ) {
+            return null;
+        }
+
+        RowBatch batch = batches[(int) (published % batches.length)];
+        batch.clear();
+        return batch;
+    }
+
+    public synchronized void publish() {
+        ++published;
+        notifyAll();
+    }
+
+    /**
+     * Returns the next filled batch for the given sketch thread, waiting while
+     * there is none. Returns null once the fetch thread has closed the ring and
+     * every batch has been consumed, or if the ring has been aborted.
+     */
+    public synchronized RowBatch take(int consumer) throws InterruptedException {
+        if ( !closed && consumed[consumer] == published ) {
+            long start = System.nanoTime();
+            while ( !closed && consumed[consumer] == published ) {
+                wait();
+            }
+            sketchStallNanos[consumer] += System.nanoTime() - start;
+        }
+
+        if ( aborted || consumed[consumer] == published ) {
+            return null;
+        }
+
+        return batches[(int) (consumed[consumer] % batches.length)];
+    }
+
+    public synchronized void release(int consumer) {
+        ++consumed[consumer];
+        notifyAll();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized void abort() {
+        aborted = true;
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    public synchronized long getFetchStallNanos() {
+        return fetchStallNanos;
+    }
+
+    public synchronized long getSketchStallNanos(int consumer) {
+        return sketchStallNanos[consumer];
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.sql.RowId;
+import java.util.Arrays;
+
+/**
+ * Opaque locator of a row that is not an Oracle ROWID: a primary key, a row
+ * number or a line of a file, kept as the UTF-8 bytes of its text. Oracle's
+ * ROWID holds the bytes of its text too, so the locators of every source are
+ * written and read back the same way (SketchWriter, ColumnStatsStore).
+ */
+public class RowLocator implements RowId {
+    private byte[] bytes;
+
+    public RowLocator(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public RowLocator(String text) {
+        this(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public RowLocator(long number) {
+        this(Long.toString(number));
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The text of any locator, for reports; null if there is none.
+     */
+    public static String toString(RowId rowid) {
+        return rowid == null ? null : new String(rowid.getBytes(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RowLocator && Arrays.equals(bytes, ((RowLocator) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Rows to gather stats from, whatever they come from (see JdbcRowSource,
+ * ArrayRowSource, FileRowSource and RowSourceStatistics). Rows are read a
+ * batch at a time, each with an opaque locator (a java.sql.RowId; a
+ * RowLocator when the source has no ROWID) and a value per column, stored in
+ * the batch by the ingest type of the column:
+ *
+ *   LONG       setLong
+ *   DOUBLE     setLong of the raw bits of the double
+ *   TIMESTAMP  setValue of a java.sql.Timestamp
+ *   STRING     setValue of any object (its toString is sketched), or
+ *              setBytes of its UTF-8 bytes
+ *
+ * and setNull (or setValue of null) for a null.
+ */
+public interface RowSource extends Closeable {
+    int getColumnCount();
+
+    String getColumnLabel(int column);
+
+    /**
+     * The Java class of the values of the column, as ResultSetMetaData
+     * reports it.
+     */
+    String getColumnClassName(int column);
+
+    ColumnStats.IngestType getIngestType(int column);
+
+    /**
+     * Adds the next rows to batch until it is full or the rows run out.
+     * Returns false, adding nothing, once every row has been read.
+     */
+    boolean next(RowBatch batch) throws IOException;
+}
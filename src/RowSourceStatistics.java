@@ -0,0 +1,358 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Gathers the stats of the columns of any RowSource, with the sketches and
+ * settings SqlStatistics uses (TOPK_COUNT, TOPK_ENGINE, NDV_ENGINE,
+ * OFF_HEAP_SKETCHES), either serially or pipelined through a
+ * RowBatchRingBuffer, and those of the column groups declared with
+ * addColumnGroup in the same scan.
+ *
+ * java RowSourceStatistics file [delimiter] [sketchThreads] [A,B ...]
+ * profiles a delimited file (comma by default), with a column group for each
+ * comma separated list of columns after the sketch threads.
+ */
+public class RowSourceStatistics {
+    private HashMap<String, TopK.Engine> topkEngines = new HashMap<String, TopK.Engine>();
+    private HashMap<String, ColumnStats.NDVEngine> ndvEngines = new HashMap<String, ColumnStats.NDVEngine>();
+    private List<ColumnGroup> columnGroups = new ArrayList<ColumnGroup>();
+
+    /**
+     * Picks the heavy hitter engine for one column (by its label); the other
+     * columns use SqlStatistics.TOPK_ENGINE.
+     */
+    public void setTopKEngine(String columnLabel, TopK.Engine engine) {
+        topkEngines.put(columnLabel, engine);
+    }
+
+    /**
+     * Picks the NDV engine for one column (by its label); the other columns
+     * use SqlStatistics.NDV_ENGINE.
+     */
+    public void setNDVEngine(String columnLabel, ColumnStats.NDVEngine engine) {
+        ndvEngines.put(columnLabel, engine);
+    }
+
+    /**
+     * Declares a group of columns (by label) whose combinations of values get
+     * an NDV of their own, under the group's label; see ColumnGroup. The
+     * group's engines are set by that label.
+     */
+    public ColumnGroup addColumnGroup(String... columnLabels) {
+        ColumnGroup group = new ColumnGroup(columnLabels);
+        columnGroups.add(group);
+        return group;
+    }
+
+    public List<ColumnGroup> getColumnGroups() {
+        return columnGroups;
+    }
+
+    /**
+     * The stats of a column group, those of a string column.
+     */
+    private ColumnStats createColumnStats(ColumnGroup group, int seed) {
+        return createColumnStats(group.getLabel(), ColumnGroup.class.getName(), ColumnStats.IngestType.STRING, seed);
+    }
+
+    public ColumnStats createColumnStats(String label, String className, ColumnStats.IngestType ingestType,
+                                         int seed) {
+        ColumnStats columnStats = new ColumnStats();
+        columnStats.setColumnName(label);
+        columnStats.setColumnClassName(className);
+        columnStats.setIngestType(ingestType);
+        TopK.Engine engine = topkEngines.containsKey(label) ? topkEngines.get(label) : SqlStatistics.TOPK_ENGINE;
+        columnStats.setTopk(new TopK(SqlStatistics.TOPK_COUNT, engine, TopK.COUNT_SKETCH_DEPTH,
+                                     TopK.COUNT_SKETCH_WIDTH, seed, SqlStatistics.OFF_HEAP_SKETCHES));
+        columnStats.setDoingLossyCounting(false);
+        ColumnStats.NDVEngine ndvEngine = ndvEngines.containsKey(label) ? ndvEngines.get(label)
+                                                                        : SqlStatistics.NDV_ENGINE;
+        if ( ndvEngine == ColumnStats.NDVEngine.HYPERLOGLOG ) {
+            columnStats.setHyperLogLog(new HyperLogLog(SqlStatistics.HLL_PRECISION));
+        } else {
+            columnStats.setCardinalitySketch(new CardinalitySketch());
+        }
+        return columnStats;
+    }
+
+    private ColumnStats[] createColumnStats(RowSource source, int seed) {
+        ColumnStats[] columnStats = new ColumnStats[source.getColumnCount()];
+
+        for (int i=0; i<columnStats.length; ++i) {
+            columnStats[i] = createColumnStats(source.getColumnLabel(i), source.getColumnClassName(i),
+                                               source.getIngestType(i), seed);
+        }
+        return columnStats;
+    }
+
+    // A column group bound to the columns of a RowSource.
+    private static final class BatchGroup {
+        private final ColumnStats stats;
+        private final int[] columns;
+        private final ColumnStats.IngestType[] ingestTypes;
+        private final long[] hashes;
+        private final ColumnGroup.Values values;
+        private RowBatch batch;
+        private int row;
+
+        BatchGroup(ColumnStats stats, final int[] columns, ColumnStats[] columnStats) {
+            this.stats = stats;
+            this.columns = columns;
+            this.ingestTypes = new ColumnStats.IngestType[columns.length];
+            for (int i=0; i<columns.length; ++i) {
+                ingestTypes[i] = columnStats[columns[i]].getIngestType();
+            }
+            this.hashes = new long[columns.length];
+            this.values = new ColumnGroup.Values(columns.length) {
+                @Override
+                protected String value(int column) {
+                    return ColumnGroup.format(batch, columns[column], row, ingestTypes[column]);
+                }
+            };
+        }
+
+        // From the hashes the columns' stats returned for the batch,
+        // columnHashes[column][row].
+        void add(RowBatch batch, long[][] columnHashes) {
+            this.batch = batch;
+            for (row=0; row<batch.getSize(); ++row) {
+                for (int i=0; i<columns.length; ++i) {
+                    hashes[i] = columnHashes[columns[i]][row];
+                }
+                ColumnGroup.add(stats, hashes, values, batch.getRowid(row));
+            }
+            this.batch = null;
+        }
+
+        // Hashing the values again, for when other threads add them to the
+        // columns' stats.
+        void add(RowBatch batch) {
+            this.batch = batch;
+            for (row=0; row<batch.getSize(); ++row) {
+                for (int i=0; i<columns.length; ++i) {
+                    hashes[i] = ColumnGroup.hash(batch, columns[i], row, ingestTypes[i]);
+                }
+                ColumnGroup.add(stats, hashes, values, batch.getRowid(row));
+            }
+            this.batch = null;
+        }
+    }
+
+    private BatchGroup[] createGroups(RowSource source, ColumnStats[] columnStats, int seed) {
+        String[] labels = new String[source.getColumnCount()];
+        BatchGroup[] groups = new BatchGroup[columnGroups.size()];
+
+        for (int i=0; i<labels.length; ++i) {
+            labels[i] = source.getColumnLabel(i);
+        }
+        for (int i=0; i<groups.length; ++i) {
+            ColumnGroup group = columnGroups.get(i);
+            groups[i] = new BatchGroup(createColumnStats(group, seed), group.indexesIn(labels), columnStats);
+        }
+        return groups;
+    }
+
+    private static HashMap<String, ColumnStats> toHashMap(ColumnStats[] columnStats, BatchGroup[] groups) {
+        HashMap<String, ColumnStats> statsHashMap = new HashMap<String, ColumnStats>();
+
+        for (ColumnStats stats : columnStats) {
+            statsHashMap.put(stats.getColumnName(), stats);
+        }
+        for (BatchGroup group : groups) {
+            statsHashMap.put(group.stats.getColumnName(), group.stats);
+        }
+        return statsHashMap;
+    }
+
+    /**
+     * Reads every row of source and returns the stats of its columns, by
+     * label. The source is not closed.
+     */
+    public HashMap<String, ColumnStats> gather(RowSource source) throws IOException {
+        return gatherSeeded(source, (int)System.currentTimeMillis());
+    }
+
+    /**
+     * Same as gather, with seed for the count sketches of the TopKs: stats
+     * gathered apart (ROWID ranges, incremental runs) can only be merged if
+     * they share it.
+     */
+    public HashMap<String, ColumnStats> gatherSeeded(RowSource source, int seed) throws IOException {
+        ColumnStats[] columnStats = createColumnStats(source, seed);
+        BatchGroup[] groups = createGroups(source, columnStats, seed);
+        RowBatch batch = new RowBatch(columnStats.length, SqlStatistics.PIPELINE_BATCH_SIZE);
+        // the hashes of the batch's values, kept for the column groups
+        long[][] hashes = groups.length > 0 ? new long[columnStats.length][batch.getCapacity()] : null;
+
+        while ( source.next(batch) ) {
+            for (int column=0; column<columnStats.length; ++column) {
+                for (int row=0; row<batch.getSize(); ++row) {
+                    long hash = columnStats[column].add(batch, column, row);
+                    if ( hashes != null ) {
+                        hashes[column][row] = hash;
+                    }
+                }
+            }
+            for (BatchGroup group : groups) {
+                group.add(batch, hashes);
+            }
+            batch.clear();
+        }
+        return toHashMap(columnStats, groups);
+    }
+
+    private static class BatchSketcher implements Callable<Void> {
+        private RowBatchRingBuffer ringBuffer;
+        private int consumer;
+        private int consumers;
+        private ColumnStats[] columnStats;
+        private BatchGroup[] groups;
+
+        public BatchSketcher(RowBatchRingBuffer ringBuffer, int consumer, int consumers, ColumnStats[] columnStats,
+                             BatchGroup[] groups) {
+            this.ringBuffer = ringBuffer;
+            this.consumer = consumer;
+            this.consumers = consumers;
+            this.columnStats = columnStats;
+            this.groups = groups;
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            try {
+                RowBatch batch = ringBuffer.take(consumer);
+
+                while ( batch != null ) {
+                    for (int row=0; row<batch.getSize(); ++row) {
+                        // Each sketch thread owns every consumers-th column, so
+                        // no sketch is ever updated by two threads.
+                        for (int column=consumer; column<columnStats.length; column+=consumers) {
+                            columnStats[column].add(batch, column, row);
+                        }
+                    }
+                    // and every consumers-th column group, whose columns other
+                    // threads may own
+                    for (int group=consumer; group<groups.length; group+=consumers) {
+                        groups[group].add(batch);
+                    }
+                    ringBuffer.release(consumer);
+                    batch = ringBuffer.take(consumer);
+                }
+                return null;
+            } catch (RuntimeException e) {
+                ringBuffer.abort();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Pipelined version of gather. This thread only reads rows from source
+     * into the batches of a bounded ring buffer, while sketchThreads threads
+     * (each owning a subset of the columns and column groups) update the
+     * sketches.
+     */
+    public HashMap<String, ColumnStats> gather(RowSource source, int sketchThreads) throws IOException {
+        int seed = (int)System.currentTimeMillis();
+        ColumnStats[] columnStats = createColumnStats(source, seed);
+        BatchGroup[] groups = createGroups(source, columnStats, seed);
+        int columnCount = columnStats.length;
+
+        sketchThreads = Math.max(1, Math.min(sketchThreads, columnCount));
+        RowBatchRingBuffer ringBuffer = new RowBatchRingBuffer(SqlStatistics.PIPELINE_RING_SIZE, columnCount,
+                                                               SqlStatistics.PIPELINE_BATCH_SIZE, sketchThreads);
+        ExecutorService executorService = Executors.newFixedThreadPool(sketchThreads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        long startTime = System.nanoTime();
+
+        try {
+            for (int i=0; i<sketchThreads; ++i) {
+                futures.add(executorService.submit(new BatchSketcher(ringBuffer, i, sketchThreads, columnStats,
+                                                                     groups)));
+            }
+
+            RowBatch batch = ringBuffer.claim();
+            while ( batch != null && source.next(batch) ) {
+                ringBuffer.publish();
+                batch = ringBuffer.claim();
+            }
+            ringBuffer.close();
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            ringBuffer.abort();
+            executorService.shutdownNow();
+        }
+
+        System.out.println("Pipeline: " + ringBuffer.getPublished() + " batches in " +
+                           (System.nanoTime() - startTime)/1000000 + " ms");
+        System.out.println("  Fetch thread stalled on sketch threads for " +
+                           ringBuffer.getFetchStallNanos()/1000000 + " ms");
+        for (int i=0; i<sketchThreads; ++i) {
+            System.out.println("  Sketch thread " + i + " stalled on fetch for " +
+                               ringBuffer.getSketchStallNanos(i)/1000000 + " ms");
+        }
+        return toHashMap(columnStats, groups);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if ( args.length < 1 ) {
+            System.out.println("Usage: java RowSourceStatistics file [delimiter] [sketchThreads] [A,B ...]");
+            return;
+        }
+        char delimiter = args.length > 1 ? (args[1].equals("\\t") ? '\t' : args[1].charAt(0)) : ',';
+        int sketchThreads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        RowSourceStatistics statistics = new RowSourceStatistics();
+        for (int i=3; i<args.length; ++i) {
+            statistics.addColumnGroup(args[i].split(","));
+        }
+
+        FileRowSource source = new FileRowSource(new File(args[0]), delimiter);
+        HashMap<String, ColumnStats> val;
+        try {
+            val = sketchThreads > 0 ? statistics.gather(source, sketchThreads) : statistics.gather(source);
+        } finally {
+            source.close();
+        }
+        for (ColumnStats columnStats : val.values()) {
+            if ( !columnStats.isDoingLossyCounting() ) {
+                columnStats.dumpCardinalitySketchIntoTopk();
+            }
+        }
+        SqlStatistics.printColumnStats(val);
+        SqlStatistics.closeColumnStats(val);
+    }
+}
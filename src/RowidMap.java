@@ -1,17 +1,18 @@
-import oracle.sql.ROWID;
+import java.sql.RowId;
 import java.util.Comparator;
 
 /**
  * Created by ap349 on 12/6/13.
  */
 public class RowidMap implements Comparable<RowidMap> {
-    private ROWID rowid;
+    private RowId rowid;
     private long  value;
     private Object object;
     private long  count;
+    private long  error;
     private int   pqidentifier;
 
-    public RowidMap(ROWID rowid, long value, long count, int pqidentifier) {
+    public RowidMap(RowId rowid, long value, long count, int pqidentifier) {
         this.rowid = rowid;
         this.value = value;
         this.count = count;
@@ -19,18 +20,18 @@ public class RowidMap implements Comparable<RowidMap> {
         this.pqidentifier = pqidentifier;
     }
 
-    public RowidMap(ROWID rowid, Object value, long count, int pqidentifier) {
+    public RowidMap(RowId rowid, Object value, long count, int pqidentifier) {
         this.rowid = rowid;
         this.count = count;
         this.object = value;
         this.pqidentifier = pqidentifier;
     }
 
-    public ROWID getRowid() {
+    public RowId getRowid() {
         return rowid;
     }
 
-    public void setRowid(ROWID rowid) {
+    public void setRowid(RowId rowid) {
         this.rowid = rowid;
     }
 
@@ -50,6 +51,18 @@ public class RowidMap implements Comparable<RowidMap> {
         this.count = count;
     }
 
+    /**
+     * How much count may overestimate the frequency, 0 when the engine does
+     * not bound it (count sketch estimates).
+     */
+    public long getError() {
+        return error;
+    }
+
+    public void setError(long error) {
+        this.error = error;
+    }
+
     public int getPqidentifier() {
         return this.pqidentifier;
     }
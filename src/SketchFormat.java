@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Binary format of SketchWriter and SketchReader. Every sketch written on its
+ * own starts with MAGIC, the format VERSION and its type. After that:
+ *
+ *   count min sketch  depth, width, size, hashA, table
+ *   count sketch      depth, width, size, hashA, hashB, hashgA, hashgB, table
+ *   cardinality       maxelements, split, entries, then per entry its hash,
+ *                     frequency, value and rowid
+ *   topk              engine, topk, the count sketch for COUNT_SKETCH, then
+ *                     the heavy hitters in getTopKElements order: hash,
+ *                     count, error, value and rowid
+ *   hyperloglog       precision, then the number of sparse entries + 1 and
+ *                     the gaps between them, or 0 and the register longs
+ *   column stats      name, class name, ingest type, rows, nulls, lossy,
+ *                     NDV engine (from version 2), then its cardinality
+ *                     sketch or hyperloglog, and topk
+ *
+ * Hashes are 8 byte little endian longs. Other integers are varints (7 bits
+ * a byte, low bits first), zigzag encoded when they may be negative. Strings
+ * and rowids are a varint length + 1 (0 for null) and their bytes.
+ *
+ * A counter table is an Encoding tag followed by RAW little endian longs,
+ * VARINT zigzag varints, or SPARSE: the number of non zero counters, then
+ * for each the gap from the previous one and its zigzag varint value.
+ */
+public final class SketchFormat {
+    public static final int MAGIC = 0x48434b53;   // "SKCH" in little endian
+    public static final int VERSION = 2;
+
+    public static final int COUNT_MIN_SKETCH = 1;
+    public static final int COUNT_SKETCH = 2;
+    public static final int CARDINALITY_SKETCH = 3;
+    public static final int TOPK = 4;
+    public static final int COLUMN_STATS = 5;
+    public static final int HYPERLOGLOG = 6;
+
+    /**
+     * How counter tables are written. AUTO picks the smallest for each table,
+     * at the cost of one more pass over it.
+     */
+    public enum Encoding {
+        RAW, VARINT, SPARSE, AUTO
+    }
+
+    private SketchFormat() {
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varintSize(long value) {
+        return value == 0 ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    /**
+     * True if data starts like something SketchWriter wrote, to tell it from
+     * the older headerless serialize() output.
+     */
+    static boolean hasMagic(byte[] data) {
+        return data.length >= 4 &&
+               ((data[0] & 0xff) | (data[1] & 0xff) << 8 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 24) == MAGIC;
+    }
+}
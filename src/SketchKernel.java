@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The arithmetic inner loops of CountSketch and CountMinSketch: the linear
+ * row hashes (a * item + b mod 2^31-1), the sign hashes, and the min/median
+ * reductions over the rows. This class is the plain scalar version.
+ *
+ * VectorSketchKernel (in src-vector, built with --add-modules
+ * jdk.incubator.vector) overrides these loops with SIMD lanes. getDefault()
+ * picks it up when it is on the classpath and the module is resolved, and
+ * falls back to this class otherwise; -Dsketch.kernel=scalar forces the
+ * scalar loops.
+ */
+public class SketchKernel {
+    public static final long PRIME_MODULUS = (1L << 31) - 1;
+
+    private static final SketchKernel DEFAULT = load();
+
+    public static SketchKernel getDefault() {
+        return DEFAULT;
+    }
+
+    private static SketchKernel load() {
+        if ( !"scalar".equals(System.getProperty("sketch.kernel")) ) {
+            try {
+                return (SketchKernel) Class.forName("VectorSketchKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                // not built with src-vector
+            } catch (LinkageError e) {
+                // jdk.incubator.vector not resolved (no --add-modules)
+            }
+        }
+        return new SketchKernel();
+    }
+
+    public String getName() {
+        return "scalar";
+    }
+
+    // A super fast way of computing x mod 2^p-1
+    // See http://www.cs.princeton.edu/courses/archive/fall09/cos521/Handouts/universalclasses.pdf
+    // page 149, right after Proposition 7.
+    static long reduce(long hash) {
+        hash += hash >> 32;
+        return hash & PRIME_MODULUS;
+    }
+
+    /**
+     * offsets[i] = i * width + bucket of item in row i, for the first depth
+     * rows. b may be null for hashes without an additive term.
+     */
+    public void hashRows(long[] a, long[] b, long item, int depth, int width, int mask, int[] offsets) {
+        for (int i=0; i<depth; ++i) {
+            long hash = a[i] * item + (b == null ? 0 : b[i]);
+            offsets[i] = i * width + ((int) reduce(hash) & mask);
+        }
+    }
+
+    /**
+     * signs[i] = +1 or -1 by the parity of item's g hash in row i.
+     */
+    public void signRows(long[] a, long[] b, long item, int depth, long[] signs) {
+        for (int i=0; i<depth; ++i) {
+            long hash = a[i] * item + b[i];
+            signs[i] = 1 - 2 * (reduce(hash) & 1);
+        }
+    }
+
+    /**
+     * Buckets of the first n items for one row (hash a * item + b), plus
+     * base, written to offsets[from..from+n).
+     */
+    public void hashItems(long a, long b, long[] items, int n, int base, int mask, int[] offsets, int from) {
+        for (int k=0; k<n; ++k) {
+            offsets[from + k] = base + ((int) reduce(a * items[k] + b) & mask);
+        }
+    }
+
+    /**
+     * Signs of the first n items for one row, written to signs[from..from+n).
+     */
+    public void signItems(long a, long b, long[] items, int n, long[] signs, int from) {
+        for (int k=0; k<n; ++k) {
+            signs[from + k] = 1 - 2 * (reduce(a * items[k] + b) & 1);
+        }
+    }
+
+    /**
+     * Minimum of table[offsets[i]] over the first depth offsets.
+     */
+    public long minAt(LongTable table, int[] offsets, int depth) {
+        long res = Long.MAX_VALUE;
+        for (int i=0; i<depth; ++i) {
+            res = Math.min(res, table.get(offsets[i]));
+        }
+        return res;
+    }
+
+    /**
+     * values[j] = table[offsets[j]] (times signs[j] unless signs is null)
+     * for the first length offsets.
+     */
+    public void gather(LongTable table, int[] offsets, long[] signs, int length, long[] values) {
+        if ( signs == null ) {
+            for (int j=0; j<length; ++j) {
+                values[j] = table.get(offsets[j]);
+            }
+        } else {
+            for (int j=0; j<length; ++j) {
+                values[j] = table.get(offsets[j]) * signs[j];
+            }
+        }
+    }
+
+    /**
+     * For a batch laid out row after row (values[i * n + k] is item k's value
+     * in row i), writes each item's minimum over the rows to out[k].
+     */
+    public void minRows(long[] values, int rows, int n, long[] out) {
+        System.arraycopy(values, 0, out, 0, n);
+        for (int i=1; i<rows; ++i) {
+            for (int k=0; k<n; ++k) {
+                out[k] = Math.min(out[k], values[i * n + k]);
+            }
+        }
+    }
+
+    /**
+     * Same layout as minRows, writes each item's median over the rows to
+     * out[k]. The network's compare-exchanges are applied to whole rows at a
+     * time, so values ends up sorted column by column.
+     */
+    public void medianRows(MedianNetwork network, long[] values, int n, long[] out) {
+        int[] c = network.getComparators();
+        for (int p=0; p<c.length; p += 2) {
+            int lo = c[p] * n;
+            int hi = c[p + 1] * n;
+            for (int k=0; k<n; ++k) {
+                long x = values[lo + k];
+                long y = values[hi + k];
+                values[lo + k] = Math.min(x, y);
+                values[hi + k] = Math.max(x, y);
+            }
+        }
+        medianOfSorted(network.getSize(), values, n, out);
+    }
+
+    static void medianOfSorted(int rows, long[] values, int n, long[] out) {
+        int middle = rows / 2 * n;
+        if ( rows % 2 == 1 ) {
+            System.arraycopy(values, middle, out, 0, n);
+        } else {
+            for (int k=0; k<n; ++k) {
+                out[k] = (values[middle - n + k] + values[middle + k]) / 2;
+            }
+        }
+    }
+}
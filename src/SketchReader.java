@@ -0,0 +1,341 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.RowId;
+import java.util.*;
+
+/**
+ * Reads sketches written by SketchWriter, in the order they were written.
+ * The stream is read through one fixed size chunk and counter tables are
+ * filled straight from it.
+ */
+public class SketchReader implements Closeable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private InputStream in;
+    private ByteBuffer chunk;
+    private boolean offHeap;
+    // format version of the sketch being read
+    private int version;
+
+    public SketchReader(InputStream in) {
+        this(in, false);
+    }
+
+    /**
+     * offHeap puts the counter tables of the sketches read off the java heap
+     * (see LongTable).
+     */
+    public SketchReader(InputStream in, boolean offHeap) {
+        this.in = in;
+        this.chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.chunk.limit(0);
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Reads the next sketch, whatever its type.
+     */
+    public Object read() throws IOException {
+        int type = header();
+        switch ( type ) {
+            case SketchFormat.COUNT_MIN_SKETCH:
+                return getCountMinSketch();
+            case SketchFormat.COUNT_SKETCH:
+                return getCountSketch();
+            case SketchFormat.CARDINALITY_SKETCH:
+                return getCardinalitySketch();
+            case SketchFormat.TOPK:
+                return getTopK();
+            case SketchFormat.COLUMN_STATS:
+                return getColumnStats();
+            case SketchFormat.HYPERLOGLOG:
+                return getHyperLogLog();
+            default:
+                throw new IOException("Unknown sketch type " + type);
+        }
+    }
+
+    public CountMinSketch readCountMinSketch() throws IOException {
+        expect(SketchFormat.COUNT_MIN_SKETCH);
+        return getCountMinSketch();
+    }
+
+    public CountSketch readCountSketch() throws IOException {
+        expect(SketchFormat.COUNT_SKETCH);
+        return getCountSketch();
+    }
+
+    public CardinalitySketch readCardinalitySketch() throws IOException {
+        expect(SketchFormat.CARDINALITY_SKETCH);
+        return getCardinalitySketch();
+    }
+
+    public HyperLogLog readHyperLogLog() throws IOException {
+        expect(SketchFormat.HYPERLOGLOG);
+        return getHyperLogLog();
+    }
+
+    public TopK readTopK() throws IOException {
+        expect(SketchFormat.TOPK);
+        return getTopK();
+    }
+
+    public ColumnStats readColumnStats() throws IOException {
+        expect(SketchFormat.COLUMN_STATS);
+        return getColumnStats();
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int header() throws IOException {
+        ensure(6);
+        if ( chunk.getInt() != SketchFormat.MAGIC ) {
+            throw new IOException("Not a sketch");
+        }
+        version = chunk.get();
+        if ( version > SketchFormat.VERSION ) {
+            throw new IOException("Unsupported sketch format version " + version);
+        }
+        return chunk.get();
+    }
+
+    private void expect(int type) throws IOException {
+        int found = header();
+        if ( found != type ) {
+            throw new IOException("Expected sketch type " + type + ", found " + found);
+        }
+    }
+
+    private CountMinSketch getCountMinSketch() throws IOException {
+        int depth = getInt();
+        int width = getInt();
+        long size = getVarint();
+        long[] hashA = getVarints(depth);
+        return new CountMinSketch(depth, width, size, hashA, getTable(depth * width));
+    }
+
+    private CountSketch getCountSketch() throws IOException {
+        int depth = getInt();
+        int width = getInt();
+        long size = getVarint();
+        long[] hashA = getVarints(depth);
+        long[] hashB = getVarints(depth);
+        long[] hashgA = getVarints(depth);
+        long[] hashgB = getVarints(depth);
+        return new CountSketch(depth, width, size, hashA, hashB, hashgA, hashgB, getTable(depth * width));
+    }
+
+    private CardinalitySketch getCardinalitySketch() throws IOException {
+        CardinalitySketch sketch = new CardinalitySketch(getInt());
+        sketch.restoreSplit(getInt());
+        int entries = getInt();
+        for (int i=0; i<entries; ++i) {
+            long hash = getLong();
+            long frequency = getVarint();
+            String value = getString();
+            sketch.addNode(hash, value, getRowid(), frequency);
+        }
+        return sketch;
+    }
+
+    private HyperLogLog getHyperLogLog() throws IOException {
+        int precision = getInt();
+        int entries = getInt() - 1;
+        if ( entries >= 0 ) {
+            int[] sparse = new int[entries];
+            int last = 0;
+            for (int i=0; i<entries; ++i) {
+                last += getInt();
+                sparse[i] = last;
+            }
+            return new HyperLogLog(precision, sparse);
+        }
+
+        long[] registers = new long[HyperLogLog.registerLongs(precision)];
+        for (int i=0; i<registers.length; ++i) {
+            registers[i] = getLong();
+        }
+        return new HyperLogLog(precision, registers);
+    }
+
+    private TopK getTopK() throws IOException {
+        TopK.Engine engine = TopK.Engine.values()[getInt()];
+        int size = getInt();
+        TopK topk = engine == TopK.Engine.SPACE_SAVING ?
+                    new TopK(size, engine) : new TopK(size, getCountSketch());
+
+        int n = getInt();
+        List<RowidMap> elements = new ArrayList<RowidMap>(n);
+        for (int i=0; i<n; ++i) {
+            long hash = getLong();
+            long count = SketchFormat.unzigzag(getVarint());
+            long error = SketchFormat.unzigzag(getVarint());
+            String value = getString();
+            RowidMap map = new RowidMap(getRowid(), hash, count, i);
+            map.setError(error);
+            map.setObject(value);
+            elements.add(map);
+        }
+        topk.restore(elements);
+        return topk;
+    }
+
+    private ColumnStats getColumnStats() throws IOException {
+        ColumnStats columnStats = new ColumnStats();
+        columnStats.setColumnName(getString());
+        columnStats.setColumnClassName(getString());
+        columnStats.setIngestType(ColumnStats.IngestType.values()[getInt()]);
+        columnStats.setNumRows(getVarint());
+        columnStats.setNumNulls(getVarint());
+        columnStats.setDoingLossyCounting(getInt() != 0);
+        ColumnStats.NDVEngine ndvEngine = version < 2 ? ColumnStats.NDVEngine.ADAPTIVE_SAMPLING
+                                                      : ColumnStats.NDVEngine.values()[getInt()];
+        if ( ndvEngine == ColumnStats.NDVEngine.HYPERLOGLOG ) {
+            columnStats.setHyperLogLog(getHyperLogLog());
+        } else {
+            columnStats.setCardinalitySketch(getCardinalitySketch());
+        }
+        columnStats.setTopk(getTopK());
+        return columnStats;
+    }
+
+    private LongTable getTable(int length) throws IOException {
+        LongTable table = offHeap ? LongTable.offHeap(length) : LongTable.onHeap(length);
+        SketchFormat.Encoding encoding = SketchFormat.Encoding.values()[getInt()];
+
+        switch ( encoding ) {
+            case RAW:
+                long[] array = table.array();
+                int i = 0;
+                while ( i < length ) {
+                    ensure(8);
+                    int n = Math.min(chunk.remaining() / 8, length - i);
+                    if ( array != null ) {
+                        chunk.asLongBuffer().get(array, i, n);
+                        chunk.position(chunk.position() + 8 * n);
+                    } else {
+                        for (int k=0; k<n; ++k) {
+                            table.set(i + k, chunk.getLong());
+                        }
+                    }
+                    i += n;
+                }
+                break;
+            case VARINT:
+                for (int k=0; k<length; ++k) {
+                    table.set(k, SketchFormat.unzigzag(getVarint()));
+                }
+                break;
+            case SPARSE:
+                int nonZero = getInt();
+                int index = -1;
+                for (int k=0; k<nonZero; ++k) {
+                    index += getInt() + 1;
+                    table.set(index, SketchFormat.unzigzag(getVarint()));
+                }
+                break;
+            default:
+                throw new IOException("Unknown table encoding " + encoding);
+        }
+        return table;
+    }
+
+    // refills the chunk until it holds at least bytes
+    private void ensure(int bytes) throws IOException {
+        if ( chunk.remaining() >= bytes ) {
+            return;
+        }
+        chunk.compact();
+        while ( chunk.position() < bytes ) {
+            int read = in.read(chunk.array(), chunk.position(), chunk.remaining());
+            if ( read < 0 ) {
+                throw new EOFException("Truncated sketch");
+            }
+            chunk.position(chunk.position() + read);
+        }
+        chunk.flip();
+    }
+
+    private long getLong() throws IOException {
+        ensure(8);
+        return chunk.getLong();
+    }
+
+    private long getVarint() throws IOException {
+        long value = 0;
+        for (int shift=0; shift<64; shift += 7) {
+            ensure(1);
+            byte b = chunk.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ( b >= 0 ) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int getInt() throws IOException {
+        long value = getVarint();
+        if ( value > Integer.MAX_VALUE ) {
+            throw new IOException("Malformed sketch: " + value + " out of range");
+        }
+        return (int) value;
+    }
+
+    private long[] getVarints(int length) throws IOException {
+        long[] values = new long[length];
+        for (int i=0; i<length; ++i) {
+            values[i] = SketchFormat.unzigzag(getVarint());
+        }
+        return values;
+    }
+
+    private byte[] getBytes() throws IOException {
+        int length = getInt() - 1;
+        if ( length < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        int copied = Math.min(length, chunk.remaining());
+        chunk.get(bytes, 0, copied);
+        while ( copied < length ) {
+            int read = in.read(bytes, copied, length - copied);
+            if ( read < 0 ) {
+                throw new EOFException("Truncated sketch");
+            }
+            copied += read;
+        }
+        return bytes;
+    }
+
+    private String getString() throws IOException {
+        byte[] bytes = getBytes();
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private RowId getRowid() throws IOException {
+        byte[] bytes = getBytes();
+        return bytes == null ? null : new RowLocator(bytes);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.RowId;
+import java.util.*;
+
+/**
+ * Writes sketches to a stream in SketchFormat. Everything goes through one
+ * fixed size chunk, counter tables included, so a sketch is never copied
+ * whole on its way out. Any number of sketches can be written one after the
+ * other and read back in the same order with a SketchReader.
+ */
+public class SketchWriter implements Closeable, Flushable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private OutputStream out;
+    private ByteBuffer chunk;
+    private SketchFormat.Encoding encoding;
+
+    public SketchWriter(OutputStream out) {
+        this(out, SketchFormat.Encoding.AUTO);
+    }
+
+    public SketchWriter(OutputStream out, SketchFormat.Encoding encoding) {
+        this.out = out;
+        this.chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.encoding = encoding;
+    }
+
+    public void write(CountMinSketch sketch) throws IOException {
+        header(SketchFormat.COUNT_MIN_SKETCH);
+        putVarint(sketch.getDepth());
+        putVarint(sketch.getWidth());
+        putVarint(sketch.size());
+        putVarints(sketch.getHashA());
+        putTable(sketch.getTable());
+    }
+
+    public void write(CountSketch sketch) throws IOException {
+        header(SketchFormat.COUNT_SKETCH);
+        putCountSketch(sketch);
+    }
+
+    public void write(CardinalitySketch sketch) throws IOException {
+        header(SketchFormat.CARDINALITY_SKETCH);
+        putCardinalitySketch(sketch);
+    }
+
+    public void write(HyperLogLog sketch) throws IOException {
+        header(SketchFormat.HYPERLOGLOG);
+        putHyperLogLog(sketch);
+    }
+
+    public void write(TopK topk) throws IOException {
+        header(SketchFormat.TOPK);
+        putTopK(topk);
+    }
+
+    public void write(ColumnStats columnStats) throws IOException {
+        header(SketchFormat.COLUMN_STATS);
+        putString(columnStats.getColumnName());
+        putString(columnStats.getColumnClassName());
+        putVarint(columnStats.getIngestType().ordinal());
+        putVarint(columnStats.getNumRows());
+        putVarint(columnStats.getNumNulls());
+        putVarint(columnStats.isDoingLossyCounting() ? 1 : 0);
+        putVarint(columnStats.getNDVEngine().ordinal());
+        if ( columnStats.getHyperLogLog() != null ) {
+            putHyperLogLog(columnStats.getHyperLogLog());
+        } else {
+            putCardinalitySketch(columnStats.getCardinalitySketch());
+        }
+        putTopK(columnStats.getTopk());
+    }
+
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private void header(int type) throws IOException {
+        ensure(6);
+        chunk.putInt(SketchFormat.MAGIC);
+        chunk.put((byte) SketchFormat.VERSION);
+        chunk.put((byte) type);
+    }
+
+    private void putCountSketch(CountSketch sketch) throws IOException {
+        putVarint(sketch.getDepth());
+        putVarint(sketch.getWidth());
+        putVarint(sketch.getSize());
+        putVarints(sketch.getHashA());
+        putVarints(sketch.getHashB());
+        putVarints(sketch.getHashgA());
+        putVarints(sketch.getHashgB());
+        putTable(sketch.getTable());
+    }
+
+    private void putCardinalitySketch(CardinalitySketch sketch) throws IOException {
+        PriorityQueue<CardinalitySketch.Node> nodes = sketch.getFrequencies();
+        putVarint(sketch.getMaxelements());
+        putVarint(sketch.getSplit());
+        putVarint(nodes.size());
+        for (CardinalitySketch.Node node : nodes) {
+            putLong(node.getHash());
+            putVarint(node.getFrequency());
+            putString(node.getValue());
+            putRowid(node.getRowid());
+        }
+    }
+
+    private void putHyperLogLog(HyperLogLog sketch) throws IOException {
+        putVarint(sketch.getPrecision());
+        int[] entries = sketch.getSparseEntries();
+        if ( entries != null ) {
+            putVarint(entries.length + 1);
+            int last = 0;
+            for (int entry : entries) {
+                putVarint(entry - last);
+                last = entry;
+            }
+        } else {
+            putVarint(0);
+            for (long registers : sketch.getRegisters()) {
+                putLong(registers);
+            }
+        }
+    }
+
+    private void putTopK(TopK topk) throws IOException {
+        putVarint(topk.getEngine().ordinal());
+        putVarint(topk.getTopk());
+        if ( topk.getEngine() == TopK.Engine.COUNT_SKETCH ) {
+            putCountSketch(topk.getCountSketch());
+        }
+
+        Stack<RowidMap> elements = topk.getTopKElements();
+        putVarint(elements.size());
+        for (RowidMap map : elements) {
+            putLong(map.getValue());
+            putVarint(SketchFormat.zigzag(map.getCount()));
+            putVarint(SketchFormat.zigzag(map.getError()));
+            putString(map.getObject() == null ? null : map.getObject().toString());
+            putRowid(map.getRowid());
+        }
+    }
+
+    private void putTable(LongTable table) throws IOException {
+        int length = table.length();
+        SketchFormat.Encoding tableEncoding = encoding;
+
+        if ( tableEncoding == SketchFormat.Encoding.AUTO ) {
+            long varintBytes = 0;
+            long sparseBytes = 0;
+            int nonZero = 0;
+            int last = -1;
+            for (int i=0; i<length; ++i) {
+                long value = table.get(i);
+                int size = SketchFormat.varintSize(SketchFormat.zigzag(value));
+                varintBytes += size;
+                if ( value != 0 ) {
+                    sparseBytes += SketchFormat.varintSize(i - last - 1) + size;
+                    last = i;
+                    ++nonZero;
+                }
+            }
+            sparseBytes += SketchFormat.varintSize(nonZero);
+
+            tableEncoding = SketchFormat.Encoding.RAW;
+            long best = 8L * length;
+            if ( varintBytes < best ) {
+                tableEncoding = SketchFormat.Encoding.VARINT;
+                best = varintBytes;
+            }
+            if ( sparseBytes < best ) {
+                tableEncoding = SketchFormat.Encoding.SPARSE;
+            }
+        }
+
+        putVarint(tableEncoding.ordinal());
+        switch ( tableEncoding ) {
+            case RAW:
+                long[] array = table.array();
+                int i = 0;
+                while ( i < length ) {
+                    ensure(8);
+                    int n = Math.min(chunk.remaining() / 8, length - i);
+                    if ( array != null ) {
+                        chunk.asLongBuffer().put(array, i, n);
+                        chunk.position(chunk.position() + 8 * n);
+                    } else {
+                        for (int k=0; k<n; ++k) {
+                            chunk.putLong(table.get(i + k));
+                        }
+                    }
+                    i += n;
+                }
+                break;
+            case VARINT:
+                for (int k=0; k<length; ++k) {
+                    putVarint(SketchFormat.zigzag(table.get(k)));
+                }
+                break;
+            default:
+                int nonZero = 0;
+                for (int k=0; k<length; ++k) {
+                    if ( table.get(k) != 0 ) {
+                        ++nonZero;
+                    }
+                }
+                putVarint(nonZero);
+                int last = -1;
+                for (int k=0; k<length; ++k) {
+                    long value = table.get(k);
+                    if ( value != 0 ) {
+                        putVarint(k - last - 1);
+                        putVarint(SketchFormat.zigzag(value));
+                        last = k;
+                    }
+                }
+                break;
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if ( chunk.remaining() < bytes ) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        out.write(chunk.array(), 0, chunk.position());
+        chunk.clear();
+    }
+
+    private void putLong(long value) throws IOException {
+        ensure(8);
+        chunk.putLong(value);
+    }
+
+    // unsigned: counts and sizes are never negative, the rest is zigzagged
+    private void putVarint(long value) throws IOException {
+        ensure(10);
+        while ( (value & ~0x7fL) != 0 ) {
+            chunk.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        chunk.put((byte) value);
+    }
+
+    private void putVarints(long[] values) throws IOException {
+        for (long value : values) {
+            putVarint(SketchFormat.zigzag(value));
+        }
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        if ( bytes == null ) {
+            putVarint(0);
+            return;
+        }
+        putVarint(bytes.length + 1L);
+        if ( bytes.length > chunk.capacity() ) {
+            drain();
+            out.write(bytes);
+        } else {
+            ensure(bytes.length);
+            chunk.put(bytes);
+        }
+    }
+
+    private void putString(String value) throws IOException {
+        putBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void putRowid(RowId rowid) throws IOException {
+        putBytes(rowid == null ? null : rowid.getBytes());
+    }
+}
@@ -12,12 +12,20 @@
  * limitations under the License.
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.sql.*;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.Stack;
-
-import oracle.sql.ROWID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by ap349 on 12/17/13.
@@ -28,11 +36,55 @@ public class SqlStatistics {
     public static String MYSQL_DRIVER_NAME     = "com.mysql.jdbc.Driver";
     public static String POSTGRESS_DRIVER_NAME = "org.postgresql.Driver";
     public static int TOPK_COUNT            =  2048;
+    public static int PIPELINE_BATCH_SIZE   =  200;
+    public static int PIPELINE_RING_SIZE    =  16;
+    public static TopK.Engine TOPK_ENGINE   =  TopK.Engine.COUNT_SKETCH;
+    public static ColumnStats.NDVEngine NDV_ENGINE = ColumnStats.NDVEngine.ADAPTIVE_SAMPLING;
+    public static int HLL_PRECISION         =  HyperLogLog.DEFAULT_PRECISION;
+    public static boolean OFF_HEAP_SKETCHES =  false;
+    public static String ORA_ROWSCN            = "ora_rowscn";
+    public static CardinalitySketch.NDVEstimator NDV_ESTIMATOR = CardinalitySketch.NDVEstimator.HAAS_STOKES;
+
+    // the optional alias after a table name in a from clause
+    private static final String TABLE_ALIAS =
+            "(?:\\s+(?:as\\s+)?(?!(?:where|join|inner|left|right|full|cross|natural|on|using|group|order|having|" +
+            "union|intersect|except|minus|limit|offset|fetch|for|window)\\b)[a-z_][a-z_0-9$#]*)?";
+
+    /**
+     * How gatherSqlStatsSampled samples the table: Oracle's SAMPLE BLOCK and
+     * SAMPLE, or the standard TABLESAMPLE SYSTEM and BERNOULLI (Postgres, SQL
+     * Server), which go after the table's alias and, on databases without
+     * ROWIDs, take the rows' key columns. Block (system) sampling reads only
+     * the sampled blocks and is what makes a 1% gather cheap, but values
+     * clustered in blocks make its NDV estimates less reliable than those of
+     * a row sample.
+     */
+    public enum SampleMode {
+        BLOCK("sample block", false), ROW("sample", false), SYSTEM("tablesample system", true),
+        BERNOULLI("tablesample bernoulli", true);
+
+        private String clause;
+        private boolean tableSample;
+
+        SampleMode(String clause, boolean tableSample) {
+            this.clause = clause;
+            this.tableSample = tableSample;
+        }
+
+        public boolean isTableSample() {
+            return tableSample;
+        }
+
+        public String getClause(double percent) {
+            return clause + " (" + BigDecimal.valueOf(percent).toPlainString() + ")";
+        }
+    }
 
     private String jdbcConnectionString;
     private String username;
     private String password;
     private Connection connection;
+    private RowSourceStatistics rowSourceStatistics = new RowSourceStatistics();
 
     public SqlStatistics(String jdbcConnectionString,
                          String username,
@@ -63,6 +115,9 @@ public class SqlStatistics {
         System.out.println("---------------------------------");
 
         for ( String column : estimate.keySet() ) {
+            if ( ColumnGroup.isGroup(estimate.get(column)) ) {
+                continue;
+            }
             int missedCount = 0;
             HashMap<String, Long> actualMap = estimate.get(column).getTopk().getTopKElementsHash();
 
@@ -108,8 +163,16 @@ public class SqlStatistics {
         throws SQLException {
 
         StringBuffer ndvSql = new StringBuffer("select ");
+        Set<String> columns = new HashSet<String>();
 
+        // the exact NDV of a column group would take a query of its own
         for ( String column : estimate.keySet() ) {
+            if ( !ColumnGroup.isGroup(estimate.get(column)) ) {
+                columns.add(column);
+            }
+        }
+
+        for ( String column : columns ) {
             if ( ndvSql.toString().equals("select ") ) {
                 ndvSql.append("count(distinct " + column + ") as " + column + " ");
             } else {
@@ -125,9 +188,9 @@ public class SqlStatistics {
         ResultSet resultSet = preparedStatement.executeQuery();
 
         while ( resultSet.next() ) {
-            for ( String column : estimate.keySet() ) {
+            for ( String column : columns ) {
                 double count = resultSet.getLong(column);
-                double estimateCount = estimate.get(column).getCardinalitySketch().estimateNDV();
+                double estimateCount = estimate.get(column).estimateNDV();
                 System.out.println(" Column: " + column +
                                    " Exact: " + count +
                                    " Estimate: " + estimateCount +
@@ -136,54 +199,38 @@ public class SqlStatistics {
         }
     }
 
-    private void dumpCardinalitySketchIntoTopk(ColumnStats columnStats) {
-        CardinalitySketch sketch = columnStats.getCardinalitySketch();
-        TopK topK = columnStats.getTopk();
-        PriorityQueue<CardinalitySketch.Node> pq = sketch.getFrequencies();
-        CardinalitySketch.Node node = pq.poll();
-
-        while ( node != null ) {
-            topK.add(node.getValue(), (int)node.getFrequency(), node.getRowid());
-            node = pq.poll();
-        }
-    }
-
     public void dumpCardinalitySketchIntoTopk(HashMap<String, ColumnStats> columnStats) {
         for (String columnLabel : columnStats.keySet() ) {
             if ( !columnStats.get(columnLabel).isDoingLossyCounting() ) {
-               dumpCardinalitySketchIntoTopk(columnStats.get(columnLabel));
+               columnStats.get(columnLabel).dumpCardinalitySketchIntoTopk();
             }
         }
     }
 
-    private void gatherColumnStats(ResultSet resultSet, HashMap<String, ColumnStats> columnStats )
-            throws SQLException {
-        while ( resultSet.next() ) {
-            ROWID rowid = (ROWID) resultSet.getRowId(1);
-            for (String columnLabel : columnStats.keySet() ) {
-                Object object = resultSet.getObject(columnLabel);
-                ColumnStats columnStat = columnStats.get(columnLabel);
-                columnStat.incrementNumRows();
-
-                if ( object == null ) {
-                    columnStat.incrementNumNulls();
-                }  else {
-                    CardinalitySketch sketch = columnStats.get(columnLabel).getCardinalitySketch();
-                    sketch.add(object.toString(), rowid);
-
-                    if ( columnStat.isDoingLossyCounting() ) {
-                        TopK topk = columnStats.get(columnLabel).getTopk();
-                        topk.add(object.toString(), 1, rowid);
-                    }
-
-                    if ( !columnStat.isDoingLossyCounting() && sketch.getSize() == sketch.getMaxelements() ) {
-                        System.out.println("Switching to lossy counting for " + columnLabel);
-                        dumpCardinalitySketchIntoTopk(columnStat);
-                        columnStat.setDoingLossyCounting(true);
-                    }
-                }
-            }
-        }
+    /**
+     * Picks the heavy hitter engine for one column (by its label in the sql);
+     * the other columns use TOPK_ENGINE.
+     */
+    public void setTopKEngine(String columnLabel, TopK.Engine engine) {
+        rowSourceStatistics.setTopKEngine(columnLabel, engine);
+    }
+
+    /**
+     * Picks the NDV engine for one column (by its label in the sql); the
+     * other columns use NDV_ENGINE.
+     */
+    public void setNDVEngine(String columnLabel, ColumnStats.NDVEngine engine) {
+        rowSourceStatistics.setNDVEngine(columnLabel, engine);
+    }
+
+    /**
+     * Declares a group of columns (by their labels in the sql) whose
+     * combinations of values get an NDV of their own, gathered in the same
+     * scan as the columns under the group's label, e.g. "(YEAR, REGION)";
+     * see ColumnGroup. Its engines are set by that label.
+     */
+    public ColumnGroup addColumnGroup(String... columnLabels) {
+        return rowSourceStatistics.addColumnGroup(columnLabels);
     }
 
     public HashMap<String, ColumnStats> gatherSqlStats(String sql)
@@ -191,33 +238,479 @@ public class SqlStatistics {
         PreparedStatement preparedStatement = connection.prepareStatement(sql);
         preparedStatement.setFetchSize(200);
         ResultSet resultSet = preparedStatement.executeQuery();
-        ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
-        int columnCount = resultSetMetaData.getColumnCount();
+
+        try {
+            return rowSourceStatistics.gather(JdbcRowSource.withRowId(resultSet));
+        } catch (IOException e) {
+            throw sqlException(e);
+        }
+    }
+
+    /**
+     * Same as gatherSqlStats, but fetching and sketching are overlapped through
+     * a bounded ring buffer, with sketchThreads threads updating the sketches.
+     */
+    public HashMap<String, ColumnStats> gatherSqlStatsPipelined(String sql, int sketchThreads)
+            throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        preparedStatement.setFetchSize(PIPELINE_BATCH_SIZE);
+        ResultSet resultSet = preparedStatement.executeQuery();
+
+        try {
+            return rowSourceStatistics.gather(JdbcRowSource.withRowId(resultSet), sketchThreads);
+        } catch (IOException e) {
+            throw sqlException(e);
+        }
+    }
+
+    /**
+     * Same as gatherSqlStats for databases without ROWIDs (Postgres, MySQL):
+     * the first keyColumns columns of sql are the primary key of the row
+     * instead of its ROWID.
+     */
+    public HashMap<String, ColumnStats> gatherSqlStatsByKey(String sql, int keyColumns)
+            throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        preparedStatement.setFetchSize(PIPELINE_BATCH_SIZE);
+        ResultSet resultSet = preparedStatement.executeQuery();
+
+        try {
+            return rowSourceStatistics.gather(JdbcRowSource.withKey(resultSet, keyColumns));
+        } catch (IOException e) {
+            throw sqlException(e);
+        }
+    }
+
+    private static SQLException sqlException(IOException e) {
+        return e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e);
+    }
+
+    /**
+     * Same as gatherSqlStats over a random sample of percent of the rows of
+     * tableName, for Oracle's BLOCK and ROW modes: the sample clause of mode
+     * is added after tableName in the from clause of sql. The stats are of
+     * the sample, marked with percent; ColumnStats scales the counts and
+     * estimates the NDV of the whole table from them (see
+     * ColumnStats.estimateNDV).
+     */
+    public HashMap<String, ColumnStats> gatherSqlStatsSampled(String sql, String tableName, SampleMode mode,
+                                                              double percent)
+            throws SQLException {
+        return gatherSqlStatsSampled(sql, tableName, mode, percent, 0);
+    }
+
+    /**
+     * Same as gatherSqlStatsSampled, for databases without ROWIDs: the first
+     * keyColumns columns of sql are the primary key of the row, as in
+     * gatherSqlStatsByKey. The TABLESAMPLE modes need them; the clause is
+     * added after the alias of tableName, if it has one.
+     */
+    public HashMap<String, ColumnStats> gatherSqlStatsSampled(String sql, String tableName, SampleMode mode,
+                                                              double percent, int keyColumns)
+            throws SQLException {
+        if ( !(percent > 0 && percent <= 100) ) {
+            throw new IllegalArgumentException("Sample percent must be in (0, 100]: " + percent);
+        }
+        if ( mode.isTableSample() && keyColumns <= 0 ) {
+            throw new IllegalArgumentException(mode + " sampling is for databases without ROWIDs, and needs the " +
+                                               "key columns of the rows");
+        }
+        if ( percent == 100 ) {
+            return keyColumns > 0 ? gatherSqlStatsByKey(sql, keyColumns) : gatherSqlStats(sql);
+        }
+
+        // Oracle samples right after the table, TABLESAMPLE follows its alias
+        Matcher matcher = Pattern.compile("(?i)\\bfrom\\s+" + Pattern.quote(tableName) + "\\b" +
+                                          (mode.isTableSample() ? TABLE_ALIAS : "")).matcher(sql);
+        if ( !matcher.find() ) {
+            throw new IllegalArgumentException("No from " + tableName + " in " + sql);
+        }
+        String sampleSql = sql.substring(0, matcher.end()) + " " + mode.getClause(percent) + sql.substring(matcher.end());
+
+        long startTime = System.nanoTime();
+        HashMap<String, ColumnStats> statsHashMap = keyColumns > 0 ? gatherSqlStatsByKey(sampleSql, keyColumns)
+                                                                   : gatherSqlStats(sampleSql);
+        for (ColumnStats columnStats : statsHashMap.values()) {
+            columnStats.setSamplePercent(percent);
+        }
+
+        long rows = statsHashMap.isEmpty() ? 0 : statsHashMap.values().iterator().next().getNumRows();
+        System.out.println("Sampled: " + rows + " rows with " + mode.getClause(percent) + " in " +
+                           (System.nanoTime() - startTime)/1000000 + " ms");
+        return statsHashMap;
+    }
+
+    /**
+     * Splits the extents of a (non partitioned) table owned by the connected
+     * user into at most degree contiguous ROWID ranges of roughly equal size.
+     */
+    private List<String[]> getRowidRanges(String tableName, int degree) throws SQLException {
+        String rangeSql = " select rowidtochar(dbms_rowid.rowid_create(1, o.data_object_id, e.lo_fno, e.lo_block, 0)),\n" +
+                          "        rowidtochar(dbms_rowid.rowid_create(1, o.data_object_id, e.hi_fno, e.hi_block, 32767))\n" +
+                          "   from ( select distinct grp,\n" +
+                          "                 first_value(relative_fno) over (partition by grp order by relative_fno, block_id\n" +
+                          "                     rows between unbounded preceding and unbounded following) lo_fno,\n" +
+                          "                 first_value(block_id) over (partition by grp order by relative_fno, block_id\n" +
+                          "                     rows between unbounded preceding and unbounded following) lo_block,\n" +
+                          "                 last_value(relative_fno) over (partition by grp order by relative_fno, block_id\n" +
+                          "                     rows between unbounded preceding and unbounded following) hi_fno,\n" +
+                          "                 last_value(block_id + blocks - 1) over (partition by grp order by relative_fno, block_id\n" +
+                          "                     rows between unbounded preceding and unbounded following) hi_block\n" +
+                          "            from ( select relative_fno, block_id, blocks,\n" +
+                          "                          trunc((sum(blocks) over (order by relative_fno, block_id) - 0.01)\n" +
+                          "                                / (sum(blocks) over () / ?)) grp\n" +
+                          "                     from user_extents\n" +
+                          "                    where segment_name = upper(?)\n" +
+                          "                      and segment_type = 'TABLE'\n" +
+                          "                 )\n" +
+                          "        ) e,\n" +
+                          "        user_objects o\n" +
+                          "  where o.object_name = upper(?)\n" +
+                          "    and o.object_type = 'TABLE'\n" +
+                          "  order by e.grp";
+
+        List<String[]> ranges = new ArrayList<String[]>();
+        PreparedStatement ps = connection.prepareStatement(rangeSql);
+        ps.setInt(1, degree);
+        ps.setString(2, tableName);
+        ps.setString(3, tableName);
+        ResultSet rs = ps.executeQuery();
+
+        while ( rs.next() ) {
+            ranges.add(new String[] { rs.getString(1), rs.getString(2) });
+        }
+
+        rs.close();
+        ps.close();
+        return ranges;
+    }
+
+    private class RowidRangeGatherer implements Callable<HashMap<String, ColumnStats>> {
+        private String sql;
+        private String lowRowid;
+        private String highRowid;
+        private int seed;
+
+        public RowidRangeGatherer(String sql, String lowRowid, String highRowid, int seed) {
+            this.sql = sql;
+            this.lowRowid = lowRowid;
+            this.highRowid = highRowid;
+            this.seed = seed;
+        }
+
+        @Override
+        public HashMap<String, ColumnStats> call() throws SQLException {
+            Connection rangeConnection = DriverManager.getConnection(jdbcConnectionString, username, password);
+
+            try {
+                PreparedStatement preparedStatement = rangeConnection.prepareStatement(
+                        "select * from ( " + sql + " ) where rowid between chartorowid(?) and chartorowid(?)");
+                preparedStatement.setFetchSize(200);
+                preparedStatement.setString(1, lowRowid);
+                preparedStatement.setString(2, highRowid);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                HashMap<String, ColumnStats> statsHashMap =
+                        rowSourceStatistics.gatherSeeded(JdbcRowSource.withRowId(resultSet), seed);
+
+                resultSet.close();
+                preparedStatement.close();
+                return statsHashMap;
+            } catch (IOException e) {
+                throw sqlException(e);
+            } finally {
+                rangeConnection.close();
+            }
+        }
+    }
+
+    /**
+     * Parallel version of gatherSqlStats. The table is split into degree ROWID
+     * ranges, each range is scanned on its own connection and thread into its
+     * own sketches and the per range stats are merged at the end.
+     *
+     * The sql must select from tableName only, like the sql of gatherSqlStats.
+     */
+    public HashMap<String, ColumnStats> gatherSqlStats(String sql, String tableName, int degree)
+            throws SQLException {
+        List<String[]> ranges = getRowidRanges(tableName, degree);
+
+        if ( ranges.size() < 2 ) {
+            return gatherSqlStats(sql);
+        }
+
+        int seed = (int)System.currentTimeMillis();
+        ExecutorService executorService = Executors.newFixedThreadPool(ranges.size());
+        List<HashMap<String, ColumnStats>> rangeStats = new ArrayList<HashMap<String, ColumnStats>>();
+
+        try {
+            List<Future<HashMap<String, ColumnStats>>> futures = new ArrayList<Future<HashMap<String, ColumnStats>>>();
+            for (String[] range : ranges) {
+                futures.add(executorService.submit(new RowidRangeGatherer(sql, range[0], range[1], seed)));
+            }
+
+            for (Future<HashMap<String, ColumnStats>> future : futures) {
+                rangeStats.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        } catch (ExecutionException e) {
+            if ( e.getCause() instanceof SQLException ) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+
         HashMap<String, ColumnStats> statsHashMap = new HashMap<String, ColumnStats>();
+        for (String columnLabel : rangeStats.get(0).keySet()) {
+            ColumnStats[] columnStats = new ColumnStats[rangeStats.size()];
+            for (int i=0; i<columnStats.length; ++i) {
+                columnStats[i] = rangeStats.get(i).get(columnLabel);
+            }
+            statsHashMap.put(columnLabel, ColumnStats.merge(columnStats));
+        }
+        for (HashMap<String, ColumnStats> range : rangeStats) {
+            closeColumnStats(range);
+        }
 
-        for ( int i=2; i<=columnCount; ++i) {
-            String label = resultSetMetaData.getColumnLabel(i);
-            String className = resultSetMetaData.getColumnClassName(i);
-            ColumnStats columnStats = new ColumnStats();
-            columnStats.setColumnName(label);
-            columnStats.setColumnClassName(className);
-            columnStats.setTopk(new TopK(TOPK_COUNT));
-            columnStats.setDoingLossyCounting(false);
-            columnStats.setCardinalitySketch(new CardinalitySketch());
-            statsHashMap.put(label, columnStats);
+        return statsHashMap;
+    }
+
+    /**
+     * Incremental version of gatherSqlStats for tables that are appended to,
+     * using ORA_ROWSCN as the change expression (see below). The table should
+     * be created with ROWDEPENDENCIES: otherwise ORA_ROWSCN is tracked per
+     * block and the old rows of every block a load touches are counted again.
+     */
+    public HashMap<String, ColumnStats> gatherSqlStatsIncremental(String sql, String tableName, File store)
+            throws SQLException, IOException {
+        return gatherSqlStatsIncremental(sql, tableName, ORA_ROWSCN, store);
+    }
+
+    /**
+     * Incremental version of gatherSqlStats. changeExpression is a numeric
+     * expression over the columns of tableName that only grows for new rows
+     * (a load id, a sequence, ORA_ROWSCN). The stats of the previous run are
+     * kept in store with the high-water mark of changeExpression they cover;
+     * only the rows above that mark are scanned and merged into them, and the
+     * result is written back to store with the new mark. The first run, or a
+     * run with a different changeExpression, scans the whole table.
+     *
+     * Rows are only ever added to the sketches: deleted rows, and the old
+     * value of updated rows, stay counted until a full gather.
+     */
+    public HashMap<String, ColumnStats> gatherSqlStatsIncremental(String sql, String tableName,
+                                                                  String changeExpression, File store)
+            throws SQLException, IOException {
+        HashMap<String, ColumnStats> previous = null;
+        long previousMark = 0;
+        int seed = (int)System.currentTimeMillis();
+
+        if ( store.exists() ) {
+            ColumnStatsStore columnStatsStore = ColumnStatsStore.open(store);
+            try {
+                if ( changeExpression.equals(columnStatsStore.getProperty("changeExpression")) ) {
+                    previous = columnStatsStore.load();
+                    previousMark = Long.parseLong(columnStatsStore.getProperty("highWaterMark"));
+                    // the count sketches can only be merged with ones of the same seed
+                    seed = Integer.parseInt(columnStatsStore.getProperty("seed"));
+                }
+            } finally {
+                columnStatsStore.close();
+            }
+        }
+
+        // Rows changed after the mark is read are above it and left to the
+        // next run, so no row is scanned twice or missed between runs.
+        long highWaterMark = getHighWaterMark(tableName, changeExpression);
+        String deltaSql = "select * from ( " + sql + " ) where rowid in ( select rowid from " + tableName +
+                          " where " + changeExpression + " <= ?" +
+                          (previous == null ? "" : " and " + changeExpression + " > ?") + " )";
+        PreparedStatement preparedStatement = connection.prepareStatement(deltaSql);
+        preparedStatement.setFetchSize(200);
+        preparedStatement.setLong(1, highWaterMark);
+        if ( previous != null ) {
+            preparedStatement.setLong(2, previousMark);
+        }
+        ResultSet resultSet = preparedStatement.executeQuery();
+        long startTime = System.nanoTime();
+        HashMap<String, ColumnStats> statsHashMap;
+
+        try {
+            statsHashMap = rowSourceStatistics.gatherSeeded(JdbcRowSource.withRowId(resultSet), seed);
+        } catch (IOException e) {
+            throw sqlException(e);
+        }
+        resultSet.close();
+        preparedStatement.close();
+
+        // every column counts every row
+        long rows = statsHashMap.isEmpty() ? 0 : statsHashMap.values().iterator().next().getNumRows();
+        System.out.println("Incremental: " + rows + " rows with " + changeExpression + " in (" +
+                           (previous == null ? "-" : Long.toString(previousMark)) + ", " + highWaterMark + "] in " +
+                           (System.nanoTime() - startTime)/1000000 + " ms");
+
+        if ( previous != null ) {
+            for (String columnLabel : statsHashMap.keySet()) {
+                ColumnStats delta = statsHashMap.get(columnLabel);
+                ColumnStats stored = previous.get(columnLabel);
+                // a column added to the sql since the last run only has the delta
+                if ( stored != null ) {
+                    statsHashMap.put(columnLabel, ColumnStats.merge(stored, delta));
+                    delta.close();
+                }
+            }
         }
 
-        gatherColumnStats(resultSet, statsHashMap);
+        HashMap<String, String> properties = new HashMap<String, String>();
+        properties.put("changeExpression", changeExpression);
+        properties.put("highWaterMark", Long.toString(highWaterMark));
+        properties.put("seed", Integer.toString(seed));
+        ColumnStatsStore.write(store, statsHashMap, properties);
+
         return statsHashMap;
     }
 
-    private void printColumnStats(HashMap<String, ColumnStats> value) {
+    private long getHighWaterMark(String tableName, String changeExpression) throws SQLException {
+        String markSql = ORA_ROWSCN.equalsIgnoreCase(changeExpression) ?
+                         "select dbms_flashback.get_system_change_number from dual" :
+                         "select nvl(max(" + changeExpression + "), 0) from " + tableName;
+        PreparedStatement ps = connection.prepareStatement(markSql);
+        ResultSet rs = ps.executeQuery();
+        try {
+            rs.next();
+            return rs.getLong(1);
+        } finally {
+            rs.close();
+            ps.close();
+        }
+    }
+
+    /**
+     * The ROWID range covering every row of one partition of tableName, from
+     * its data object id, or null if it has no segment yet.
+     */
+    private String[] getPartitionRowidRange(String tableName, String partitionName) throws SQLException {
+        String rangeSql = " select rowidtochar(dbms_rowid.rowid_create(1, data_object_id, 0, 0, 0)),\n" +
+                          "        rowidtochar(dbms_rowid.rowid_create(1, data_object_id, 1023, 4194303, 32767))\n" +
+                          "   from user_objects\n" +
+                          "  where object_name = upper(?)\n" +
+                          "    and subobject_name = upper(?)\n" +
+                          "    and object_type = 'TABLE PARTITION'\n" +
+                          "    and data_object_id is not null";
+
+        PreparedStatement ps = connection.prepareStatement(rangeSql);
+        ps.setString(1, tableName);
+        ps.setString(2, partitionName);
+        ResultSet rs = ps.executeQuery();
+        String[] range = rs.next() ? new String[] { rs.getString(1), rs.getString(2) } : null;
+
+        rs.close();
+        ps.close();
+        return range;
+    }
+
+    /**
+     * Brings the per partition stats of a partitioned tableName up to date:
+     * partitions that are new, or listed in changedPartitions, are gathered
+     * (up to degree at a time, each on its own connection), and partitions
+     * that no longer exist are dropped. The global stats then come from
+     * partitionedStats.merge(), without scanning the other partitions.
+     *
+     * The sql must select from tableName only, like the sql of gatherSqlStats.
+     * Subpartitions are not handled.
+     */
+    public void gatherPartitionStats(String sql, String tableName, PartitionedStats partitionedStats,
+                                     Collection<String> changedPartitions, int degree)
+            throws SQLException, IOException {
+        List<String> partitionNames = new ArrayList<String>();
+        PreparedStatement ps = connection.prepareStatement(
+                "select partition_name from user_tab_partitions where table_name = upper(?) order by partition_position");
+        ps.setString(1, tableName);
+        ResultSet rs = ps.executeQuery();
+        while ( rs.next() ) {
+            partitionNames.add(rs.getString(1));
+        }
+        rs.close();
+        ps.close();
+
+        for (String partition : new ArrayList<String>(partitionedStats.getPartitions())) {
+            if ( !partitionNames.contains(partition) ) {
+                System.out.println("Dropping stats of partition " + partition);
+                partitionedStats.dropPartition(partition);
+            }
+        }
+
+        List<String> stale = new ArrayList<String>();
+        for (String partition : partitionNames) {
+            if ( !partitionedStats.getPartitions().contains(partition) ||
+                 (changedPartitions != null && changedPartitions.contains(partition)) ) {
+                stale.add(partition);
+            }
+        }
+        if ( stale.isEmpty() ) {
+            return;
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, Math.min(degree, stale.size())));
+        try {
+            List<Future<HashMap<String, ColumnStats>>> futures = new ArrayList<Future<HashMap<String, ColumnStats>>>();
+            for (String partition : stale) {
+                // a partition without a segment has no rows: the empty range
+                // still gives its columns
+                String[] range = getPartitionRowidRange(tableName, partition);
+                futures.add(executorService.submit(new RowidRangeGatherer(sql,
+                        range == null ? null : range[0], range == null ? null : range[1], partitionedStats.getSeed())));
+            }
+
+            for (int i=0; i<stale.size(); ++i) {
+                HashMap<String, ColumnStats> statsHashMap = futures.get(i).get();
+                System.out.println("Gathered partition " + stale.get(i));
+                partitionedStats.putPartition(stale.get(i), statsHashMap);
+                closeColumnStats(statsHashMap);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        } catch (ExecutionException e) {
+            if ( e.getCause() instanceof SQLException ) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Frees the off heap sketches of gathered stats (see OFF_HEAP_SKETCHES)
+     * once they are no longer needed.
+     */
+    public static void closeColumnStats(HashMap<String, ColumnStats> statsHashMap) {
+        for (ColumnStats columnStats : statsHashMap.values()) {
+            columnStats.close();
+        }
+    }
+
+    public static void printColumnStats(HashMap<String, ColumnStats> value) {
         for (String key : value.keySet() ) {
             ColumnStats columnStats = value.get(key);
             System.out.printf("%20s:  %s\n", "Column Name", key);
-            System.out.printf("%20s:  %d\n", "Split", columnStats.getCardinalitySketch().getSplit());
-            System.out.printf("%20s:  %d\n", "NDV", columnStats.getCardinalitySketch().estimateNDV());
-            System.out.printf("%20s:  %d\n\n", "Not nulls",columnStats.getNumRows() - columnStats.getNumNulls());
+            if ( columnStats.getCardinalitySketch() != null ) {
+                System.out.printf("%20s:  %d\n", "Split", columnStats.getCardinalitySketch().getSplit());
+            } else {
+                System.out.printf("%20s:  %s\n", "NDV engine", columnStats.getNDVEngine());
+            }
+            if ( columnStats.getSamplePercent() < 100 ) {
+                System.out.printf("%20s:  %s\n", "Sample percent", columnStats.getSamplePercent());
+                System.out.printf("%20s:  %s\n", "NDV", columnStats.estimateNDV(NDV_ESTIMATOR));
+            } else {
+                System.out.printf("%20s:  %d\n", "NDV", columnStats.estimateNDV());
+            }
+            System.out.printf("%20s:  %d\n\n", "Not nulls",
+                              columnStats.estimateNumRows() - columnStats.estimateNumNulls());
 
             Stack<RowidMap> stack = columnStats.getTopk().getTopKElements();
             int rank = 1;
@@ -227,7 +720,8 @@ public class SqlStatistics {
 
             while ( !stack.empty() ) {
                 RowidMap map = stack.pop();
-                System.out.printf("%10d%30s%20d\n", rank,map.getRowid().stringValue(), map.getCount());
+                System.out.printf("%10d%30s%20d\n", rank,RowLocator.toString(map.getRowid()),
+                                  columnStats.scaleCount(map.getCount()));
                 ++rank;
             }
 
@@ -244,9 +738,20 @@ public class SqlStatistics {
 
 
         SqlStatistics statistics = new SqlStatistics(jdbcstr, username, password, ORACLE_DRIVER_NAME);
+        //statistics.setTopKEngine("AMOUNT", TopK.Engine.SPACE_SAVING);
+        //statistics.setNDVEngine("CUSTOMER_ID", ColumnStats.NDVEngine.HYPERLOGLOG);
+        //statistics.addColumnGroup("YEAR", "AMOUNT");
         HashMap<String, ColumnStats> val = statistics.gatherSqlStats(sql);
+        //HashMap<String, ColumnStats> val = statistics.gatherSqlStats(sql, "sales", 8);
+        //HashMap<String, ColumnStats> val = statistics.gatherSqlStatsPipelined(sql, 2);
+        //HashMap<String, ColumnStats> val = statistics.gatherSqlStatsIncremental(sql, "sales", new File("sales.stats"));
+        //HashMap<String, ColumnStats> val = statistics.gatherSqlStatsSampled(sql, "sales", SampleMode.BLOCK, 1);
+        //HashMap<String, ColumnStats> val = statistics.gatherSqlStatsSampled("select a.id, a.year, a.amount " +
+        //        "from sales a", "sales", SampleMode.BERNOULLI, 1, 1);
         statistics.dumpCardinalitySketchIntoTopk(val);
-        statistics.printColumnStats(val);
+        printColumnStats(val);
+        //ColumnStatsStore.write(new File("sales.stats"), val);
+        closeColumnStats(val);
         //statistics.calculateNDVError(sql, val, "sales");
         //statistics.highFrequencyInclusionError(sql, val, "sales");
     }
@@ -0,0 +1,699 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running column stats over a stream of rows sent by any number of
+ * producers over a socket, for change streams rather than SELECT scans.
+ *
+ * One NIO thread accepts the connections, decodes the row frames into the
+ * batches of a RowBatchRingBuffer and answers the queries. sketchThreads
+ * threads update the ColumnStats from the batches, each owning a subset of
+ * the columns, as in SqlStatistics.gatherSqlStatsPipelined. Memory is
+ * bounded: the ring, the sketches and, per connection, the frame it is
+ * sending (a connection between frames holds BUFFER_SIZE bytes). When the
+ * sketch threads fall behind the ring fills up and the NIO thread stops
+ * reading, which pushes back on the producers through TCP.
+ *
+ * Queries are answered from a snapshot: every SNAPSHOT_INTERVAL ms the NIO
+ * thread marks the batch it is filling, and each sketch thread copies its
+ * columns once it has sketched that batch. The snapshot so covers exactly
+ * the rows received before it on every column, and queries never wait on,
+ * or lock, the live sketches.
+ *
+ * Protocol, little endian, in frames of an int length (of what follows), a
+ * type byte and the payload. Strings are an int length and UTF-8 bytes.
+ *
+ *   ROWS       int rows, then each row's values in column order, each an int
+ *              length (-1 for null) and its bytes: UTF-8 for STRING columns,
+ *              an 8 byte long for LONG, raw double bits for DOUBLE, epoch
+ *              millis for TIMESTAMP. No response.
+ *   NDV        column; response rows, nulls, ndv (longs).
+ *   TOPK       column, int k; response int n, then n times value (string),
+ *              count and error (longs), by decreasing count.
+ *   FREQUENCY  column, value (as in ROWS); response its estimated count.
+ *
+ * Every response is a frame of the query's type (ERROR, with a message, if
+ * it failed) whose payload starts with the number of rows the snapshot
+ * covers. A malformed frame closes the connection.
+ *
+ * start(int) listens on the loopback interface. For a Unix domain socket
+ * (JDK 16+) open the ServerSocketChannel with StandardProtocolFamily.UNIX
+ * and pass it to start(ServerSocketChannel).
+ */
+public class StatsDaemon implements Closeable {
+    public static final byte ROWS = 1;
+    public static final byte NDV = 2;
+    public static final byte TOPK = 3;
+    public static final byte FREQUENCY = 4;
+    public static final byte ERROR = 127;
+
+    public static int MAX_FRAME_SIZE       = 1 << 20;
+    public static int BATCH_SIZE           = 4096;
+    public static int RING_SIZE            = 8;
+    public static long SNAPSHOT_INTERVAL   = 1000;
+    public static int BUFFER_SIZE          = 4096;
+
+    private String[] columnNames;
+    private HashMap<String, Integer> columnIndexes;
+    private ColumnStats[] columnStats;
+    private int sketchThreads;
+
+    private RowBatchRingBuffer ringBuffer;
+    private RowBatch batch;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean running;
+
+    // rows put into published batches, and into the batch being filled
+    private long rows;
+    private long batchRows;
+    private long nextSnapshot;
+    private volatile Snapshot requested;
+    private volatile Snapshot snapshot;
+    // held to read the snapshot's stats: even estimating writes to them
+    private final Object snapshotLock = new Object();
+
+    private static class Snapshot {
+        // sequence number of the last batch it covers
+        private long batch;
+        private long rows;
+        private ColumnStats[] columnStats;
+        private AtomicInteger pending;
+    }
+
+    /**
+     * A connection: its partial frame, and what is left to write back.
+     */
+    private static class Connection {
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer out;
+    }
+
+    public StatsDaemon(String[] columnNames, ColumnStats.IngestType[] ingestTypes, int sketchThreads) {
+        int seed = (int)System.currentTimeMillis();
+        this.columnNames = columnNames;
+        this.columnIndexes = new HashMap<String, Integer>();
+        this.columnStats = new ColumnStats[columnNames.length];
+        this.sketchThreads = Math.max(1, Math.min(sketchThreads, columnNames.length));
+
+        for (int i=0; i<columnNames.length; ++i) {
+            ColumnStats stats = new ColumnStats();
+            stats.setColumnName(columnNames[i]);
+            stats.setIngestType(ingestTypes[i]);
+            stats.setTopk(new TopK(SqlStatistics.TOPK_COUNT, SqlStatistics.TOPK_ENGINE, TopK.COUNT_SKETCH_DEPTH,
+                                   TopK.COUNT_SKETCH_WIDTH, seed, SqlStatistics.OFF_HEAP_SKETCHES));
+            stats.setDoingLossyCounting(false);
+            if ( SqlStatistics.NDV_ENGINE == ColumnStats.NDVEngine.HYPERLOGLOG ) {
+                stats.setHyperLogLog(new HyperLogLog(SqlStatistics.HLL_PRECISION));
+            } else {
+                stats.setCardinalitySketch(new CardinalitySketch());
+            }
+            columnStats[i] = stats;
+            columnIndexes.put(columnNames[i], i);
+        }
+    }
+
+    /**
+     * Listens on port of the loopback interface (0 for any free port).
+     */
+    public InetSocketAddress start(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        start(server);
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    public void start(ServerSocketChannel server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.ringBuffer = new RowBatchRingBuffer(RING_SIZE, columnNames.length, BATCH_SIZE, MAX_FRAME_SIZE,
+                                                 sketchThreads);
+        this.running = true;
+
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        for (int i=0; i<sketchThreads; ++i) {
+            threads.add(new Thread(new Sketcher(i), "stats-sketcher-" + i));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "stats-daemon"));
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops serving. The rows received so far are sketched before it returns.
+     */
+    public void close() {
+        running = false;
+        if ( selector != null ) {
+            selector.wakeup();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (ColumnStats stats : columnStats) {
+            stats.close();
+        }
+    }
+
+    /**
+     * The live stats. Only consistent once the daemon is closed.
+     */
+    public HashMap<String, ColumnStats> getColumnStats() {
+        HashMap<String, ColumnStats> statsHashMap = new HashMap<String, ColumnStats>();
+        for (ColumnStats stats : columnStats) {
+            statsHashMap.put(stats.getColumnName(), stats);
+        }
+        return statsHashMap;
+    }
+
+    /**
+     * The stats as of the last snapshot, null before the first one. Each call
+     * returns copies of its own, apart from the stats the queries read; still
+     * read them from one thread at a time, the count sketches use scratch
+     * arrays even to estimate.
+     */
+    public HashMap<String, ColumnStats> getSnapshot() {
+        Snapshot last = snapshot;
+        if ( last == null ) {
+            return null;
+        }
+        HashMap<String, ColumnStats> statsHashMap = new HashMap<String, ColumnStats>();
+        synchronized ( snapshotLock ) {
+            for (ColumnStats stats : last.columnStats) {
+                statsHashMap.put(stats.getColumnName(), copyOf(stats));
+            }
+        }
+        return statsHashMap;
+    }
+
+    private void serve() {
+        try {
+            batch = ringBuffer.claim();
+            nextSnapshot = System.currentTimeMillis() + SNAPSHOT_INTERVAL;
+
+            while ( running && batch != null ) {
+                long wait = nextSnapshot - System.currentTimeMillis();
+                if ( wait <= 0 || selector.select(wait) == 0 ) {
+                    if ( System.currentTimeMillis() >= nextSnapshot ) {
+                        requestSnapshot();
+                    }
+                    continue;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while ( keys.hasNext() && batch != null ) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if ( key.isAcceptable() ) {
+                            accept();
+                        } else {
+                            if ( key.isWritable() ) {
+                                write(key);
+                            }
+                            if ( key.isValid() && key.isReadable() ) {
+                                read(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Closing connection: " + e.getMessage());
+                        closeConnection(key);
+                    } catch (RuntimeException e) {
+                        // whatever a client sends only closes its connection
+                        System.out.println("Closing connection: " + e);
+                        closeConnection(key);
+                    }
+                }
+            }
+
+            if ( batch != null && batch.getSize() > 0 ) {
+                publish();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            // closed under us
+        } finally {
+            ringBuffer.close();
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if ( channel != null ) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException, InterruptedException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer in = connection.in;
+
+        if ( ((SocketChannel) key.channel()).read(in) < 0 ) {
+            closeConnection(key);
+            return;
+        }
+
+        in.flip();
+        while ( in.remaining() >= 4 ) {
+            int length = in.getInt(in.position());
+            if ( length < 1 || length > MAX_FRAME_SIZE + 1 ) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if ( in.remaining() < 4 + length ) {
+                break;
+            }
+
+            int end = in.position() + 4 + length;
+            in.position(in.position() + 4);
+            byte type = in.get();
+            ByteBuffer frame = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+            frame.limit(length - 1);
+            in.position(end);
+
+            if ( type == ROWS ) {
+                rows(frame);
+                if ( batch == null ) {
+                    return;
+                }
+            } else {
+                respond(key, connection, type, frame);
+            }
+        }
+
+        // the buffer grows to hold a larger frame, and shrinks back after it
+        int capacity = Math.max(BUFFER_SIZE, in.remaining() >= 4 ? 4 + in.getInt(in.position()) : 0);
+        if ( capacity != in.capacity() ) {
+            connection.in = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            connection.in.put(in);
+        } else {
+            in.compact();
+        }
+    }
+
+    // Rows go into the batch being filled, which is published whenever the
+    // next row would not fit in it. The whole frame is checked first, so a
+    // malformed one adds no rows.
+    private void rows(ByteBuffer frame) throws IOException, InterruptedException {
+        if ( frame.remaining() < 4 ) {
+            throw new IOException("Truncated row frame");
+        }
+        int count = frame.getInt();
+        int columns = columnNames.length;
+        int first = frame.position();
+
+        if ( count < 0 ) {
+            throw new IOException("Bad row count " + count);
+        }
+        for (int row=0; row<count; ++row) {
+            for (int column=0; column<columns; ++column) {
+                if ( frame.remaining() < 4 ) {
+                    throw new IOException("Truncated row frame");
+                }
+                int length = frame.getInt();
+                if ( length > frame.remaining() ) {
+                    throw new IOException("Truncated row frame");
+                }
+                if ( length >= 0 && columnStats[column].getIngestType() != ColumnStats.IngestType.STRING &&
+                     length != 8 ) {
+                    throw new IOException("Column " + columnNames[column] + " takes 8 byte values");
+                }
+                if ( length > 0 ) {
+                    frame.position(frame.position() + length);
+                }
+            }
+        }
+        if ( frame.hasRemaining() ) {
+            throw new IOException(frame.remaining() + " bytes after the rows of a row frame");
+        }
+        frame.position(first);
+
+        for (int row=0; row<count; ++row) {
+            int start = frame.position();
+            int bytes = 0;
+            for (int column=0; column<columns; ++column) {
+                int length = frame.getInt();
+                if ( length > 0 ) {
+                    frame.position(frame.position() + length);
+                    bytes += length;
+                }
+            }
+            frame.position(start);
+
+            if ( batch.isFull() || batch.getBytesRemaining() < bytes ) {
+                publish();
+                if ( batch == null ) {
+                    return;
+                }
+            }
+
+            for (int column=0; column<columns; ++column) {
+                int length = frame.getInt();
+                if ( length < 0 ) {
+                    batch.setNull(column);
+                } else if ( columnStats[column].getIngestType() == ColumnStats.IngestType.STRING ) {
+                    batch.setBytes(column, frame, length);
+                } else {
+                    batch.setLong(column, frame.getLong());
+                }
+            }
+            batch.nextRow();
+            ++batchRows;
+        }
+    }
+
+    private void publish() throws InterruptedException {
+        ringBuffer.publish();
+        rows += batchRows;
+        batchRows = 0;
+        batch = ringBuffer.claim();
+    }
+
+    // The batch being filled is the last one the snapshot covers.
+    private void requestSnapshot() throws InterruptedException {
+        nextSnapshot = System.currentTimeMillis() + SNAPSHOT_INTERVAL;
+        if ( requested != null ) {
+            return;
+        }
+
+        Snapshot next = new Snapshot();
+        next.batch = ringBuffer.getPublished();
+        next.rows = rows + batchRows;
+        next.columnStats = new ColumnStats[columnStats.length];
+        next.pending = new AtomicInteger(sketchThreads);
+        requested = next;
+        publish();
+    }
+
+    private void respond(SelectionKey key, Connection connection, byte type, ByteBuffer frame) throws IOException {
+        Snapshot last = snapshot;
+        ByteBuffer response = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        response.position(5);
+        response.putLong(last == null ? 0 : last.rows);
+
+        try {
+            String columnName = getString(frame);
+            Integer column = columnIndexes.get(columnName);
+            if ( column == null ) {
+                throw new IllegalArgumentException("No column " + columnName);
+            }
+            ColumnStats stats = last == null ? null : last.columnStats[column];
+
+            synchronized ( snapshotLock ) {
+                switch ( type ) {
+                    case NDV:
+                        response.putLong(stats == null ? 0 : stats.getNumRows());
+                        response.putLong(stats == null ? 0 : stats.getNumNulls());
+                        response.putLong(stats == null ? 0 : stats.estimateNDV());
+                        break;
+                    case TOPK:
+                        int k = frame.getInt();
+                        List<RowidMap> elements = stats == null ? new ArrayList<RowidMap>() :
+                                                  new ArrayList<RowidMap>(stats.getTopk().getTopKElements());
+                        Collections.reverse(elements);
+                        int n = Math.max(0, Math.min(k, elements.size()));
+                        response.putInt(n);
+                        for (int i=0; i<n; ++i) {
+                            RowidMap map = elements.get(i);
+                            byte[] value = map.getObject() == null ? new byte[0] :
+                                           map.getObject().toString().getBytes(StandardCharsets.UTF_8);
+                            response = ensure(response, 20 + value.length);
+                            response.putInt(value.length);
+                            response.put(value);
+                            response.putLong(map.getCount());
+                            response.putLong(map.getError());
+                        }
+                        break;
+                    case FREQUENCY:
+                        long hash = hash(columnStats[column].getIngestType(), frame);
+                        response.putLong(stats == null ? 0 : stats.getTopk().estimateCount(hash));
+                        break;
+                    default:
+                        throw new IOException("Unknown frame type " + type);
+                }
+            }
+        } catch (RuntimeException e) {
+            // a bad query only fails itself
+            type = ERROR;
+            byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            response.position(13);
+            response = ensure(response, 4 + message.length);
+            response.putInt(message.length);
+            response.put(message);
+        }
+
+        response.putInt(0, response.position() - 4);
+        response.put(4, type);
+        response.flip();
+        send(key, connection, response);
+    }
+
+    // A copy of stats through SketchWriter and SketchReader.
+    private static ColumnStats copyOf(ColumnStats stats) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            SketchWriter writer = new SketchWriter(bytes);
+            writer.write(stats);
+            writer.flush();
+            return new SketchReader(new ByteArrayInputStream(bytes.toByteArray())).readColumnStats();
+        } catch (IOException e) {
+            // in memory streams
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // hashes a value the way ColumnStats.add does for its ingest type
+    private static long hash(ColumnStats.IngestType ingestType, ByteBuffer frame) {
+        int length = frame.getInt();
+        if ( ingestType == ColumnStats.IngestType.STRING ) {
+            byte[] value = new byte[length];
+            frame.get(value);
+            return MurmurHash.hash64(value, 0, length, MurmurHash.HASH64_SEED);
+        }
+        if ( length != 8 ) {
+            throw new IllegalArgumentException("8 byte value expected");
+        }
+        long value = frame.getLong();
+        switch ( ingestType ) {
+            case DOUBLE:
+                return MurmurHash.hash64(Double.longBitsToDouble(value));
+            case TIMESTAMP:
+                return MurmurHash.hash64(new Timestamp(value));
+            default:
+                return MurmurHash.hash64(value);
+        }
+    }
+
+    private static String getString(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.getInt()];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if ( buffer.remaining() >= bytes ) {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes))
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    // Writes what it can; the rest waits for OP_WRITE, and the connection is
+    // not read from meanwhile, so a client that does not read its responses
+    // holds at most one of them here.
+    private void send(SelectionKey key, Connection connection, ByteBuffer response) throws IOException {
+        if ( connection.out != null ) {
+            ByteBuffer pending = ensure(connection.out.compact(), response.remaining());
+            pending.put(response);
+            pending.flip();
+            response = pending;
+        }
+        ((SocketChannel) key.channel()).write(response);
+        if ( response.hasRemaining() ) {
+            connection.out = response;
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            connection.out = null;
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ((SocketChannel) key.channel()).write(connection.out);
+        if ( !connection.out.hasRemaining() ) {
+            connection.out = null;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private class Sketcher implements Runnable {
+        private int consumer;
+        // reused for TIMESTAMP values, the sketches only keep its string
+        private Timestamp timestamp = new Timestamp(0);
+
+        Sketcher(int consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long sequence = 0;
+                RowBatch batch = ringBuffer.take(consumer);
+
+                while ( batch != null ) {
+                    for (int column=consumer; column<columnStats.length; column+=sketchThreads) {
+                        sketch(batch, column);
+                    }
+                    ringBuffer.release(consumer);
+
+                    Snapshot next = requested;
+                    if ( next != null && next.batch == sequence ) {
+                        copy(next);
+                    }
+                    ++sequence;
+                    batch = ringBuffer.take(consumer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                ringBuffer.abort();
+                throw e;
+            }
+        }
+
+        private void sketch(RowBatch batch, int column) {
+            ColumnStats stats = columnStats[column];
+            int size = batch.getSize();
+
+            for (int row=0; row<size; ++row) {
+                if ( batch.isNull(column, row) ) {
+                    stats.addNull();
+                    continue;
+                }
+                switch ( stats.getIngestType() ) {
+                    case LONG:
+                        stats.add(batch.getLong(column, row), null);
+                        break;
+                    case DOUBLE:
+                        stats.add(Double.longBitsToDouble(batch.getLong(column, row)), null);
+                        break;
+                    case TIMESTAMP:
+                        timestamp.setTime(batch.getLong(column, row));
+                        stats.add(timestamp, null);
+                        break;
+                    default:
+                        stats.add(batch.getBytes(), batch.getOffset(column, row), batch.getLength(column, row), null);
+                }
+            }
+        }
+
+        // Copies the columns it owns; the last thread to copy publishes the
+        // snapshot.
+        private void copy(Snapshot next) {
+            for (int column=consumer; column<columnStats.length; column+=sketchThreads) {
+                ColumnStats copy = copyOf(columnStats[column]);
+                if ( !copy.isDoingLossyCounting() ) {
+                    copy.dumpCardinalitySketchIntoTopk();
+                    copy.setDoingLossyCounting(true);
+                }
+                next.columnStats[column] = copy;
+            }
+
+            if ( next.pending.decrementAndGet() == 0 ) {
+                snapshot = next;
+                requested = null;
+            }
+        }
+    }
+
+    /**
+     * java StatsDaemon port name:TYPE ... where TYPE is an IngestType, e.g.
+     * java StatsDaemon 7070 customer:LONG country:STRING amount:DOUBLE
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = Integer.parseInt(args[0]);
+        String[] names = new String[args.length - 1];
+        ColumnStats.IngestType[] types = new ColumnStats.IngestType[args.length - 1];
+        for (int i=1; i<args.length; ++i) {
+            String[] column = args[i].split(":");
+            names[i - 1] = column[0];
+            types[i - 1] = ColumnStats.IngestType.valueOf(column[1]);
+        }
+
+        StatsDaemon daemon = new StatsDaemon(names, types, Runtime.getRuntime().availableProcessors());
+        System.out.println("Listening on " + daemon.start(port));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.sql.RowId;
+import java.util.*;
+
+/**
+ * Space-Saving heavy hitters (Metwally, Agrawal, El Abbadi) over a Stream
+ * Summary: a fixed number of counters, grouped into buckets of equal count
+ * that are chained in increasing count order. A tracked item is incremented
+ * by moving its counter to the next bucket, an untracked one takes over a
+ * counter of the minimum bucket and inherits its count as error. Every
+ * counter's count overestimates the item's frequency by at most its error.
+ *
+ * Counters and buckets live in parallel arrays indexed by slot, and the items
+ * are identified by their 64 bit hash, so counting does not allocate.
+ */
+public class StreamSummary {
+    private static final int NIL = -1;
+
+    private int capacity;
+    private int size;
+    private LongIntHashMap slots;
+
+    // counters, by slot
+    private long[] hashes;
+    private long[] counts;
+    private long[] errors;
+    private Object[] values;
+    private RowId[] rowids;
+    private int[] bucketOf;
+    private int[] nextInBucket;
+    private int[] prevInBucket;
+
+    // buckets, chained from minBucket up to maxBucket; the unused ones are
+    // chained from freeBucket through nextBucket
+    private long[] bucketCounts;
+    private int[] firstInBucket;
+    private int[] nextBucket;
+    private int[] prevBucket;
+    private int minBucket;
+    private int maxBucket;
+    private int freeBucket;
+
+    public StreamSummary(int capacity) {
+        this.capacity = capacity;
+        this.size = 0;
+        this.slots = new LongIntHashMap(capacity + 1);
+
+        this.hashes = new long[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.values = new Object[capacity];
+        this.rowids = new RowId[capacity];
+        this.bucketOf = new int[capacity];
+        this.nextInBucket = new int[capacity];
+        this.prevInBucket = new int[capacity];
+
+        // an increment links the new bucket before it frees the old one
+        this.bucketCounts = new long[capacity + 1];
+        this.firstInBucket = new int[capacity + 1];
+        this.nextBucket = new int[capacity + 1];
+        this.prevBucket = new int[capacity + 1];
+        for (int i=0; i<=capacity; ++i) {
+            nextBucket[i] = i < capacity ? i + 1 : NIL;
+        }
+        this.freeBucket = 0;
+        this.minBucket = NIL;
+        this.maxBucket = NIL;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Counts item hash count more times. Returns its slot if the item was
+     * not tracked before, for the caller to set its value, NIL otherwise.
+     */
+    public int offer(long hash, long count, RowId rowid) {
+        if ( count <= 0 ) {
+            return NIL;
+        }
+
+        int slot = slots.get(hash);
+        if ( slot != LongIntHashMap.NO_VALUE ) {
+            increment(slot, count);
+            return NIL;
+        }
+
+        if ( size < capacity ) {
+            slot = size++;
+            errors[slot] = 0;
+            place(slot, count, NIL);
+        } else {
+            // take over the counter at the head of the minimum bucket
+            slot = firstInBucket[minBucket];
+            slots.remove(hashes[slot]);
+            errors[slot] = counts[slot];
+            increment(slot, count);
+        }
+        hashes[slot] = hash;
+        values[slot] = null;
+        rowids[slot] = rowid;
+        slots.put(hash, slot);
+        return slot;
+    }
+
+    public void setValue(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    /**
+     * Restores a counter. Counters must be restored in increasing count
+     * order, as getTopKElements lists them.
+     */
+    void restore(long hash, long count, long error, Object value, RowId rowid) {
+        int slot = size++;
+
+        // in increasing count order, so each lands in or after maxBucket
+        place(slot, count, maxBucket);
+        hashes[slot] = hash;
+        errors[slot] = error;
+        values[slot] = value;
+        rowids[slot] = rowid;
+        slots.put(hash, slot);
+    }
+
+    /**
+     * The smallest count in the summary, an upper bound on the frequency of
+     * any item it does not track (0 until all counters are in use).
+     */
+    public long getMinCount() {
+        return size < capacity ? 0 : bucketCounts[minBucket];
+    }
+
+    /**
+     * The count of a tracked item, 0 if it is not tracked (its frequency is
+     * then at most getMinCount()).
+     */
+    public long getCount(long hash) {
+        int slot = slots.get(hash);
+        return slot == LongIntHashMap.NO_VALUE ? 0 : counts[slot];
+    }
+
+    /**
+     * The tracked items, in increasing count order.
+     */
+    public java.util.Stack<RowidMap> getTopKElements() {
+        java.util.Stack<RowidMap> stack = new java.util.Stack<RowidMap>();
+
+        for (int bucket=minBucket; bucket!=NIL; bucket=nextBucket[bucket]) {
+            for (int slot=firstInBucket[bucket]; slot!=NIL; slot=nextInBucket[slot]) {
+                RowidMap map = new RowidMap(rowids[slot], hashes[slot], counts[slot], slot);
+                map.setObject(values[slot]);
+                map.setError(errors[slot]);
+                stack.push(map);
+            }
+        }
+
+        return stack;
+    }
+
+    private void increment(int slot, long count) {
+        int bucket = bucketOf[slot];
+        unlink(slot);
+        place(slot, counts[slot] + count, bucket);
+        if ( firstInBucket[bucket] == NIL ) {
+            freeBucket(bucket);
+        }
+    }
+
+    /**
+     * Links slot into the bucket for count, creating it if needed. The search
+     * starts after bucket from, which must not have a larger count (NIL
+     * starts from the minimum bucket).
+     */
+    private void place(int slot, long count, int from) {
+        int prev = from;
+        int next = from == NIL ? minBucket : nextBucket[from];
+        while ( next != NIL && bucketCounts[next] <= count ) {
+            prev = next;
+            next = nextBucket[next];
+        }
+
+        int bucket = prev;
+        if ( prev == NIL || bucketCounts[prev] != count ) {
+            bucket = newBucket(count, prev, next);
+        }
+
+        counts[slot] = count;
+        bucketOf[slot] = bucket;
+        prevInBucket[slot] = NIL;
+        nextInBucket[slot] = firstInBucket[bucket];
+        if ( firstInBucket[bucket] != NIL ) {
+            prevInBucket[firstInBucket[bucket]] = slot;
+        }
+        firstInBucket[bucket] = slot;
+    }
+
+    private void unlink(int slot) {
+        int prev = prevInBucket[slot];
+        int next = nextInBucket[slot];
+        if ( prev == NIL ) {
+            firstInBucket[bucketOf[slot]] = next;
+        } else {
+            nextInBucket[prev] = next;
+        }
+        if ( next != NIL ) {
+            prevInBucket[next] = prev;
+        }
+    }
+
+    private int newBucket(long count, int prev, int next) {
+        int bucket = freeBucket;
+        freeBucket = nextBucket[bucket];
+
+        bucketCounts[bucket] = count;
+        firstInBucket[bucket] = NIL;
+        prevBucket[bucket] = prev;
+        nextBucket[bucket] = next;
+        if ( prev == NIL ) {
+            minBucket = bucket;
+        } else {
+            nextBucket[prev] = bucket;
+        }
+        if ( next == NIL ) {
+            maxBucket = bucket;
+        } else {
+            prevBucket[next] = bucket;
+        }
+        return bucket;
+    }
+
+    private void freeBucket(int bucket) {
+        int prev = prevBucket[bucket];
+        int next = nextBucket[bucket];
+        if ( prev == NIL ) {
+            minBucket = next;
+        } else {
+            nextBucket[prev] = next;
+        }
+        if ( next == NIL ) {
+            maxBucket = prev;
+        } else {
+            prevBucket[next] = prev;
+        }
+
+        nextBucket[bucket] = freeBucket;
+        freeBucket = bucket;
+    }
+
+    /**
+     * Merges summaries of disjoint parts of a stream (Agarwal et al.,
+     * Mergeable Summaries). An item missing from a full summary may have
+     * been counted up to that summary's minimum count there, so that much is
+     * added to its count and to its error. The capacity largest counters are
+     * kept.
+     */
+    public static StreamSummary merge(StreamSummary... summaries) {
+        int total = 0;
+        long minCounts = 0;
+        for (StreamSummary summary : summaries) {
+            total += summary.size;
+            minCounts += summary.getMinCount();
+        }
+
+        LongIntHashMap index = new LongIntHashMap(total + 1);
+        final long[] counts = new long[total];
+        long[] errors = new long[total];
+        long[] seenMinCounts = new long[total];
+        int[] sources = new int[total];
+        int[] sourceSlots = new int[total];
+        int candidates = 0;
+
+        for (int s=0; s<summaries.length; ++s) {
+            StreamSummary summary = summaries[s];
+            for (int slot=0; slot<summary.size; ++slot) {
+                int candidate = index.get(summary.hashes[slot]);
+                if ( candidate == LongIntHashMap.NO_VALUE ) {
+                    candidate = candidates++;
+                    index.put(summary.hashes[slot], candidate);
+                    sources[candidate] = s;
+                    sourceSlots[candidate] = slot;
+                }
+                counts[candidate] += summary.counts[slot];
+                errors[candidate] += summary.errors[slot];
+                seenMinCounts[candidate] += summary.getMinCount();
+            }
+        }
+
+        Integer[] order = new Integer[candidates];
+        for (int i=0; i<candidates; ++i) {
+            counts[i] += minCounts - seenMinCounts[i];
+            errors[i] += minCounts - seenMinCounts[i];
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if ( counts[a] < counts[b] ) return 1;
+                if ( counts[a] > counts[b] ) return -1;
+                return 0;
+            }
+        });
+
+        StreamSummary merged = new StreamSummary(summaries[0].capacity);
+        int kept = Math.min(candidates, merged.capacity);
+        for (int i=kept - 1; i>=0; --i) {
+            int candidate = order[i];
+            StreamSummary source = summaries[sources[candidate]];
+            int sourceSlot = sourceSlots[candidate];
+            merged.restore(source.hashes[sourceSlot], counts[candidate], errors[candidate],
+                           source.values[sourceSlot], source.rowids[sourceSlot]);
+        }
+
+        return merged;
+    }
+}
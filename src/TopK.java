@@ -13,35 +13,54 @@
  */
 
 
-import oracle.sql.ROWID;
-
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.RowId;
+import java.sql.Timestamp;
 import java.util.*;
 
 /**
  * Created by ap349 on 12/17/13.
  */
-public class TopK {
-    private static final int COUNT_SKETCH_DEPTH = 8;
-    private static final int COUNT_SKETCH_WIDTH = 32768;
+public class TopK implements Closeable {
+    public static final int COUNT_SKETCH_DEPTH = 8;
+    public static final int COUNT_SKETCH_WIDTH = 32768;
+
+    /**
+     * COUNT_SKETCH estimates every row's item against a count sketch and
+     * keeps the topk largest estimates in an indexed heap. SPACE_SAVING keeps
+     * topk Space-Saving counters instead (see StreamSummary): no hashing into
+     * a sketch, O(1) increments, and a guaranteed error bound per item.
+     */
+    public enum Engine {
+        COUNT_SKETCH,
+        SPACE_SAVING
+    }
 
     private int topk;
-    private Queue<Integer> identifiers;
+    private StreamSummary streamSummary;
     private CountSketch countSketch;
-    private HashMap<String, RowidMap> topkMap;
-    private HashMap<Integer, RowidMap> topkIdMap;
-    private IndexMinPQ<RowidMap> indexMinPQ;
+    private TopKHeap heap;
+    // slot of the item the last count() started tracking
+    private int newSlot;
 
     public void initTopK(int topk, int depth, int width) {
+        initTopK(topk, depth, width, (int)System.currentTimeMillis());
+    }
+
+    public void initTopK(int topk, int depth, int width, int seed) {
+        initTopK(topk, depth, width, seed, false);
+    }
+
+    private void initTopK(int topk, int depth, int width, int seed, boolean offHeap) {
         this.topk = topk;
-        this.identifiers = new Queue<Integer>();
-        this.countSketch = new CountSketch(depth, width,(int)System.currentTimeMillis());
-        this.topkMap = new HashMap<String, RowidMap>();
-        this.topkIdMap = new HashMap<Integer, RowidMap>();
-        this.indexMinPQ = new IndexMinPQ<RowidMap>(topk + 2);
+        this.countSketch = new CountSketch(depth, width, seed, offHeap);
+        initHeavyHitters();
+    }
 
-        for (int i=1; i<=topk+1; ++i) {
-            identifiers.enqueue(i);
-        }
+    private void initHeavyHitters() {
+        this.heap = new TopKHeap(topk);
     }
 
     public TopK(int topk) {
@@ -52,65 +71,262 @@ public class TopK {
         initTopK(topk, depth, width);
     }
 
-    public void add(String item, int count, ROWID rowid) {
-        countSketch.add(item, count);
-        long estimatedCount = countSketch.estimateCount(item);
+    /**
+     * TopKs that are going to be merged must share the seed, so that their
+     * count sketches hash every item to the same buckets.
+     */
+    public TopK(int topk, int depth, int width, int seed) {
+        initTopK(topk, depth, width, seed);
+    }
 
-        if ( topkMap.containsKey(item) ) {
-            RowidMap map = topkMap.get(item);
-            RowidMap nmap = new RowidMap(map.getRowid(), map.getObject(), estimatedCount, map.getPqidentifier());
-            topkMap.put(item, nmap);
-            topkIdMap.put(map.getPqidentifier(), nmap);
-            indexMinPQ.delete(map.getPqidentifier());
-            indexMinPQ.insert(map.getPqidentifier(), nmap);
+    public TopK(int topk, Engine engine) {
+        this(topk, engine, COUNT_SKETCH_DEPTH, COUNT_SKETCH_WIDTH, (int)System.currentTimeMillis());
+    }
+
+    /**
+     * depth, width and seed only matter for the COUNT_SKETCH engine.
+     */
+    public TopK(int topk, Engine engine, int depth, int width, int seed) {
+        this(topk, engine, depth, width, seed, false);
+    }
+
+    /**
+     * offHeap keeps the count sketch table off the java heap until close().
+     */
+    public TopK(int topk, Engine engine, int depth, int width, int seed, boolean offHeap) {
+        if ( engine == Engine.SPACE_SAVING ) {
+            this.topk = topk;
+            this.streamSummary = new StreamSummary(topk);
         } else {
-            int identifier = identifiers.dequeue().intValue();
-            RowidMap map = new RowidMap(rowid, item, estimatedCount, identifier);
-            topkMap.put(item, map);
-            topkIdMap.put(identifier, map);
-            indexMinPQ.insert(identifier, map);
-
-            if ( indexMinPQ.size() > topk ) {
-                String key = indexMinPQ.minKey().getObject().toString();
-                topkMap.remove(key);
-                int delidentifier = indexMinPQ.delMin();
-                topkIdMap.remove(delidentifier);
-                identifiers.enqueue(delidentifier);
+            initTopK(topk, depth, width, seed, offHeap);
+        }
+    }
+
+    public Engine getEngine() {
+        return streamSummary != null ? Engine.SPACE_SAVING : Engine.COUNT_SKETCH;
+    }
+
+    /**
+     * Frees the count sketch if it is off heap. The heavy hitters can still
+     * be read afterwards, but nothing can be added or merged.
+     */
+    public void close() {
+        if ( countSketch != null ) {
+            countSketch.close();
+        }
+    }
+
+    private TopK() {
+    }
+
+    /**
+     * A COUNT_SKETCH TopK over an existing count sketch, when restoring a
+     * stored one; the heavy hitters are then put back with restore.
+     */
+    TopK(int topk, CountSketch countSketch) {
+        this.topk = topk;
+        this.countSketch = countSketch;
+        initHeavyHitters();
+    }
+
+    public int getTopk() {
+        return topk;
+    }
+
+    CountSketch getCountSketch() {
+        return countSketch;
+    }
+
+    /**
+     * Puts back heavy hitters as listed by getTopKElements of a stored TopK.
+     */
+    void restore(List<RowidMap> elements) {
+        // a Space-Saving bucket lists its newest counter first, so each run
+        // of equal counts is put back last to first to keep that order
+        int i = 0;
+        while ( i < elements.size() ) {
+            int j = i + 1;
+            while ( j < elements.size() && elements.get(j).getCount() == elements.get(i).getCount() ) {
+                ++j;
+            }
+            for (int k=j - 1; k>=i; --k) {
+                RowidMap map = elements.get(k);
+                restore(map.getValue(), map.getCount(), map.getError(), map.getObject(), map.getRowid());
+            }
+            i = j;
+        }
+    }
+
+    private void restore(long hash, long count, long error, Object value, RowId rowid) {
+        if ( streamSummary != null ) {
+            streamSummary.restore(hash, count, error, value, rowid);
+        } else {
+            int slot = heap.offer(hash, count, rowid);
+            if ( slot >= 0 ) {
+                heap.setValue(slot, value);
             }
         }
     }
 
-    public void add(long item, int count, ROWID rowid) {
-        add(Long.toString(item), count, rowid);
+    // Items are identified by the 64 bit hash of their value (the same hash the
+    // CardinalitySketch uses) and the count sketch is keyed by that hash, so
+    // each value is hashed once and its String is only built when it starts
+    // being tracked.
+    public void add(CharSequence item, int count, RowId rowid) {
+        if ( count(MurmurHash.hash64(item), count, rowid) ) {
+            setNewValue(item.toString());
+        }
     }
 
-    public void add(double item, int count, ROWID rowid) {
-        add(Double.toString(item), count, rowid);
+    public void add(byte[] item, int offset, int length, int count, RowId rowid) {
+        if ( count(MurmurHash.hash64(item, offset, length, MurmurHash.HASH64_SEED), count, rowid) ) {
+            setNewValue(new String(item, offset, length, StandardCharsets.UTF_8));
+        }
     }
 
-    public void add(float item, int count, ROWID rowid) {
+    public void add(ByteBuffer item, int offset, int length, int count, RowId rowid) {
+        if ( count(MurmurHash.hash64(item, offset, length, MurmurHash.HASH64_SEED), count, rowid) ) {
+            setNewValue(CardinalitySketch.decode(item, offset, length));
+        }
+    }
+
+    public void add(long item, int count, RowId rowid) {
+        if ( count(MurmurHash.hash64(item), count, rowid) ) {
+            setNewValue(Long.toString(item));
+        }
+    }
+
+    public void add(double item, int count, RowId rowid) {
+        if ( count(MurmurHash.hash64(item), count, rowid) ) {
+            setNewValue(Double.toString(item));
+        }
+    }
+
+    // A float is counted as its Float.toString ("0.1"), not widened to a
+    // double ("0.10000000149011612").
+    public void add(float item, int count, RowId rowid) {
         add(Float.toString(item), count, rowid);
     }
 
-    public java.util.Stack<RowidMap> getTopKElements() {
-        java.util.Stack<RowidMap> stack = new java.util.Stack<RowidMap>();
+    public void add(Timestamp item, int count, RowId rowid) {
+        if ( count(MurmurHash.hash64(item), count, rowid) ) {
+            setNewValue(item.toString());
+        }
+    }
+
+    /**
+     * Adds a value whose 64 bit hash is already known, e.g. from a
+     * CardinalitySketch.Node.
+     */
+    public void addHash(long hash, CharSequence value, int count, RowId rowid) {
+        if ( count(hash, count, rowid) ) {
+            setNewValue(value.toString());
+        }
+    }
+
+    /**
+     * Returns true if hash was not tracked yet, in which case the caller
+     * sets its value with setNewValue.
+     */
+    private boolean count(long hash, int count, RowId rowid) {
+        if ( streamSummary != null ) {
+            newSlot = streamSummary.offer(hash, count, rowid);
+            return newSlot >= 0;
+        }
+        newSlot = heap.offer(hash, countSketch.addAndEstimate(hash, count), rowid);
+        return newSlot >= 0;
+    }
+
+    private void setNewValue(Object value) {
+        if ( streamSummary != null ) {
+            streamSummary.setValue(newSlot, value);
+        } else {
+            heap.setValue(newSlot, value);
+        }
+    }
 
-        Iterator<Integer> iterator = indexMinPQ.iterator();
-        while (iterator.hasNext()) {
-            int identifier = iterator.next().intValue();
-            stack.push(topkIdMap.get(identifier));
+    /**
+     * Merges TopKs gathered over disjoint parts of the same column. The count
+     * sketches are summed and every item tracked by any of the inputs is
+     * re-estimated against the merged sketch before the heavy hitters are
+     * rebuilt.
+     */
+    public static TopK merge(TopK... topks) {
+        TopK merged = new TopK();
+
+        if ( topks[0].streamSummary != null ) {
+            StreamSummary[] summaries = new StreamSummary[topks.length];
+            for (int i=0; i<topks.length; ++i) {
+                if ( topks[i].streamSummary == null ) {
+                    throw new IllegalArgumentException("Cannot merge TopKs of different engines");
+                }
+                summaries[i] = topks[i].streamSummary;
+            }
+            merged.topk = topks[0].topk;
+            merged.streamSummary = StreamSummary.merge(summaries);
+            return merged;
+        }
+
+        CountSketch[] countSketches = new CountSketch[topks.length];
+        List<RowidMap> candidates = new ArrayList<RowidMap>();
+
+        for (int i=0; i<topks.length; ++i) {
+            if ( topks[i].countSketch == null ) {
+                throw new IllegalArgumentException("Cannot merge TopKs of different engines");
+            }
+            countSketches[i] = topks[i].countSketch;
+            candidates.addAll(topks[i].heap.getTopKElements());
+        }
+
+        return merge(topks[0].topk, CountSketch.merge(countSketches), candidates);
+    }
+
+    /**
+     * The COUNT_SKETCH half of merge, over count sketches the caller already
+     * summed into countSketch: every candidate heavy hitter is re-estimated
+     * against it and the topk largest are kept.
+     */
+    static TopK merge(int topk, CountSketch countSketch, Collection<RowidMap> candidates) {
+        TopK merged = new TopK(topk, countSketch);
+        LongIntHashMap seen = new LongIntHashMap(candidates.size() + 1);
+
+        for (RowidMap candidate : candidates) {
+            long hash = candidate.getValue();
+            if ( seen.containsKey(hash) ) {
+                continue;
+            }
+            seen.put(hash, 0);
+            int slot = merged.heap.offer(hash, countSketch.estimateCount(hash), candidate.getRowid());
+            if ( slot >= 0 ) {
+                merged.heap.setValue(slot, candidate.getObject());
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Estimated frequency of the item of the given hash (see MurmurHash): the
+     * count sketch estimate, or the Space-Saving count if it is tracked.
+     */
+    public long estimateCount(long hash) {
+        if ( streamSummary != null ) {
+            return streamSummary.getCount(hash);
         }
+        return countSketch.estimateCount(hash);
+    }
 
-        return (stack);
+    public java.util.Stack<RowidMap> getTopKElements() {
+        if ( streamSummary != null ) {
+            return streamSummary.getTopKElements();
+        }
+        return heap.getTopKElements();
     }
 
     public HashMap<String,Long> getTopKElementsHash() {
         HashMap<String, Long> map = new HashMap<String, Long>();
 
-        Iterator<Integer> iterator = indexMinPQ.iterator();
-        while ( iterator.hasNext() ) {
-            int identifier = iterator.next().intValue();
-            RowidMap rowidMap = topkIdMap.get(identifier);
+        for (RowidMap rowidMap : getTopKElements()) {
             map.put( rowidMap.getObject().toString(), rowidMap.getCount() );
         }
 
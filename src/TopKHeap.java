@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.sql.RowId;
+import java.util.*;
+
+/**
+ * The topk items with the largest estimated counts, in a binary min heap.
+ * Items are identified by their 64 bit hash and stored in parallel arrays
+ * indexed by slot; the heap holds slots, and a LongIntHashMap maps a hash to
+ * its slot. A tracked item's new estimate is written in place and its slot
+ * sifted from where it is, so updates do not allocate.
+ */
+public class TopKHeap {
+    private static final int NIL = -1;
+
+    private int capacity;
+    private int size;
+    private LongIntHashMap slots;
+
+    // by slot
+    private long[] hashes;
+    private long[] counts;
+    private Object[] values;
+    private RowId[] rowids;
+    private int[] positions;
+
+    // heap[0] is the slot with the smallest count
+    private int[] heap;
+
+    public TopKHeap(int capacity) {
+        this.capacity = capacity;
+        this.size = 0;
+        this.slots = new LongIntHashMap(capacity + 1);
+        this.hashes = new long[capacity];
+        this.counts = new long[capacity];
+        this.values = new Object[capacity];
+        this.rowids = new RowId[capacity];
+        this.positions = new int[capacity];
+        this.heap = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sets the estimated count of item hash. An untracked item gets a slot
+     * while the heap has room, and afterwards takes the minimum's slot if its
+     * count is larger. Returns the slot if the item was not tracked before,
+     * for the caller to set its value, NIL otherwise.
+     */
+    public int offer(long hash, long count, RowId rowid) {
+        int slot = slots.get(hash);
+        if ( slot != LongIntHashMap.NO_VALUE ) {
+            update(slot, count);
+            return NIL;
+        }
+
+        if ( size < capacity ) {
+            slot = size++;
+            heap[slot] = slot;
+            counts[slot] = count;
+            siftUp(slot);
+        } else if ( capacity > 0 && count > counts[heap[0]] ) {
+            slot = heap[0];
+            slots.remove(hashes[slot]);
+            counts[slot] = count;
+            siftDown(0);
+        } else {
+            return NIL;
+        }
+
+        hashes[slot] = hash;
+        values[slot] = null;
+        rowids[slot] = rowid;
+        slots.put(hash, slot);
+        return slot;
+    }
+
+    public void setValue(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    public boolean contains(long hash) {
+        return slots.containsKey(hash);
+    }
+
+    /**
+     * Count sketch estimates can go down as well as up, so the slot is sifted
+     * whichever way its new count requires.
+     */
+    private void update(int slot, long count) {
+        long old = counts[slot];
+        counts[slot] = count;
+        if ( count > old ) {
+            siftDown(positions[slot]);
+        } else {
+            siftUp(positions[slot]);
+        }
+    }
+
+    private void siftUp(int position) {
+        int slot = heap[position];
+        long count = counts[slot];
+        while ( position > 0 ) {
+            int parent = (position - 1) >>> 1;
+            if ( counts[heap[parent]] <= count ) {
+                break;
+            }
+            heap[position] = heap[parent];
+            positions[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = slot;
+        positions[slot] = position;
+    }
+
+    private void siftDown(int position) {
+        int slot = heap[position];
+        long count = counts[slot];
+        while ( true ) {
+            int child = 2 * position + 1;
+            if ( child >= size ) {
+                break;
+            }
+            if ( child + 1 < size && counts[heap[child + 1]] < counts[heap[child]] ) {
+                ++child;
+            }
+            if ( count <= counts[heap[child]] ) {
+                break;
+            }
+            heap[position] = heap[child];
+            positions[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = slot;
+        positions[slot] = position;
+    }
+
+    /**
+     * The tracked items, in increasing count order.
+     */
+    public java.util.Stack<RowidMap> getTopKElements() {
+        ArrayList<RowidMap> maps = new ArrayList<RowidMap>(size);
+        for (int slot=0; slot<size; ++slot) {
+            RowidMap map = new RowidMap(rowids[slot], hashes[slot], counts[slot], slot);
+            map.setObject(values[slot]);
+            maps.add(map);
+        }
+        Collections.sort(maps, RowidMap.RowidMapComparator);
+
+        java.util.Stack<RowidMap> stack = new java.util.Stack<RowidMap>();
+        stack.addAll(maps);
+        return stack;
+    }
+}